@@ -0,0 +1,46 @@
+package com.jinwoo;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What became of every file of a bulk request. A bulk request only
+ * fails as a whole when the connection is lost or the server can not
+ * read the names, a file that fails is listed here with its message.
+ */
+public class BulkResult {
+    private final List<String> succeeded;
+    private final Map<String, String> failed;
+    private final String message;
+
+    /**
+     * Constructor
+     *
+     * @param succeeded The names of the files that were handled
+     * @param failed The names of the files that failed, with their messages
+     * @param message The message of the server for the whole request
+     */
+    BulkResult(List<String> succeeded, Map<String, String> failed, String message) {
+        this.succeeded = Collections.unmodifiableList(succeeded);
+        this.failed = Collections.unmodifiableMap(failed);
+        this.message = message;
+    }
+
+    /** @return The names of the files that were handled, in the order of the reply
+     */
+    public List<String> succeeded() {
+        return succeeded;
+    }
+
+    /** @return The names of the files that failed, with the message for each one
+     */
+    public Map<String, String> failed() {
+        return failed;
+    }
+
+    /** @return The message of the server, which counts the files
+     */
+    public String message() {
+        return message;
+    }
+}
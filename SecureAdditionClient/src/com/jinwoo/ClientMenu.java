@@ -0,0 +1,327 @@
+package com.jinwoo;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Lets a person use the SecureAdditionClient from the console.
+ *
+ * Every option starts a request on the client and waits for its
+ * result, then prints the message for the user. The menu reads all
+ * of its input from one Scanner, so it can also be given a script
+ * on the standard input. Downloads and uploads are resumable, so after
+ * a lost connection the user can reconnect and try again, and only the
+ * rest of the file is sent. The bulk options take a list of names or
+ * globs and carry out all of them in one request. A sync only fetches
+ * the files, and the chunks of them, that the client does not have.
+ */
+class ClientMenu {
+    private final SecureAdditionClient client;
+    // Used to read the user input.
+    private final Scanner scanner = new Scanner(System.in);
+
+    /**
+     * Constructor
+     *
+     * @param client The client that carries out the requests
+     */
+    ClientMenu(SecureAdditionClient client) {
+        this.client = client;
+    }
+
+    /** Connects the client and shows the menu until the user exits.
+     */
+    void run() {
+        try {
+            client.connect();
+            System.out.println("--------------------------------------------");
+            System.out.println("The client is now connected to the server.");
+            System.out.println("--------------------------------------------");
+
+            while(true){
+                // Display the menu.
+                displayMenu();
+
+                // Read the input from the user, the end of the input exits as well.
+                String command = readLine();
+                if (command == null) {
+                    break;
+                }
+
+                if(command.equals("1")){
+                    downloadFileFromServer();
+                }
+                else if(command.equals("2")){
+                    uploadFileToServer();
+                }
+                else if(command.equals("3")) {
+                    deleteFileFromServer();
+                }
+                else if(command.equals("4")){
+                    deleteFileFromClient();
+                }
+                else if(command.equals("6")) {
+                    client.reconnect();
+                }
+                else if(command.equals("7")) {
+                    downloadFilesFromServer();
+                }
+                else if(command.equals("8")) {
+                    uploadFilesToServer();
+                }
+                else if(command.equals("9")) {
+                    deleteFilesFromServer();
+                }
+                else if(command.equals("10")) {
+                    listFilesOnServer();
+                }
+                else if(command.equals("11")) {
+                    syncFilesFromServer();
+                }else{
+                    break;
+                }
+            }
+
+            client.close();
+            System.out.println("Exiting the program.");
+        }catch(Exception x) {
+            System.out.println("Client error.");
+            System.out.println(x);
+            x.printStackTrace();
+        }
+    }
+
+    /** Display the options.
+     */
+    private void displayMenu(){
+        System.out.println("\n" + "-----------------");
+        System.out.println("Enter the nr to:");
+        System.out.println("1: Download from the server");
+        System.out.println("2: Upload to the server");
+        System.out.println("3: Delete from the server");
+        System.out.println("4: Delete from the client");
+        System.out.println("5: Exit");
+        System.out.println("6: Reconnect to the server");
+        System.out.println("7: Download many files from the server");
+        System.out.println("8: Upload many files to the server");
+        System.out.println("9: Delete many files from the server");
+        System.out.println("10: List the files on the server");
+        System.out.println("11: Sync the files of the server to the client");
+        System.out.println("-----------------");
+    }
+
+    /** @return The next line of input, or null at the end of the input
+     */
+    private String readLine() {
+        return scanner.hasNextLine() ? scanner.nextLine() : null;
+    }
+
+    /** Download a file from the server.
+     */
+    private void downloadFileFromServer() {
+        // Get the file name for the requested file.
+        System.out.println("Enter the file name that you wish to download:");
+        String fileName = readLine();
+        if (fileName == null) {
+            return;
+        }
+
+        try {
+            if (await(client.downloadResumable(fileName, Paths.get(SecureAdditionClient.FILES, fileName))) != null) {
+                System.out.println("The file " + fileName + " has been downloaded.");
+            }
+        } catch (InvalidPathException x) {
+            System.out.println("The file name " + fileName + " can not be used.");
+        }
+    }
+
+    /** Upload a file to the server.
+     */
+    private void uploadFileToServer() {
+        System.out.println("Enter the file name that you wish to upload to the server:");
+        String fileName = readLine();
+        if (fileName == null) {
+            return;
+        }
+
+        try {
+            // Print the message from the server if the file was successfully uploaded or not.
+            String message = await(client.uploadResumable(Paths.get(SecureAdditionClient.FILES, fileName), fileName));
+            if (message != null) {
+                System.out.println(message);
+            }
+        } catch (InvalidPathException x) {
+            System.out.println("The file " + fileName + " can not be found.");
+        }
+    }
+
+    /** Delete a file from the server.
+     */
+    private void deleteFileFromServer() {
+        System.out.println("Enter the file name that you wish to delete from the server:");
+        String fileName = readLine();
+        if (fileName == null) {
+            return;
+        }
+
+        // Print the message from the server if the file was successfully removed or not.
+        String message = await(client.delete(fileName));
+        if (message != null) {
+            System.out.println(message);
+        }
+    }
+
+    /** Delete a file from the client.
+     */
+    private void deleteFileFromClient(){
+        System.out.println("Enter the file name that you wish to delete from the client:");
+        String fileName = readLine();
+
+        if(fileName != null && !fileName.equals("")){
+            // Find the file and delete it.
+            File file = new File(SecureAdditionClient.FILES, fileName);
+
+            // Check if the file can be deleted.
+            if(file.delete()){
+                System.out.println("The file " + fileName + " was deleted from the client.");
+            }else{
+                System.out.println("An error occurred when trying to delete the file " + fileName + " from the client.");
+            }
+        }
+    }
+
+    /** Download many files from the server.
+     */
+    private void downloadFilesFromServer() {
+        System.out.println("Enter the file names or globs such as *.txt that you wish to download, one per line, and an empty line:");
+        List<String> names = readNames();
+        if (names.isEmpty()) {
+            return;
+        }
+        printResult(await(client.downloadAll(names, Paths.get(SecureAdditionClient.FILES))));
+    }
+
+    /** Upload many files to the server.
+     */
+    private void uploadFilesToServer() {
+        System.out.println("Enter the file names or globs such as *.txt that you wish to upload, one per line, and an empty line:");
+        List<String> names = readNames();
+        if (names.isEmpty()) {
+            return;
+        }
+
+        // The globs are matched against the files of the client.
+        List<Path> files = new ArrayList<>();
+        for (String name : names) {
+            try {
+                if (name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0) {
+                    try (DirectoryStream<Path> matches = Files.newDirectoryStream(Paths.get(SecureAdditionClient.FILES), name)) {
+                        for (Path file : matches) {
+                            if (Files.isRegularFile(file)) {
+                                files.add(file);
+                            }
+                        }
+                    }
+                }else{
+                    files.add(Paths.get(SecureAdditionClient.FILES, name));
+                }
+            } catch (IOException | IllegalArgumentException x) {
+                // A name that is not a path or a glob that is broken.
+                System.out.println("The file name " + name + " can not be used.");
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("No files were found.");
+            return;
+        }
+        printResult(await(client.uploadAll(files)));
+    }
+
+    /** Delete many files from the server.
+     */
+    private void deleteFilesFromServer() {
+        System.out.println("Enter the file names or globs such as *.txt that you wish to delete from the server, one per line, and an empty line:");
+        List<String> names = readNames();
+        if (names.isEmpty()) {
+            return;
+        }
+        printResult(await(client.deleteAll(names)));
+    }
+
+    /** List the files on the server.
+     */
+    private void listFilesOnServer() {
+        List<RemoteFile> files = await(client.list(new ArrayList<>()));
+        if (files == null) {
+            return;
+        }
+        for (RemoteFile file : files) {
+            System.out.println(file.name() + "  " + file.size() + " bytes  " + new Date(file.lastModified()) + "  " + file.sha256());
+        }
+        System.out.println(files.size() + (files.size() == 1 ? " file is" : " files are") + " on the server.");
+    }
+
+    /** Download the files of the server that the client does not have the same.
+     */
+    private void syncFilesFromServer() {
+        System.out.println("Enter the file names or globs that you wish to sync, one per line, and an empty line for all files:");
+        List<String> names = readNames();
+        printResult(await(client.sync(names, Paths.get(SecureAdditionClient.FILES))));
+    }
+
+    /** @return The lines of input up to an empty line or the end of the input
+     */
+    private List<String> readNames() {
+        List<String> names = new ArrayList<>();
+        String name;
+        while ((name = readLine()) != null && !name.isEmpty()) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    /** Prints the message of the server and every file that failed.
+     */
+    private static void printResult(BulkResult result) {
+        if (result == null) {
+            return;
+        }
+        System.out.println(result.message());
+        for (Map.Entry<String, String> failed : result.failed().entrySet()) {
+            System.out.println(failed.getKey() + ": " + failed.getValue());
+        }
+    }
+
+    /** Waits for a request and prints why it failed.
+     *
+     * @param request The result of the request
+     * @return The result, or null if the request failed
+     */
+    private static <T> T await(CompletableFuture<T> request) {
+        try {
+            return request.get();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            // The messages of the server and of the transfers are meant for the user.
+            if (cause instanceof IOException) {
+                System.out.println(cause.getMessage());
+            }else{
+                System.out.println("An error occurred in the client: " + cause);
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,425 @@
+package com.jinwoo;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Keeps connected clients to one server ready for the threads of a program.
+ *
+ * The connections are opened and their handshakes are done in the
+ * background, so a thread that borrows a client finds it connected.
+ * Idle connections are checked with PING and replaced when they do not
+ * answer, and the ones above minIdle are closed after maxIdleMillis
+ * without use. All connections share one SSLContext, so the ones that
+ * are opened again resume the TLS session.
+ *
+ * The sizes can be set with system properties:
+ * -Dsecureaddition.pool.maxConnections, -Dsecureaddition.pool.minIdle,
+ * -Dsecureaddition.pool.maxIdleMillis, -Dsecureaddition.pool.borrowTimeoutMillis
+ * and -Dsecureaddition.pool.keepAliveMillis.
+ */
+public class ClientPool implements Closeable {
+    static final int DEFAULT_MAX_CONNECTIONS = Integer.getInteger("secureaddition.pool.maxConnections", 8);
+    static final int DEFAULT_MIN_IDLE = Integer.getInteger("secureaddition.pool.minIdle", 2);
+    static final long DEFAULT_MAX_IDLE_MILLIS = Long.getLong("secureaddition.pool.maxIdleMillis", 5 * 60 * 1000);
+    static final long DEFAULT_BORROW_TIMEOUT_MILLIS = Long.getLong("secureaddition.pool.borrowTimeoutMillis", 10 * 1000);
+    // How often the idle connections are checked, also keeps them open through firewalls.
+    static final long KEEP_ALIVE_MILLIS = Long.getLong("secureaddition.pool.keepAliveMillis", 30 * 1000);
+    // A connection that does not answer a PING in this time is closed.
+    static final long PING_TIMEOUT_MILLIS = 5 * 1000;
+
+    private final InetAddress host;
+    private final int port;
+    private final boolean plaintext;
+    private final int maxConnections;
+    private final int minIdle;
+    private final long maxIdleMillis;
+    private final long borrowTimeoutMillis;
+    private final SslContextProvider sslContexts;
+
+    // The idle connections, the most recently used first.
+    private final BlockingDeque<Entry> idle = new LinkedBlockingDeque<>();
+    // One permit for every connection that may be borrowed.
+    private final Semaphore permits;
+    private final AtomicInteger open = new AtomicInteger();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    /**
+     * Constructor, with the sizes from the system properties.
+     *
+     * @param host Internet address of the host
+     *        where the server is located
+     * @param port Port number on the host where
+     *        the server is listening
+     */
+    public ClientPool(InetAddress host, int port) throws Exception {
+        this(host, port, false, DEFAULT_MAX_CONNECTIONS, DEFAULT_MIN_IDLE, DEFAULT_MAX_IDLE_MILLIS,
+                DEFAULT_BORROW_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param host Internet address of the host
+     *        where the server is located
+     * @param port Port number on the host where
+     *        the server is listening
+     * @param plaintext true to connect without TLS to a
+     *        plaintext server on the loopback interface
+     * @param maxConnections The most connections that are open at the same time
+     * @param minIdle How many idle connections are kept open and ready
+     * @param maxIdleMillis After how long without use a connection above minIdle is closed
+     * @param borrowTimeoutMillis How long borrow() waits for a free connection
+     */
+    public ClientPool(InetAddress host, int port, boolean plaintext, int maxConnections, int minIdle,
+                      long maxIdleMillis, long borrowTimeoutMillis) throws Exception {
+        this.host = host;
+        this.port = port;
+        this.plaintext = plaintext;
+        this.maxConnections = maxConnections;
+        this.minIdle = Math.min(minIdle, maxConnections);
+        this.maxIdleMillis = maxIdleMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxConnections);
+        this.sslContexts = plaintext ? null : SecureAdditionClient.createSslContextProvider();
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ClientPool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.execute(this::fill);
+        maintenance.scheduleWithFixedDelay(this::maintain, KEEP_ALIVE_MILLIS, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Borrows a connected client for the caller alone, until the lease is closed.
+     *
+     * @return The lease of the client
+     * @throws SocketTimeoutException If no client became free within the borrow timeout
+     */
+    public Lease borrow() throws IOException {
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("No connection to the server became free within " + borrowTimeoutMillis + " ms.");
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return take();
+    }
+
+    /** Borrows a connected client if one is free right away.
+     *
+     * @return The lease of the client, or null if all are in use
+     */
+    Lease tryBorrow() throws IOException {
+        return permits.tryAcquire() ? take() : null;
+    }
+
+    /** Hands out a connection once a permit has been acquired.
+     */
+    private Lease take() throws IOException {
+        if (closed) {
+            permits.release();
+            throw new IOException("The pool is closed.");
+        }
+
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (entry.client.isConnected()) {
+                return new Lease(entry);
+            }
+            discard(entry);
+        }
+
+        // Every warm connection is in use or was lost, so this one is opened on the
+        // caller's thread. The maintenance thread opens replacements in the background.
+        scheduleFill();
+        try {
+            return new Lease(connect());
+        } catch (IOException x) {
+            permits.release();
+            throw x;
+        }
+    }
+
+    /** Downloads a file on a pooled connection.
+     *
+     * @see SecureAdditionClient#download(String)
+     */
+    public CompletableFuture<Path> download(String fileName) {
+        return withClient(client -> client.download(fileName));
+    }
+
+    /** Uploads a file on a pooled connection.
+     *
+     * @see SecureAdditionClient#upload(Path)
+     */
+    public CompletableFuture<String> upload(Path file) {
+        return withClient(client -> client.upload(file));
+    }
+
+    /** Deletes a file on a pooled connection.
+     *
+     * @see SecureAdditionClient#delete(String)
+     */
+    public CompletableFuture<String> delete(String fileName) {
+        return withClient(client -> client.delete(fileName));
+    }
+
+    /** Downloads many files in one request on a pooled connection.
+     *
+     * @see SecureAdditionClient#downloadAll(List, Path)
+     */
+    public CompletableFuture<BulkResult> downloadAll(List<String> names, Path directory) {
+        return withClient(client -> client.downloadAll(names, directory));
+    }
+
+    /** Uploads many files in one request on a pooled connection.
+     *
+     * @see SecureAdditionClient#uploadAll(List)
+     */
+    public CompletableFuture<BulkResult> uploadAll(List<Path> files) {
+        return withClient(client -> client.uploadAll(files));
+    }
+
+    /** Deletes many files in one request on a pooled connection.
+     *
+     * @see SecureAdditionClient#deleteAll(List)
+     */
+    public CompletableFuture<BulkResult> deleteAll(List<String> names) {
+        return withClient(client -> client.deleteAll(names));
+    }
+
+    /** Lists files of the server on a pooled connection.
+     *
+     * @see SecureAdditionClient#list(List)
+     */
+    public CompletableFuture<List<RemoteFile>> list(List<String> names) {
+        return withClient(client -> client.list(names));
+    }
+
+    /** Syncs files of the server into a directory on a pooled connection.
+     *
+     * @see SecureAdditionClient#sync(List, Path)
+     */
+    public CompletableFuture<BulkResult> sync(List<String> names, Path directory) {
+        return withClient(client -> client.sync(names, directory));
+    }
+
+    /** Downloads a large file in ranges over several pooled connections at
+     *  the same time, so that more than one core decrypts it. A download
+     *  that was cut off is resumed, see SecureAdditionClient.downloadResumable().
+     *
+     * @param fileName The name of the file on the server
+     * @param target Where the file is written
+     * @return The downloaded file, or a RequestFailedException
+     * @see ParallelTransfer
+     */
+    public CompletableFuture<Path> downloadParallel(String fileName, Path target) {
+        return new ParallelTransfer(this, ParallelTransfer.DEFAULT_STREAMS, ParallelTransfer.DEFAULT_RANGE_SIZE)
+                .download(fileName, target);
+    }
+
+    /** Uploads a large file in ranges over several pooled connections at
+     *  the same time, so that more than one core encrypts it. An upload
+     *  that was cut off is resumed, see SecureAdditionClient.uploadResumable().
+     *
+     * @param file The file to upload
+     * @param fileName The name of the file on the server
+     * @return The message of the server, or a RequestFailedException
+     * @see ParallelTransfer
+     */
+    public CompletableFuture<String> uploadParallel(Path file, String fileName) {
+        return new ParallelTransfer(this, ParallelTransfer.DEFAULT_STREAMS, ParallelTransfer.DEFAULT_RANGE_SIZE)
+                .upload(file, fileName);
+    }
+
+    /** Runs a request on a borrowed client and gives the
+     *  client back when the request is done.
+     */
+    private <T> CompletableFuture<T> withClient(Function<SecureAdditionClient, CompletableFuture<T>> request) {
+        Lease lease;
+        try {
+            lease = borrow();
+        } catch (IOException x) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            result.completeExceptionally(x);
+            return result;
+        }
+        CompletableFuture<T> result = request.apply(lease.client());
+        result.whenComplete((value, x) -> lease.close());
+        return result;
+    }
+
+    /** Opens a new connection.
+     */
+    private Entry connect() throws IOException {
+        open.incrementAndGet();
+        SecureAdditionClient client = new SecureAdditionClient(host, port, plaintext, sslContexts);
+        try {
+            client.connect();
+        } catch (Exception x) {
+            open.decrementAndGet();
+            throw x instanceof IOException ? (IOException) x : new IOException(x);
+        }
+        return new Entry(client);
+    }
+
+    /** Gives a borrowed connection back, it is closed if it was lost.
+     */
+    private void release(Entry entry) {
+        if (closed || !entry.client.isConnected() || open.get() > maxConnections) {
+            discard(entry);
+            scheduleFill();
+        }else{
+            entry.idleSince = System.currentTimeMillis();
+            idle.offerFirst(entry);
+        }
+        permits.release();
+    }
+
+    private void discard(Entry entry) {
+        open.decrementAndGet();
+        try {
+            entry.client.close();
+        } catch (IOException x) {
+            // The connection is gone already.
+        }
+    }
+
+    private void scheduleFill() {
+        try {
+            maintenance.execute(this::fill);
+        } catch (RejectedExecutionException x) {
+            // The pool is closed.
+        }
+    }
+
+    /** Opens connections in the background until minIdle are idle.
+     */
+    private void fill() {
+        while (!closed && idle.size() < minIdle && open.get() < maxConnections) {
+            try {
+                Entry entry = connect();
+                entry.idleSince = System.currentTimeMillis();
+                idle.offerLast(entry);
+            } catch (IOException x) {
+                // Tried again by the next maintenance run.
+                System.out.println("The pool could not connect to the server.");
+                System.out.println(x);
+                return;
+            }
+        }
+    }
+
+    /** Closes the connections that were idle for too long and pings the others,
+     *  the oldest first. Then opens new ones until minIdle are idle again.
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        List<Entry> oldestFirst = new ArrayList<>(idle);
+        for (int i = oldestFirst.size() - 1; i >= 0 && !closed; i--) {
+            Entry entry = oldestFirst.get(i);
+            // Taken out of the deque, so no thread borrows it while it is checked.
+            if (!idle.remove(entry)) {
+                continue;
+            }
+            if (now - entry.idleSince > maxIdleMillis && idle.size() >= minIdle) {
+                discard(entry);
+            }
+            else if (isAlive(entry.client)) {
+                idle.offerLast(entry);
+            }else{
+                discard(entry);
+            }
+        }
+        fill();
+    }
+
+    private boolean isAlive(SecureAdditionClient client) {
+        if (!client.isConnected()) {
+            return false;
+        }
+        try {
+            client.ping().get(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException x) {
+            return false;
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Closes the idle connections. The borrowed ones are
+     *  closed when they are given back.
+     */
+    public void close() {
+        closed = true;
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            discard(entry);
+        }
+        if (sslContexts != null) {
+            try {
+                sslContexts.close();
+            } catch (IOException x) {
+                System.out.println("Could not stop watching the keystore.");
+            }
+        }
+    }
+
+    /**
+     * A connection of the pool and since when it is idle.
+     */
+    private static class Entry {
+        final SecureAdditionClient client;
+        long idleSince;
+
+        Entry(SecureAdditionClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * A borrowed client, closing the lease gives it back to the pool.
+     */
+    public class Lease implements Closeable {
+        private final Entry entry;
+        private boolean released;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        /** @return The connected client
+         */
+        public SecureAdditionClient client() {
+            return entry.client;
+        }
+
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Makes the files of a directory the same as the files of the server,
+ * and only downloads what has changed.
+ *
+ * LIST gives the size, time and SHA-256 of every file. A copy with the
+ * same size and time is taken to be the same, like rsync does, otherwise
+ * its hash is compared. A file that was downloaded gets the time of the
+ * server, so the next sync does not read it again.
+ *
+ * A copy that is out of date is used to seed the partial file of the
+ * download. The server sends the CRC32 and digest of every chunk of its
+ * file, the chunks are looked for at their own position in the copy and
+ * then at every position with a RollingChecksum, so chunks that moved
+ * because bytes were inserted before them are found as well. The chunks
+ * that were found are written into the partial file, and the resumable
+ * download only fetches the others. The hash of the result is checked
+ * against the one of LIST.
+ *
+ * The sync blocks on its requests and reads the copies from the disk,
+ * so it runs on a thread of its own.
+ */
+class DeltaSync {
+    // The buffer that the copies are read through while the window slides over them.
+    private static final int READ_SIZE = 1024 * 1024;
+    // The bits of the CRC32 that the filter of the chunks that are looked for uses.
+    private static final int FILTER_BITS = 24;
+
+    private final SecureAdditionClient client;
+    private final Path directory;
+
+    /**
+     * Constructor
+     *
+     * @param client The connected client
+     * @param directory Where the files are written, each one under its name
+     */
+    DeltaSync(SecureAdditionClient client, Path directory) {
+        this.client = client;
+        this.directory = directory;
+    }
+
+    /** Starts the sync.
+     *
+     * @param names The names of the files, or globs, none for all files
+     * @return The files that were downloaded and the ones that failed
+     */
+    CompletableFuture<BulkResult> sync(List<String> names) {
+        CompletableFuture<BulkResult> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                result.complete(run(names));
+            } catch (IOException x) {
+                result.completeExceptionally(x);
+            }
+        }, "SecureAdditionClient-sync");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    private BulkResult run(List<String> names) throws IOException {
+        List<String> downloaded = new ArrayList<>();
+        Map<String, String> failed = new LinkedHashMap<>();
+        int unchanged = 0;
+        long sent = 0;
+        long total = 0;
+        for (RemoteFile file : await(client.list(names))) {
+            Path target;
+            try {
+                target = directory.resolve(file.name());
+            } catch (InvalidPathException x) {
+                target = null;
+            }
+            // The names of the server only ever reach files in the directory.
+            if (target == null || !target.normalize().startsWith(directory.normalize())
+                    || target.normalize().equals(directory.normalize())) {
+                failed.put(file.name(), "The file name " + file.name() + " can not be used.");
+                continue;
+            }
+            try {
+                if (isCurrent(file, target)) {
+                    unchanged++;
+                    continue;
+                }
+                sent += download(file, target);
+                total += file.size();
+                downloaded.add(file.name());
+            } catch (IOException x) {
+                failed.put(file.name(), x.getMessage());
+            }
+        }
+        String message = unchanged + (unchanged == 1 ? " file was" : " files were") + " up to date";
+        if (!downloaded.isEmpty()) {
+            message += ", " + downloaded.size() + (downloaded.size() == 1 ? " file was" : " files were")
+                    + " downloaded with " + sent + " of their " + total + " bytes";
+        }
+        return new BulkResult(downloaded, failed, message + (failed.isEmpty() ? "." : ", " + failed.size() + " failed."));
+    }
+
+    /** @return true if the copy is the same as the file of the server
+     */
+    private static boolean isCurrent(RemoteFile file, Path target) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(target, BasicFileAttributes.class);
+        } catch (IOException x) {
+            return false;
+        }
+        if (!attributes.isRegularFile() || attributes.size() != file.size()) {
+            return false;
+        }
+        if (attributes.lastModifiedTime().toMillis() == file.lastModified()) {
+            return true;
+        }
+        if (!sha256(target).equals(file.sha256())) {
+            return false;
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(file.lastModified()));
+        return true;
+    }
+
+    /** Downloads a file, with the chunks of the old copy in place.
+     *
+     * @return The bytes that were downloaded for the chunks that were missing
+     */
+    private long download(RemoteFile file, Path target) throws IOException {
+        Path part = OverlappedFileWriter.partOf(target);
+        // A partial file that is there already is resumed as it is.
+        if (file.size() > 0 && Files.isRegularFile(target) && Files.size(target) > 0 && !Files.exists(part)) {
+            seed(target, part, await(client.checksumsWithDigests(file.name())));
+        }
+        ParallelTransfer transfer = new ParallelTransfer(client, ParallelTransfer.DEFAULT_RANGE_SIZE);
+        await(transfer.download(file.name(), target));
+        if (!sha256(target).equals(file.sha256())) {
+            throw new IOException("The file " + file.name() + " has changed on the server during the sync, sync again to fetch it.");
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(file.lastModified()));
+        return transfer.transferred();
+    }
+
+    /** Writes the chunks of the server's file that the old copy has into the partial file.
+     *
+     * @return The bytes that were written
+     */
+    static long seed(Path copy, Path part, ChunkChecksums server) throws IOException {
+        boolean[] found = new boolean[server.chunks()];
+        long reused = 0;
+        byte[] chunk = new byte[Frame.CHUNK_SIZE];
+        CRC32 crc = new CRC32();
+        MessageDigest sha = ChunkChecksums.sha256();
+        try (FileChannel old = FileChannel.open(copy, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long oldSize = old.size();
+
+            // First at their own position, which finds the chunks of a file that was appended to or changed in place.
+            for (int i = 0; i < found.length; i++) {
+                int length = server.chunkLength(i);
+                long position = (long) i * Frame.CHUNK_SIZE;
+                if (position + length > oldSize) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                readFully(old, buffer, position);
+                crc.reset();
+                crc.update(chunk, 0, length);
+                if ((int) crc.getValue() == server.get(i)) {
+                    sha.update(chunk, 0, length);
+                    if (server.sameDigest(i, sha.digest())) {
+                        write(out, chunk, length, position);
+                        found[i] = true;
+                        reused += length;
+                    }
+                }
+            }
+
+            // Then at every position, for the whole chunks that have moved.
+            Map<Integer, List<Integer>> missing = new HashMap<>();
+            BitSet filter = new BitSet(1 << FILTER_BITS);
+            for (int i = 0; i < found.length; i++) {
+                if (!found[i] && server.chunkLength(i) == Frame.CHUNK_SIZE) {
+                    missing.computeIfAbsent(server.get(i), sum -> new ArrayList<>()).add(i);
+                    filter.set(server.get(i) >>> (32 - FILTER_BITS));
+                }
+            }
+            if (!missing.isEmpty() && oldSize >= RollingChecksum.WINDOW) {
+                reused += scan(old, out, server, missing, filter);
+            }
+        }
+        return reused;
+    }
+
+    /** Slides the window over the old copy and writes the chunks that it finds.
+     *
+     * @param missing The chunks that are looked for by their CRC32
+     * @param filter The bits of the CRC32 of the chunks, to skip most positions quickly
+     * @return The bytes that were written
+     */
+    private static long scan(FileChannel old, FileChannel out, ChunkChecksums server,
+            Map<Integer, List<Integer>> missing, BitSet filter) throws IOException {
+        RollingChecksum rolling = new RollingChecksum();
+        MessageDigest sha = ChunkChecksums.sha256();
+        // The window as a ring, head is where its first byte is once it is full.
+        byte[] window = new byte[RollingChecksum.WINDOW];
+        byte[] chunk = new byte[RollingChecksum.WINDOW];
+        int filled = 0;
+        int head = 0;
+        long reused = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        byte[] bytes = buffer.array();
+        long position = 0;
+        int count;
+        while (!missing.isEmpty() && (count = old.read(buffer, position)) >= 0) {
+            position += count;
+            for (int i = 0; i < count; i++) {
+                byte in = bytes[i];
+                if (filled < window.length) {
+                    window[filled++] = in;
+                    rolling.add(in);
+                    if (filled < window.length) {
+                        continue;
+                    }
+                }else{
+                    byte leaving = window[head];
+                    window[head] = in;
+                    head = head + 1 == window.length ? 0 : head + 1;
+                    rolling.roll(leaving, in);
+                }
+                int sum = rolling.value();
+                if (!filter.get(sum >>> (32 - FILTER_BITS))) {
+                    continue;
+                }
+                List<Integer> chunks = missing.get(sum);
+                if (chunks == null) {
+                    continue;
+                }
+                System.arraycopy(window, head, chunk, 0, window.length - head);
+                System.arraycopy(window, 0, chunk, window.length - head, head);
+                byte[] digest = sha.digest(chunk);
+                boolean matched = false;
+                for (int k = chunks.size() - 1; k >= 0; k--) {
+                    int index = chunks.get(k);
+                    if (server.sameDigest(index, digest)) {
+                        write(out, chunk, chunk.length, (long) index * Frame.CHUNK_SIZE);
+                        reused += chunk.length;
+                        chunks.remove(k);
+                        matched = true;
+                    }
+                }
+                if (chunks.isEmpty()) {
+                    missing.remove(sum);
+                }
+                if (matched) {
+                    // The next chunk is looked for after this one, like rsync does.
+                    filled = 0;
+                    head = 0;
+                    rolling.reset();
+                }
+            }
+            buffer.clear();
+        }
+        return reused;
+    }
+
+    private static void write(FileChannel out, byte[] chunk, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = file.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("The file became shorter while it was read.");
+            }
+            position += count;
+        }
+    }
+
+    /** @return The SHA-256 of the content of a file in lower case hex
+     */
+    private static String sha256(Path file) throws IOException {
+        MessageDigest sha = ChunkChecksums.sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Frame.CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                sha.update(buffer);
+                buffer.clear();
+            }
+        }
+        return ChunkChecksums.hex(sha.digest());
+    }
+
+    /** Waits for a request of the sync.
+     */
+    private static <T> T await(CompletableFuture<T> request) throws IOException {
+        try {
+            return request.get();
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException) x.getCause();
+            }
+            throw new IOException("An error occurred in the client: " + x.getCause(), x.getCause());
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The sync was interrupted.");
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package com.jinwoo;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Drives a server with many simulated clients and reports how fast it
+ * answers, to find out how many clients a server can take before it is
+ * rolled out.
+ *
+ * Every simulated client is a SecureAdditionClient with the PIER keystore
+ * on a thread of its own. It sends one request at a time, picked from the
+ * mix, waits for the answer and starts the next one after the think time.
+ * The latencies are those of a closed loop: a slow server also slows down
+ * the clients, so the rate that they offer drops with it.
+ *
+ * The run is set with system properties:
+ * -Dsecureaddition.load.profile How many clients are connected over time,
+ *     as seconds:clients points that are joined by straight lines. The run
+ *     ends at the last point. 0:0,10:100,70:100 ramps up to 100 clients
+ *     in 10 seconds and keeps them for a minute.
+ * -Dsecureaddition.load.mix The requests as opcode:weight, of download,
+ *     upload, stat, list, delete and ping.
+ * -Dsecureaddition.load.sizes The sizes of the files that are downloaded
+ *     and uploaded as bytes:weight.
+ * -Dsecureaddition.load.churn How many clients per second close their
+ *     connection and connect again, which is a TLS handshake each time.
+ * -Dsecureaddition.load.thinkMillis The pause of a client between requests.
+ * -Dsecureaddition.load.reportSeconds How often the progress is printed.
+ *
+ * The files to download are uploaded first, one for every size, as
+ * load-<size>. Every client uploads to and deletes a file of its own. The
+ * server has to be started with room for the clients, for example
+ * java com.jinwoo.SecureAdditionServer 8189 5000.
+ */
+public class LoadGenerator {
+    static final String PROFILE = System.getProperty("secureaddition.load.profile", "0:0,10:100,70:100");
+    static final String MIX = System.getProperty("secureaddition.load.mix", "download:50,upload:20,stat:15,list:10,delete:5");
+    static final String SIZES = System.getProperty("secureaddition.load.sizes", "1024:60,65536:30,1048576:10");
+    static final double CHURN = Double.parseDouble(System.getProperty("secureaddition.load.churn", "0"));
+    static final long THINK_MILLIS = Long.getLong("secureaddition.load.thinkMillis", 0);
+    static final long REPORT_SECONDS = Long.getLong("secureaddition.load.reportSeconds", 10);
+    // A request that is not answered in this time counts as an error, and its client connects again.
+    static final long REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    // How often the number of clients is matched to the profile.
+    static final long TICK_MILLIS = 100;
+    // How long a client waits before it tries again when it could not connect.
+    static final long RETRY_MILLIS = 1000;
+
+    /**
+     * The requests that the clients send, named after their opcodes.
+     */
+    enum Operation { DOWNLOAD, UPLOAD, STAT, LIST, DELETE, PING }
+
+    private final InetAddress host;
+    private final int port;
+    private final boolean plaintext;
+    private final double[][] profile;
+    private final Weighted<Operation> mix;
+    private final Weighted<Long> sizes;
+    private final PrintStream report;
+    private SslContextProvider sslContexts;
+    private Path directory;
+
+    // Indexed by the ordinal of the operation.
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[] errors = new LongAdder[Operation.values().length];
+    private final LongAdder[] bytes = new LongAdder[Operation.values().length];
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final List<Simulated> clients = new ArrayList<>();
+    private final AtomicInteger nextClient = new AtomicInteger();
+
+    /**
+     * Constructor, with the run from the system properties.
+     *
+     * @param host Internet address of the host
+     *        where the server is located
+     * @param port Port number on the host where
+     *        the server is listening
+     * @param plaintext true to connect without TLS to a
+     *        plaintext server on the loopback interface
+     * @param report Where the progress and the results are printed
+     * @throws IllegalArgumentException If a property can not be parsed
+     */
+    LoadGenerator(InetAddress host, int port, boolean plaintext, PrintStream report) {
+        this.host = host;
+        this.port = port;
+        this.plaintext = plaintext;
+        this.report = report;
+        this.profile = parseProfile(PROFILE);
+        this.mix = new Weighted<>(MIX, text -> Operation.valueOf(text.toUpperCase()));
+        this.sizes = new Weighted<>(SIZES, Long::valueOf);
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+            bytes[i] = new LongAdder();
+        }
+    }
+
+    /** Uploads the files, runs the profile and prints the results.
+     */
+    void run() throws Exception {
+        directory = Files.createTempDirectory("secureaddition-load");
+        try {
+            sslContexts = plaintext ? null : SecureAdditionClient.createSslContextProvider();
+            prepare();
+            long started = System.nanoTime();
+            drive(started);
+            printResults(System.nanoTime() - started);
+        } finally {
+            if (sslContexts != null) {
+                sslContexts.close();
+            }
+            deleteDirectory();
+        }
+    }
+
+    /** Writes a file of every size and uploads it for the downloads.
+     */
+    private void prepare() throws Exception {
+        Random random = new Random(0);
+        SecureAdditionClient client = new SecureAdditionClient(host, port, plaintext, sslContexts);
+        try {
+            client.connect();
+            for (Long size : sizes.values) {
+                byte[] content = new byte[size.intValue()];
+                random.nextBytes(content);
+                Path file = Files.write(source(size), content);
+                client.upload(file, "load-" + size).get();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private Path source(long size) {
+        return directory.resolve("size-" + size);
+    }
+
+    /** Starts and stops clients to follow the profile until its last point.
+     */
+    private void drive(long started) throws InterruptedException {
+        Random random = new Random();
+        double end = profile[profile.length - 1][0];
+        double churned = 0;
+        long nextReport = REPORT_SECONDS;
+        Totals last = new Totals();
+        while (true) {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            if (seconds >= end) {
+                break;
+            }
+            int target = (int) Math.round(clientsAt(seconds));
+            while (clients.size() < target) {
+                start();
+            }
+            while (clients.size() > target) {
+                clients.remove(clients.size() - 1).stopped = true;
+            }
+
+            churned += CHURN * TICK_MILLIS / 1000.0;
+            while (churned >= 1) {
+                churned--;
+                if (!clients.isEmpty()) {
+                    clients.get(random.nextInt(clients.size())).reconnect = true;
+                }
+            }
+
+            if (REPORT_SECONDS > 0 && seconds >= nextReport) {
+                Totals now = new Totals();
+                report.printf("%6.0f s %6d clients %10.1f requests/s %8.1f handshakes/s %6d errors%n",
+                        seconds, clients.size(), (now.requests - last.requests) / (double) REPORT_SECONDS,
+                        (now.handshakes - last.handshakes) / (double) REPORT_SECONDS, now.errors - last.errors);
+                last = now;
+                nextReport += REPORT_SECONDS;
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        List<Simulated> stopping = new ArrayList<>(clients);
+        clients.clear();
+        for (Simulated client : stopping) {
+            client.stopped = true;
+        }
+        for (Simulated client : stopping) {
+            client.thread.join(REQUEST_TIMEOUT_MILLIS);
+        }
+    }
+
+    /** @return The number of clients that the profile asks for at a time of the run
+     */
+    private double clientsAt(double seconds) {
+        if (seconds <= profile[0][0]) {
+            return profile[0][1];
+        }
+        for (int i = 1; i < profile.length; i++) {
+            if (seconds <= profile[i][0]) {
+                double[] from = profile[i - 1];
+                double[] to = profile[i];
+                return from[1] + (to[1] - from[1]) * (seconds - from[0]) / (to[0] - from[0]);
+            }
+        }
+        return profile[profile.length - 1][1];
+    }
+
+    private void start() {
+        Simulated client = new Simulated(nextClient.incrementAndGet());
+        client.thread = new Thread(() -> simulate(client), "LoadGenerator-client-" + client.id);
+        client.thread.setDaemon(true);
+        clients.add(client);
+        client.thread.start();
+    }
+
+    /** Sends the requests of one client until it is stopped.
+     */
+    private void simulate(Simulated simulated) {
+        SecureAdditionClient client = new SecureAdditionClient(host, port, plaintext, sslContexts);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            while (!simulated.stopped) {
+                if (simulated.reconnect || !client.isConnected()) {
+                    simulated.reconnect = false;
+                    if (!connect(client)) {
+                        Thread.sleep(RETRY_MILLIS);
+                        continue;
+                    }
+                }
+
+                Operation operation = mix.pick(random);
+                if (operation == Operation.DELETE && !simulated.uploaded) {
+                    // Only files that are there are deleted, a failed delete is not a useful request.
+                    operation = Operation.UPLOAD;
+                }
+                long size = sizes.pick(random);
+                long started = System.nanoTime();
+                try {
+                    long sent = send(client, simulated, operation, size).get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    latencies[operation.ordinal()].record(System.nanoTime() - started);
+                    bytes[operation.ordinal()].add(sent);
+                    if (operation == Operation.UPLOAD) {
+                        simulated.uploaded = true;
+                    }else if (operation == Operation.DELETE) {
+                        simulated.uploaded = false;
+                    }
+                } catch (ExecutionException x) {
+                    errors[operation.ordinal()].increment();
+                } catch (TimeoutException x) {
+                    errors[operation.ordinal()].increment();
+                    simulated.reconnect = true;
+                }
+
+                if (THINK_MILLIS > 0) {
+                    Thread.sleep(THINK_MILLIS);
+                }
+            }
+        } catch (InterruptedException x) {
+            // The run is over.
+        } finally {
+            try {
+                client.close();
+            } catch (IOException x) {
+                // The connection is gone already.
+            }
+        }
+    }
+
+    /** Connects the client again and counts the handshake.
+     *
+     * @return false if the client could not connect
+     */
+    private boolean connect(SecureAdditionClient client) {
+        try {
+            client.close();
+            long started = System.nanoTime();
+            client.connect();
+            handshakes.record(System.nanoTime() - started);
+            if (client.wasResumed()) {
+                resumedHandshakes.increment();
+            }
+            return true;
+        } catch (Exception x) {
+            failedHandshakes.increment();
+            return false;
+        }
+    }
+
+    /** Starts a request of the client.
+     *
+     * @return The number of bytes of file content that the request moves
+     */
+    private CompletableFuture<Long> send(SecureAdditionClient client, Simulated simulated, Operation operation, long size) {
+        switch (operation) {
+            case DOWNLOAD:
+                return client.download("load-" + size, simulated.download).thenApply(path -> size);
+            case UPLOAD:
+                return client.upload(source(size), simulated.name).thenApply(message -> size);
+            case STAT:
+                return client.stat("load-" + size).thenApply(length -> 0L);
+            case LIST:
+                return client.list(Collections.singletonList("load-[0-9]*")).thenApply(files -> 0L);
+            case DELETE:
+                return client.delete(simulated.name).thenApply(message -> 0L);
+            default:
+                return client.ping().thenApply(message -> 0L);
+        }
+    }
+
+    /** Prints the throughput and the latencies of every opcode, and the handshakes.
+     *
+     * @param nanos How long the run took
+     */
+    private void printResults(long nanos) {
+        double seconds = nanos / 1e9;
+        report.println();
+        report.printf("%-10s %10s %8s %10s %8s %9s %9s %9s %9s%n",
+                "opcode", "requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = latencies[operation.ordinal()];
+            long failed = errors[operation.ordinal()].sum();
+            if (latency.count() == 0 && failed == 0) {
+                continue;
+            }
+            report.printf("%-10s %10d %8d %10.1f %8.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    operation.name().toLowerCase(), latency.count(), failed, latency.count() / seconds,
+                    bytes[operation.ordinal()].sum() / seconds / (1024 * 1024),
+                    millis(latency.percentile(0.5)), millis(latency.percentile(0.99)),
+                    millis(latency.percentile(0.999)), millis(latency.max()));
+        }
+        report.println();
+        report.printf("%d handshakes in %.0f s, %.1f/s, %d resumed, %d failed%n",
+                handshakes.count(), seconds, handshakes.count() / seconds, resumedHandshakes.sum(), failedHandshakes.sum());
+        report.printf("Handshake p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n",
+                millis(handshakes.percentile(0.5)), millis(handshakes.percentile(0.99)),
+                millis(handshakes.percentile(0.999)), millis(handshakes.max()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /** @param text seconds:clients points in the order of their times
+     *  @return The points as pairs of seconds and clients
+     */
+    static double[][] parseProfile(String text) {
+        String[] points = text.split(",");
+        double[][] profile = new double[points.length][];
+        for (int i = 0; i < points.length; i++) {
+            String[] point = points[i].trim().split(":");
+            if (point.length != 2) {
+                throw new IllegalArgumentException("The point " + points[i] + " of the profile is not seconds:clients.");
+            }
+            profile[i] = new double[] { Double.parseDouble(point[0]), Double.parseDouble(point[1]) };
+            if (profile[i][1] < 0 || (i > 0 && profile[i][0] <= profile[i - 1][0])) {
+                throw new IllegalArgumentException("The points of the profile must follow each other in time.");
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * The totals of all clients, for the progress between two reports.
+     */
+    private final class Totals {
+        final long requests;
+        final long errors;
+        final long handshakes;
+
+        Totals() {
+            long requests = 0;
+            long errors = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                requests += latencies[i].count();
+                errors += LoadGenerator.this.errors[i].sum();
+            }
+            this.requests = requests;
+            this.errors = errors + failedHandshakes.sum();
+            this.handshakes = LoadGenerator.this.handshakes.count();
+        }
+    }
+
+    /**
+     * One simulated client.
+     */
+    private final class Simulated {
+        final int id;
+        // The file that the client uploads and deletes.
+        final String name;
+        // Where the client downloads to.
+        final Path download;
+        Thread thread;
+        volatile boolean stopped;
+        volatile boolean reconnect;
+        boolean uploaded;
+
+        Simulated(int id) {
+            this.id = id;
+            this.name = "load-client-" + id;
+            this.download = directory.resolve("client-" + id);
+        }
+    }
+
+    /**
+     * Values that are picked at random in proportion to their weights.
+     */
+    static final class Weighted<T> {
+        final List<T> values = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private int total;
+
+        /**
+         * Constructor
+         *
+         * @param text value:weight pairs
+         * @param parse Turns the text of a value into the value
+         * @throws IllegalArgumentException If a pair can not be parsed
+         */
+        Weighted(String text, Function<String, T> parse) {
+            for (String pair : text.split(",")) {
+                String[] parts = pair.trim().split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("The pair " + pair + " is not value:weight.");
+                }
+                int weight = Integer.parseInt(parts[1]);
+                if (weight > 0) {
+                    total += weight;
+                    values.add(parse.apply(parts[0]));
+                    cumulative.add(total);
+                }
+            }
+            if (total == 0) {
+                throw new IllegalArgumentException("No value of " + text + " has a weight.");
+            }
+        }
+
+        T pick(Random random) {
+            int ticket = random.nextInt(total);
+            for (int i = 0; i < values.size(); i++) {
+                if (ticket < cumulative.get(i)) {
+                    return values.get(i);
+                }
+            }
+            return values.get(values.size() - 1);
+        }
+    }
+
+    /** Runs the load against a server.
+     * @param args[0] Optional port number in place of
+     *        the default
+     * @param args[1] Optional host name of the server
+     * @param args[2] Optional "plaintext" to connect without
+     *        TLS to a plaintext server on this host
+     */
+    public static void main(String[] args) {
+        // Every client prints its handshakes, only the report is kept.
+        PrintStream report = System.out;
+        try {
+            boolean plaintext = args.length > 2 && args[2].equals("plaintext");
+            InetAddress host = plaintext ? InetAddress.getLoopbackAddress() : InetAddress.getLocalHost();
+            int port = SecureAdditionClient.DEFAULT_PORT;
+            if ( args.length > 0 ) {
+                port = Integer.parseInt( args[0] );
+            }
+            if ( args.length > 1 ) {
+                host = InetAddress.getByName( args[1] );
+            }
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+            new LoadGenerator(host, port, plaintext, report).run();
+        }
+        catch ( UnknownHostException uhx ) {
+            report.println( uhx );
+        }
+        catch ( IllegalArgumentException x ) {
+            report.println( x.getMessage() );
+        }
+        catch ( Exception x ) {
+            report.println( "The load could not be run." );
+            report.println( x );
+        }
+        finally {
+            System.setOut(report);
+        }
+    }
+}
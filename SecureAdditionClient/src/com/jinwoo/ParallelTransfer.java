@@ -0,0 +1,295 @@
+package com.jinwoo;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends one file as ranges over one connection or over several
+ * connections of a pool, and resumes a transfer that was cut off.
+ *
+ * The TLS records of a connection are encrypted and decrypted by one
+ * thread on each side, so a file that is split over several connections
+ * uses several cores, and on a link with a long round trip every
+ * connection keeps its own TCP window in flight. The ranges are written
+ * into the file at their positions, in any order.
+ *
+ * Before anything is sent, the checksums of the chunks of the file are
+ * compared with the ones of the partial file on the other side, and only
+ * the chunks that differ are sent. A transfer that was cut off therefore
+ * goes on where it stopped. The partial file takes the place of the file
+ * once the checksums of all chunks match. A file that changes during the
+ * transfer fails this check, the next try fetches the chunks that changed.
+ *
+ * Every connection takes the next range when its last one is done, so a
+ * slow connection gets fewer ranges. Connections that the pool can not
+ * give out right away are not waited for, the transfer then uses fewer.
+ *
+ * The number of connections and the range size can be set with
+ * -Dsecureaddition.parallel.streams and -Dsecureaddition.parallel.rangeSize.
+ */
+class ParallelTransfer {
+    static final int DEFAULT_STREAMS = Integer.getInteger("secureaddition.parallel.streams",
+            Runtime.getRuntime().availableProcessors());
+    static final long DEFAULT_RANGE_SIZE = Long.getLong("secureaddition.parallel.rangeSize", 8 * 1024 * 1024);
+
+    // Where the connections come from, the pool or the one client.
+    private final ClientPool pool;
+    private final SecureAdditionClient client;
+    private final int streams;
+    private final int chunksPerRange;
+    // The ranges that no connection has taken yet, as position and length.
+    private final Queue<long[]> ranges = new ConcurrentLinkedQueue<>();
+    // Set when a range has failed, the other connections stop taking ranges.
+    private volatile boolean failed;
+    // The bytes of the ranges that were sent or received.
+    private final AtomicLong transferred = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param pool Where the connections are borrowed from
+     * @param streams The most connections that are used at the same time
+     * @param rangeSize The size of the ranges that the file is split into
+     */
+    ParallelTransfer(ClientPool pool, int streams, long rangeSize) {
+        this(pool, null, streams, rangeSize);
+    }
+
+    /**
+     * Constructor for a transfer on one connection.
+     *
+     * @param client The connected client
+     * @param rangeSize The size of the ranges that the file is split into
+     */
+    ParallelTransfer(SecureAdditionClient client, long rangeSize) {
+        this(null, client, 1, rangeSize);
+    }
+
+    private ParallelTransfer(ClientPool pool, SecureAdditionClient client, int streams, long rangeSize) {
+        this.pool = pool;
+        this.client = client;
+        this.streams = Math.max(1, streams);
+        // The ranges start and end on chunks, so their checksums can be compared.
+        this.chunksPerRange = (int) Math.max(1, Math.min(Integer.MAX_VALUE, rangeSize / Frame.CHUNK_SIZE));
+    }
+
+    /** Sends one range of the file on a connection.
+     */
+    private interface RangeRequest {
+        CompletableFuture<?> start(SecureAdditionClient client, long position, long length);
+    }
+
+    /** Downloads a file into the partial file of the target,
+     *  which replaces the target once it is complete.
+     *
+     * @param fileName The name of the file on the server
+     * @param target Where the file is written
+     * @return The target, or a RequestFailedException
+     */
+    CompletableFuture<Path> download(String fileName, Path target) {
+        Path part = OverlappedFileWriter.partOf(target);
+        Borrowed first;
+        try {
+            first = borrow();
+        } catch (IOException x) {
+            return failed(x);
+        }
+        CompletableFuture<Path> result = first.client.checksums(fileName, false).thenCompose(server -> {
+            try {
+                plan(server, Files.exists(part) ? ChunkChecksums.of(part) : new ChunkChecksums(0, new int[0]));
+            } catch (IOException x) {
+                return failed(x);
+            }
+            return run(first, (client, position, length) ->
+                    client.downloadRange(fileName, part, position, length, server.size))
+                    .thenCompose(done -> finishDownload(fileName, server, part, target));
+        });
+        result.whenComplete((value, x) -> first.close());
+        return result;
+    }
+
+    /** Checks the partial file against the checksums of the server and moves it into place.
+     */
+    private static CompletableFuture<Path> finishDownload(String fileName, ChunkChecksums server, Path part, Path target) {
+        try {
+            // Chunks that were there already were not written, so the file may still be too long or missing.
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                if (channel.size() > server.size) {
+                    channel.truncate(server.size);
+                }
+            }
+            if (!ChunkChecksums.of(part).equals(server)) {
+                return failed(new IOException("The file " + fileName
+                        + " has changed during the download, try again to fetch the chunks that are different."));
+            }
+            OverlappedFileWriter.replace(part, target);
+            return CompletableFuture.completedFuture(target);
+        } catch (IOException x) {
+            return failed(new IOException("An error occurred in the client when trying to write the downloaded file.", x));
+        }
+    }
+
+    /** Uploads a file into its partial file on the server and commits it once it is complete.
+     *
+     * @param file The file to upload
+     * @param fileName The name of the file on the server
+     * @return The message of the server, or a RequestFailedException
+     */
+    CompletableFuture<String> upload(Path file, String fileName) {
+        ChunkChecksums local;
+        Borrowed first;
+        try {
+            local = ChunkChecksums.of(file);
+        } catch (IOException x) {
+            return failed(new FileNotFoundException("The file " + file + " can not be found."));
+        }
+        try {
+            first = borrow();
+        } catch (IOException x) {
+            return failed(x);
+        }
+        CompletableFuture<String> result = first.client.checksums(fileName, true).thenCompose(server -> {
+            plan(local, server);
+            return run(first, (client, position, length) ->
+                    client.uploadRange(file, fileName, position, length, local.size));
+        }).thenCompose(done -> first.client.checksums(fileName, true)).thenCompose(server -> {
+            // A longer partial file is cut to the size by the commit.
+            if (!server.startsWith(local)) {
+                return failed(new IOException("The file " + file
+                        + " has changed during the upload, try again to send the chunks that are different."));
+            }
+            return first.client.commit(fileName, local.size);
+        });
+        result.whenComplete((value, x) -> first.close());
+        return result;
+    }
+
+    /** Queues the chunks of the source that the destination does not have
+     *  the same, joined to ranges of at most chunksPerRange chunks.
+     */
+    private void plan(ChunkChecksums source, ChunkChecksums destination) {
+        int start = -1;
+        for (int chunk = 0; chunk <= source.chunks(); chunk++) {
+            boolean missing = chunk < source.chunks() && !source.sameChunk(destination, chunk);
+            if (start >= 0 && (!missing || chunk - start == chunksPerRange)) {
+                long position = (long) start * Frame.CHUNK_SIZE;
+                long end = Math.min((long) chunk * Frame.CHUNK_SIZE, source.size);
+                ranges.add(new long[] { position, end - position });
+                start = -1;
+            }
+            if (missing && start < 0) {
+                start = chunk;
+            }
+        }
+    }
+
+    /** Spreads the ranges over the first connection and the ones
+     *  that the pool has free. The first connection is kept.
+     */
+    private CompletableFuture<Void> run(Borrowed first, RangeRequest request) {
+        List<CompletableFuture<Void>> connections = new ArrayList<>();
+        connections.add(connection(first, request, false));
+        while (connections.size() < Math.min(streams, ranges.size())) {
+            Borrowed more;
+            try {
+                more = tryBorrow();
+            } catch (IOException x) {
+                // The connections that are there carry the rest.
+                break;
+            }
+            if (more == null) {
+                break;
+            }
+            connections.add(connection(more, request, true));
+        }
+        return CompletableFuture.allOf(connections.toArray(new CompletableFuture<?>[connections.size()]));
+    }
+
+    /** Sends ranges on one connection until none are left.
+     *
+     * @param giveBack true to give the connection back to the pool when it is done
+     */
+    private CompletableFuture<Void> connection(Borrowed borrowed, RangeRequest request, boolean giveBack) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (giveBack) {
+            done.whenComplete((value, x) -> borrowed.close());
+        }
+        nextRange(borrowed.client, request, done);
+        return done;
+    }
+
+    private void nextRange(SecureAdditionClient client, RangeRequest request, CompletableFuture<Void> done) {
+        long[] range = failed ? null : ranges.poll();
+        if (range == null) {
+            done.complete(null);
+            return;
+        }
+        request.start(client, range[0], range[1]).whenComplete((value, x) -> {
+            if (x != null) {
+                failed = true;
+                done.completeExceptionally(x);
+            }else{
+                transferred.addAndGet(range[1]);
+                nextRange(client, request, done);
+            }
+        });
+    }
+
+    /** @return The bytes of the ranges that were sent or received so far,
+     *  the chunks that the other side had already are not counted
+     */
+    long transferred() {
+        return transferred.get();
+    }
+
+    private Borrowed borrow() throws IOException {
+        if (pool == null) {
+            return new Borrowed(client, null);
+        }
+        ClientPool.Lease lease = pool.borrow();
+        return new Borrowed(lease.client(), lease);
+    }
+
+    private Borrowed tryBorrow() throws IOException {
+        if (pool == null) {
+            return null;
+        }
+        ClientPool.Lease lease = pool.tryBorrow();
+        return lease == null ? null : new Borrowed(lease.client(), lease);
+    }
+
+    /**
+     * A connection that the transfer uses until it closes it.
+     */
+    private static final class Borrowed {
+        final SecureAdditionClient client;
+        // Null for the one client of a transfer without a pool.
+        private final ClientPool.Lease lease;
+
+        Borrowed(SecureAdditionClient client, ClientPool.Lease lease) {
+            this.client = client;
+            this.lease = lease;
+        }
+
+        void close() {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(IOException x) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(x);
+        return result;
+    }
+}
@@ -0,0 +1,66 @@
+package com.jinwoo;
+
+/**
+ * A file of the server as LIST reports it.
+ */
+public class RemoteFile {
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final String sha256;
+
+    /**
+     * Constructor
+     *
+     * @param name The name of the file on the server
+     * @param size The size in bytes
+     * @param lastModified The time of the last change in milliseconds since 1970
+     * @param sha256 The SHA-256 of the content in lower case hex
+     */
+    RemoteFile(String name, long size, long lastModified, String sha256) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.sha256 = sha256;
+    }
+
+    /** Reads a line of a LIST reply, "size mtime sha256 name".
+     *
+     * @throws IllegalArgumentException If the line is not a file
+     */
+    static RemoteFile parse(String line) {
+        String[] fields = line.split(" ", 4);
+        if (fields.length < 4 || fields[2].length() != 64) {
+            throw new IllegalArgumentException(line);
+        }
+        return new RemoteFile(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]);
+    }
+
+    /** @return The name of the file on the server
+     */
+    public String name() {
+        return name;
+    }
+
+    /** @return The size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /** @return The time of the last change in milliseconds since 1970
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /** @return The SHA-256 of the content in lower case hex
+     */
+    public String sha256() {
+        return sha256;
+    }
+
+    public String toString() {
+        return name + " (" + size + " bytes)";
+    }
+}
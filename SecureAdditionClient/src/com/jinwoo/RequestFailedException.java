@@ -0,0 +1,19 @@
+package com.jinwoo;
+import java.io.IOException;
+
+/**
+ * The server has answered a request with an ERROR frame.
+ * The message is the one that the server sent.
+ */
+public class RequestFailedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor
+     *
+     * @param message The message from the server
+     */
+    RequestFailedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,72 @@
+package com.jinwoo;
+
+/**
+ * The CRC32 of a window of CHUNK_SIZE bytes that slides over a file one
+ * byte at a time, the same value that java.util.zip.CRC32 gives for the
+ * bytes in the window.
+ *
+ * A CRC is linear, so the byte that leaves the window can be taken out
+ * again with a table: OUT[b] is what the byte b changes in the register
+ * once CHUNK_SIZE more bytes have followed it. Moving the window on is
+ * then one step of the CRC and one table lookup, like the rolling sum of
+ * rsync, and the checksums that the server sends with SUMS can be found
+ * at any position of a file.
+ */
+final class RollingChecksum {
+    static final int WINDOW = Frame.CHUNK_SIZE;
+
+    // The table of the reflected polynomial of CRC32, one entry per byte.
+    private static final int[] TABLE = new int[256];
+    private static final int[] OUT = new int[256];
+    private static final int INITIAL = 0xffffffff;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int bit = 0; bit < 8; bit++) {
+                c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+        for (int b = 0; b < 256; b++) {
+            int c = step(INITIAL, (byte) b) ^ INITIAL;
+            for (int i = 0; i < WINDOW; i++) {
+                c = step(c, (byte) 0);
+            }
+            OUT[b] = c;
+        }
+    }
+
+    private int register = INITIAL;
+
+    private static int step(int register, byte b) {
+        return TABLE[(register ^ b) & 0xff] ^ (register >>> 8);
+    }
+
+    /** Empties the window.
+     */
+    void reset() {
+        register = INITIAL;
+    }
+
+    /** Adds a byte to a window that is not full yet.
+     */
+    void add(byte in) {
+        register = step(register, in);
+    }
+
+    /** Moves a full window on by one byte.
+     *
+     * @param out The first byte of the window, which leaves it
+     * @param in The byte after the window, which enters it
+     */
+    void roll(byte out, byte in) {
+        register = step(register, in) ^ OUT[out & 0xff];
+    }
+
+    /** @return The CRC32 of the bytes in the window
+     */
+    int value() {
+        return ~register;
+    }
+}
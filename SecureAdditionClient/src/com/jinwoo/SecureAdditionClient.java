@@ -3,14 +3,29 @@ package com.jinwoo;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
 import java.net.UnknownHostException;
-import java.security.KeyStore;
-import java.util.Scanner;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Created by Jinwoo on 2016-12-20.
@@ -20,29 +35,65 @@ import javax.net.ssl.TrustManagerFactory;
  * The majority of this code is standard code from
  * the book, pages 777-779, on the course website.
  *
+ * The client is used from programs: download(), upload() and delete()
+ * start a request and return at once with a CompletableFuture of its
+ * result. They may be called from any thread and many requests may be
+ * in flight on the connection at the same time, the replies are read by
+ * a thread of the client and handed to the requests they belong to.
+ * The ClientMenu lets a person use the client from the console.
+ *
+ * With -Dsecureaddition.compression=true the client offers the server
+ * to compress the content of files in a HELLO after it has connected.
+ * Both sides then compress the chunks of the files that they send.
+ *
  * Run the SecureAdditionServer then run the SecureAdditionClient.
  */
-public class SecureAdditionClient {
+public class SecureAdditionClient implements Closeable {
     private InetAddress host;
     private int port;
+    // Connects without TLS to a plaintext server on the same host, only for benchmarks.
+    private boolean plaintext;
     // This is not a reserved port number
     static final int DEFAULT_PORT = 8189;
 
-    static final String KEYSTORE = "certificates/PIERkeystore.ks";
-    static final String TRUSTSTORE = "certificates/PIERtruststore.ks";
+    // The directories are relative to the working directory, set with
+    // -Dsecureaddition.certificates and -Dsecureaddition.files.
+    static final String CERTIFICATES = System.getProperty("secureaddition.certificates", "certificates");
+    static final String FILES = System.getProperty("secureaddition.files", "files");
+    static final String KEYSTORE = CERTIFICATES + "/PIERkeystore.ks";
+    static final String TRUSTSTORE = CERTIFICATES + "/PIERtruststore.ks";
     static final String STOREPASSWD = "123456";
     static final String ALIASPASSWD = "123456";
-    static final String EXIT = "EXIT";
-    static final String DOWNLOAD = "DOWNLOAD";
-    static final String UPLOAD = "UPLOAD";
-    static final String DELETE = "DELETE";
-    static final String ERROR = "ERROR";
-    static final String DATA_TEXT_SENT = "DATA_TEXT_SENT";
-    static final String DATA_NAME_SENT = "DATA_NAME_SENT";
-    static final String FINISHED_REQUEST = "FINISHED_REQUEST";
-
-    BufferedReader socketInput;
-    PrintWriter socketOutput;
+
+    // How many TLS sessions the client remembers and for how long, so that a
+    // reconnect resumes the session instead of doing a full handshake.
+    // Set with -Dsecureaddition.sessionCacheSize and -Dsecureaddition.sessionTimeout.
+    static final int SESSION_CACHE_SIZE = Integer.getInteger("secureaddition.sessionCacheSize", 100);
+    static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("secureaddition.sessionTimeout", 24 * 60 * 60);
+
+    // The server refuses more requests of a connection than this, further
+    // requests wait in the client until one of them is answered.
+    static final int MAX_REQUESTS_IN_FLIGHT = 16;
+
+    // Offers the server to compress the content of files, which pays off on
+    // slow links with compressible files. Set with -Dsecureaddition.compression=true.
+    static final boolean COMPRESSION = Boolean.getBoolean("secureaddition.compression");
+
+    // Asks the server to answer uploads once they are on its disk, unless
+    // an upload says otherwise. Set with -Dsecureaddition.durable=true.
+    static final boolean DURABLE = Boolean.getBoolean("secureaddition.durable");
+
+    // Created on the first connect and reused by every reconnect, the
+    // sessions that can be resumed are kept in its SSLContext. The
+    // clients of a ClientPool share one.
+    private SslContextProvider sslContexts;
+    private volatile boolean resumed;
+    private volatile Connection connection;
+
+    // Every request gets its own id, the replies of the server carry the same id.
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    // Numbers the connections of the program, their threads are named after them.
+    private static final AtomicInteger CONNECTIONS = new AtomicInteger();
 
     /** Constructor
      * @param host Internet address of the host
@@ -51,286 +102,1136 @@ public class SecureAdditionClient {
      *        the server is listening
      */
     public SecureAdditionClient(InetAddress host, int port ) {
+        this(host, port, false);
+    }
+
+    /** Constructor
+     * @param host Internet address of the host
+     *        where the server is located
+     * @param port Port number on the host where
+     *        the server is listening
+     * @param plaintext true to connect without TLS to a
+     *        plaintext server on the loopback interface
+     */
+    public SecureAdditionClient(InetAddress host, int port, boolean plaintext ) {
+        this(host, port, plaintext, null);
+    }
+
+    /** Constructor
+     * @param host Internet address of the host
+     *        where the server is located
+     * @param port Port number on the host where
+     *        the server is listening
+     * @param plaintext true to connect without TLS to a
+     *        plaintext server on the loopback interface
+     * @param sslContexts The keys shared with other clients, or null
+     *        to load them on the first connect
+     */
+    SecureAdditionClient(InetAddress host, int port, boolean plaintext, SslContextProvider sslContexts ) {
         this.host = host;
         this.port = port;
+        this.plaintext = plaintext;
+        this.sslContexts = sslContexts;
+    }
+
+    /** Connects to the server, does nothing if the
+     *  client is connected already.
+     */
+    public synchronized void connect() throws Exception {
+        if (connection != null) {
+            return;
+        }
+        Socket socket = plaintext ? connectPlaintext() : connectTLS();
+        connection = new Connection(socket);
+        connection.startReader();
+        if (COMPRESSION) {
+            hello(connection);
+        }
+    }
+
+    /** Offers compression to the server. The requests that are sent
+     *  before the server has accepted it are not compressed.
+     */
+    private void hello(Connection current) {
+        start(new MessageRequest(), (connection, requestId) ->
+                connection.send(Frame.HELLO, requestId, ChunkCompressor.DEFLATE))
+                .thenAccept(features -> current.compress = Arrays.asList(features.split(" ")).contains(ChunkCompressor.DEFLATE));
+    }
+
+    /** @return true while the connection to the server is open
+     */
+    public boolean isConnected() {
+        Connection current = connection;
+        return current != null && current.failure == null;
     }
 
-    /** The method used to start a client object
+    /** @return true if the last connect resumed a TLS session instead of a full handshake
      */
-    public void run() {
+    boolean wasResumed() {
+        return resumed;
+    }
+
+    /** Closes the connection and connects to the server again. The
+     *  SSLContext is reused, so the TLS session is resumed if the
+     *  server still remembers it.
+     */
+    public synchronized void reconnect() throws Exception {
+        close();
+        connect();
+    }
+
+    /** Waits for the requests that were started, then tells the
+     *  server that the client exits and closes the connection.
+     */
+    public synchronized void close() throws IOException {
+        Connection closing = connection;
+        if (closing == null) {
+            return;
+        }
+        connection = null;
         try {
-            // Set up security. The following statements create an empty keystore and an empty truststore
-            // objects and then load them with the contents of the program's keystore and truststore files.
-            KeyStore ks = KeyStore.getInstance( "JCEKS" );
-            ks.load( new FileInputStream( KEYSTORE ), STOREPASSWD.toCharArray() );
-            KeyStore ts = KeyStore.getInstance( "JCEKS" );
-            ts.load( new FileInputStream( TRUSTSTORE ), STOREPASSWD.toCharArray() );
-
-            // The SSL connection will require access to encryption keys and certificates. For that reason,
-            // factory objects to create both KeyManager and TrustManager objects are created and then
-            // initialized with the KeyStore and TrustStore objects:
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance( "SunX509" );
-            kmf.init(ks, ALIASPASSWD.toCharArray() );
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance( "SunX509" );
-            tmf.init(ts);
-            SSLContext sslContext = SSLContext.getInstance( "TLS" );
-            sslContext.init( kmf.getKeyManagers(), tmf.getTrustManagers(), null );
-
-            // The client needs an SSLSocketFactory object.
-            SSLSocketFactory sslFact = sslContext.getSocketFactory();
-
-            // With the factory object available, the required SSLSocket object is created to connect
-            // with the specified host using the port identified. As with the SSLServerSocketobject,
-            // all the supported cipher suites are enabled for the dient to maximize its flexibility when
-            // negotiating with the server to agree upon the cipher suite that will be used for the secure
-            // connection:
-            SSLSocket client =  (SSLSocket)sslFact.createSocket(host, port);
-            client.setEnabledCipherSuites( client.getSupportedCipherSuites() );
-
-            System.out.println("--------------------------------------------");
-            System.out.println("The SSL/TLS handshake was completed.");
-            System.out.println("The client is now connected to the server.");
-            System.out.println("--------------------------------------------");
-
-            // These are used to receive and send information between the client and the server.
-            socketInput = new BufferedReader(new InputStreamReader(client.getInputStream() ) );
-            socketOutput = new PrintWriter(client.getOutputStream(), true );
-
-            // Used to read the user input.
-            Scanner scanner = new Scanner(System.in);
-
-            String command;
-            boolean running = true;
-
-            // Handles incoming commands from the server.
-            while(running){
-                // Display the menu.
-                displayMenu();
-
-                // Read the input from the user.
-                command = scanner.nextLine();
-
-                if(command.equals("1")){
-                    downloadFileFromServer();
-                }
-                else if(command.equals("2")){
+            closing.awaitRequests();
+            if (closing.failure == null) {
+                closing.send(Frame.EXIT, nextRequestId.getAndIncrement(), "");
+            }
+        } finally {
+            closing.close();
+        }
+    }
 
-                    uploadFileToServer();
-                }
-                else if(command.equals("3")) {
-                    deleteFileFromServer();
-                }
-                else if(command.equals("4")){
-                    deleteFileFromClient();
+    /** Downloads a file from the server into the files directory.
+     *
+     * @param fileName The name of the file on the server
+     * @return The downloaded file, or a RequestFailedException
+     *         with the message of the server
+     */
+    public CompletableFuture<Path> download(String fileName) {
+        Path target;
+        try {
+            target = Paths.get(FILES, fileName);
+        } catch (InvalidPathException x) {
+            return failed(new IOException("The file name " + fileName + " can not be used.", x));
+        }
+        return download(fileName, target);
+    }
+
+    /** Downloads a file from the server.
+     *
+     * @param fileName The name of the file on the server
+     * @param target Where the file is written, it is only created
+     *        or replaced once the server has begun to send it
+     * @return The downloaded file, or a RequestFailedException
+     *         with the message of the server
+     */
+    public CompletableFuture<Path> download(String fileName, Path target) {
+        return start(new DownloadRequest(target, -1, -1), (connection, requestId) ->
+                connection.send(Frame.DOWNLOAD, requestId, fileName));
+    }
+
+    /** Downloads a range of a file from the server into the same range of
+     *  the target, the rest of the target is kept. The ranges of one file
+     *  can be downloaded at the same time, see ClientPool.downloadParallel().
+     *
+     * @param fileName The name of the file on the server
+     * @param target Where the range is written, it is created if it is not there
+     * @param position Where the range starts in the file
+     * @param length The length of the range
+     * @param size The size of the whole file, a longer target is cut to it
+     * @return The target, or a RequestFailedException
+     */
+    CompletableFuture<Path> downloadRange(String fileName, Path target, long position, long length, long size) {
+        byte[] payload = Frame.range(position, length, fileName);
+        return start(new DownloadRequest(target, position, size), (connection, requestId) ->
+                connection.send(Frame.DOWNLOAD, Frame.RANGE, requestId, payload, 0, payload.length));
+    }
+
+    /** Downloads a file from the server, and when the download is cut off,
+     *  only fetches the part that is missing the next time. The server's
+     *  checksums of the chunks are compared with the partial file of the
+     *  target, the chunks that differ are downloaded and the target is
+     *  replaced once all of its checksums match.
+     *
+     * @param fileName The name of the file on the server
+     * @param target Where the file is written
+     * @return The downloaded file, or a RequestFailedException
+     */
+    public CompletableFuture<Path> downloadResumable(String fileName, Path target) {
+        return new ParallelTransfer(this, ParallelTransfer.DEFAULT_RANGE_SIZE).download(fileName, target);
+    }
+
+    /** Uploads a file to the server, and when the upload is cut off, only
+     *  sends the part that is missing the next time. The server keeps the
+     *  chunks that have arrived in a partial file, the chunks whose
+     *  checksums differ are sent and the file is committed once all of
+     *  its checksums match.
+     *
+     * @param file The file to upload
+     * @param fileName The name of the file on the server
+     * @return The message of the server, or a RequestFailedException
+     */
+    public CompletableFuture<String> uploadResumable(Path file, String fileName) {
+        return new ParallelTransfer(this, ParallelTransfer.DEFAULT_RANGE_SIZE).upload(file, fileName);
+    }
+
+    /** Asks the server for the checksums of the chunks of a file.
+     *
+     * @param fileName The name of the file on the server
+     * @param partial true for the partial file of an upload
+     * @return The checksums, or a RequestFailedException
+     */
+    CompletableFuture<ChunkChecksums> checksums(String fileName, boolean partial) {
+        byte[] payload = Frame.utf8(fileName);
+        return start(new ChecksumRequest(false), (connection, requestId) ->
+                connection.send(Frame.SUMS, partial ? Frame.PARTIAL : 0, requestId, payload, 0, payload.length));
+    }
+
+    /** Asks the server for the checksums of the chunks of a file, each
+     *  with the digest of the chunk, see DeltaSync.
+     *
+     * @param fileName The name of the file on the server
+     * @return The checksums with digests, or a RequestFailedException
+     */
+    CompletableFuture<ChunkChecksums> checksumsWithDigests(String fileName) {
+        byte[] payload = Frame.utf8(fileName);
+        return start(new ChecksumRequest(true), (connection, requestId) ->
+                connection.send(Frame.SUMS, Frame.DIGESTS, requestId, payload, 0, payload.length));
+    }
+
+    /** Asks the server for the size, time and hash of its files.
+     *
+     * @param names The names of the files, or globs such as *.conf that
+     *        the server matches against its files, none for all files
+     * @return The files in the order of their names, files that are not
+     *         there are left out, or a RequestFailedException
+     */
+    public CompletableFuture<List<RemoteFile>> list(List<String> names) {
+        byte[] payload;
+        try {
+            payload = bulkPayload(names);
+        } catch (IOException x) {
+            return failed(x);
+        }
+        return start(new ListRequest(), (connection, requestId) ->
+                connection.send(Frame.LIST, 0, requestId, payload, 0, payload.length));
+    }
+
+    /** Makes the files of a directory the same as the files of the server.
+     *  Files that are the same are not sent again, and of a file that has
+     *  changed only the chunks that are not in the old copy are downloaded,
+     *  see DeltaSync. Files that are only in the directory are kept.
+     *
+     * @param names The names of the files, or globs, none for all files
+     * @param directory Where the files are written, each one under its name
+     * @return The files that were downloaded and the ones that failed, or a RequestFailedException
+     */
+    public CompletableFuture<BulkResult> sync(List<String> names, Path directory) {
+        return new DeltaSync(this, directory).sync(names);
+    }
+
+    /** Has the server move the partial file of an upload in ranges into place.
+     *
+     * @param fileName The name of the file on the server
+     * @param size The size of the file
+     * @return The message of the server, or a RequestFailedException
+     */
+    CompletableFuture<String> commit(String fileName, long size) {
+        byte[] payload = Frame.range(0, size, fileName);
+        return start(new MessageRequest(), (connection, requestId) ->
+                connection.send(Frame.COMMIT, DURABLE ? Frame.DURABLE : 0, requestId, payload, 0, payload.length));
+    }
+
+    /** Asks the server for the size of a file.
+     *
+     * @param fileName The name of the file on the server
+     * @return The size in bytes, or a RequestFailedException
+     */
+    public CompletableFuture<Long> stat(String fileName) {
+        CompletableFuture<String> reply = start(new MessageRequest(), (connection, requestId) ->
+                connection.send(Frame.STAT, requestId, fileName));
+        return reply.thenApply(Long::valueOf);
+    }
+
+    /** Uploads a file to the server, with the same name as it has here.
+     *
+     * @param file The file to upload
+     * @return The message of the server, or a RequestFailedException
+     */
+    public CompletableFuture<String> upload(Path file) {
+        return upload(file, file.getFileName().toString());
+    }
+
+    /** Uploads a file to the server.
+     *
+     * @param file The file to upload
+     * @param fileName The name of the file on the server
+     * @return The message of the server, or a RequestFailedException
+     */
+    public CompletableFuture<String> upload(Path file, String fileName) {
+        return upload(file, fileName, DURABLE);
+    }
+
+    /** Uploads a file to the server.
+     *
+     * @param file The file to upload
+     * @param fileName The name of the file on the server
+     * @param durable true to be answered once the file is on the disk of
+     *        the server, so that it survives a crash of the server
+     * @return The message of the server, or a RequestFailedException
+     */
+    public CompletableFuture<String> upload(Path file, String fileName, boolean durable) {
+        return upload(file, fileName, -1, Long.MAX_VALUE, -1, durable);
+    }
+
+    /** Uploads a range of a file to the same range of the file on the
+     *  server. The ranges of one file can be uploaded at the same time,
+     *  see ClientPool.uploadParallel().
+     *
+     * @param file The file to upload
+     * @param fileName The name of the file on the server
+     * @param position Where the range starts in the file
+     * @param length The length of the range
+     * @param size The size of the whole file
+     * @return The message of the server, or a RequestFailedException
+     */
+    CompletableFuture<String> uploadRange(Path file, String fileName, long position, long length, long size) {
+        return upload(file, fileName, position, length, size, false);
+    }
+
+    /** Uploads the whole file when position is -1, otherwise one range,
+     *  which is made durable by the COMMIT of the file.
+     */
+    private CompletableFuture<String> upload(Path file, String fileName, long position, long length, long size,
+            boolean durable) {
+        // The file is opened first, so that no upload is started for a file that is not there.
+        FileChannel input;
+        try {
+            input = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException x) {
+            return failed(new FileNotFoundException("The file " + file + " can not be found."));
+        }
+
+        MessageRequest request = new MessageRequest();
+        request.result.whenComplete((message, x) -> closeQuietly(input));
+        return start(request, (connection, requestId) -> {
+            if (position < 0) {
+                byte[] payload = Frame.utf8(fileName);
+                connection.send(Frame.UPLOAD, durable ? Frame.DURABLE : 0, requestId, payload, 0, payload.length);
+            }else{
+                byte[] payload = Frame.range(position, size, fileName);
+                connection.send(Frame.UPLOAD, Frame.RANGE, requestId, payload, 0, payload.length);
+            }
+
+            sendContent(connection, requestId, fileName, input, Math.max(position, 0), length);
+            // Notify the server that all of the file has been sent.
+            connection.send(Frame.END, requestId, "");
+        });
+    }
+
+    /** Uploads many files to the server in one request, with the same
+     *  names as they have here. A file that fails does not stop the others.
+     *
+     * @param files The files to upload
+     * @return What became of every file, or a RequestFailedException
+     */
+    public CompletableFuture<BulkResult> uploadAll(List<Path> files) {
+        return uploadAll(files, DURABLE);
+    }
+
+    /** Uploads many files to the server in one request, with the same
+     *  names as they have here. A file that fails does not stop the others.
+     *
+     * @param files The files to upload
+     * @param durable true to have every file answered once it is on the disk of the server
+     * @return What became of every file, or a RequestFailedException
+     */
+    public CompletableFuture<BulkResult> uploadAll(List<Path> files, boolean durable) {
+        BulkRequest request = new BulkRequest();
+        return start(request, (connection, requestId) -> {
+            connection.send(Frame.UPLOAD, Frame.BULK | (durable ? Frame.DURABLE : 0), requestId, new byte[0], 0, 0);
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                FileChannel input;
+                try {
+                    input = FileChannel.open(file, StandardOpenOption.READ);
+                } catch (IOException x) {
+                    // Not sent, the server never hears of it.
+                    request.failed.put(fileName, "The file " + file + " can not be found.");
+                    continue;
                 }
-                else if(command.equals("5")) {
-                    socketOutput.println(EXIT);
-                    System.out.println("Exiting the program.");
-                    System.exit(0);
-                }else{
-                    System.exit(0);
-                    running = false;
+                try {
+                    connection.send(Frame.ENTRY, requestId, fileName);
+                    sendContent(connection, requestId, fileName, input, 0, Long.MAX_VALUE);
+                } finally {
+                    closeQuietly(input);
                 }
             }
-        }catch(Exception x) {
-            System.out.println("Client error.");
-            System.out.println(x);
-            x.printStackTrace();
+            // Notify the server that all of the files have been sent.
+            connection.send(Frame.END, requestId, "");
+        });
+    }
+
+    /** Reads a part of a file and sends it as DATA frames, compressed if
+     *  the server has accepted it. The content is read and sent in chunks,
+     *  so the file is never held in memory.
+     */
+    private static void sendContent(Connection connection, int requestId, String fileName, FileChannel input,
+            long position, long length) throws IOException {
+        byte[] chunk = new byte[Frame.CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        ChunkCompressor compressor = new ChunkCompressor(fileName, connection.compress);
+        byte[] packed = compressor.isEnabled() ? new byte[Frame.CHUNK_SIZE] : null;
+        long remaining = length;
+        int count;
+        while (remaining > 0 && (count = input.read(buffer, position)) >= 0) {
+            count = (int) Math.min(count, remaining);
+            int packedLength = compressor.compress(chunk, count, packed);
+            if (packedLength < 0) {
+                connection.send(Frame.DATA, 0, requestId, chunk, 0, count);
+            }else{
+                connection.send(Frame.DATA, Frame.COMPRESSED, requestId, packed, 0, packedLength);
+            }
+            position += count;
+            remaining -= count;
+            buffer.clear();
         }
     }
 
-    /** Display the options.
+    /** Deletes a file from the server.
+     *
+     * @param fileName The name of the file on the server
+     * @return The message of the server, or a RequestFailedException
      */
-    private void displayMenu(){
-        System.out.println("\n" + "-----------------");
-        System.out.println("Enter the nr to:");
-        System.out.println("1: Download from the server");
-        System.out.println("2: Upload to the server");
-        System.out.println("3: Delete from the server");
-        System.out.println("4: Delete from the client");
-        System.out.println("5: Exit");
-        System.out.println("-----------------");
+    public CompletableFuture<String> delete(String fileName) {
+        return start(new MessageRequest(), (connection, requestId) ->
+                connection.send(Frame.DELETE, requestId, fileName));
     }
 
-    /** Download a text file from the server.
+    /** Downloads many files from the server in one request. A file that
+     *  fails does not stop the others.
+     *
+     * @param names The names of the files, or globs such as *.conf that
+     *        the server matches against its files
+     * @param directory Where the files are written, each one under its name
+     * @return What became of every file, or a RequestFailedException
      */
-    private void downloadFileFromServer() {
+    public CompletableFuture<BulkResult> downloadAll(List<String> names, Path directory) {
+        byte[] payload;
+        try {
+            payload = bulkPayload(names);
+        } catch (IOException x) {
+            return failed(x);
+        }
+        return start(new BulkDownloadRequest(directory), (connection, requestId) ->
+                connection.send(Frame.DOWNLOAD, Frame.BULK, requestId, payload, 0, payload.length));
+    }
 
-        // Get the file name for the requested file.
-        System.out.println("Enter the file name that you wish to download:");
-        Scanner scanner = new Scanner(System.in);
-        String fileName = scanner.nextLine();
+    /** Deletes many files from the server in one request. A file that
+     *  fails does not stop the others.
+     *
+     * @param names The names of the files, or globs that the server
+     *        matches against its files
+     * @return What became of every file, or a RequestFailedException
+     */
+    public CompletableFuture<BulkResult> deleteAll(List<String> names) {
+        byte[] payload;
+        try {
+            payload = bulkPayload(names);
+        } catch (IOException x) {
+            return failed(x);
+        }
+        return start(new BulkRequest(), (connection, requestId) ->
+                connection.send(Frame.DELETE, Frame.BULK, requestId, payload, 0, payload.length));
+    }
 
-        // Send the request to the server.
-        socketOutput.println(DOWNLOAD);
-        // Send the filename.
-        socketOutput.println(fileName);
-        // End the request.
-        socketOutput.println(DATA_NAME_SENT);
+    /** @return The names, one per line
+     */
+    private static byte[] bulkPayload(List<String> names) throws IOException {
+        for (String name : names) {
+            if (name.indexOf('\n') >= 0) {
+                throw new IOException("The file name " + name + " can not be used.");
+            }
+        }
+        return Frame.utf8(String.join("\n", names));
+    }
 
+    /** Checks that the server still answers on the connection.
+     *
+     * @return Completes when the server has answered
+     */
+    public CompletableFuture<String> ping() {
+        return start(new MessageRequest(), (connection, requestId) ->
+                connection.send(Frame.PING, requestId, ""));
+    }
 
-        // Downloading the file by copying the text from the text file
-        // and then writing that text to a new text file.
-        try{
+    /** Sends the frames of a request.
+     */
+    private interface RequestSender {
+        void send(Connection connection, int requestId) throws IOException;
+    }
 
-            String temp = socketInput.readLine();
+    /** Hands a request to the connection, which sends it on a sender
+     *  thread once it has room for it.
+     */
+    private <T> CompletableFuture<T> start(PendingRequest<T> request, RequestSender sender) {
+        Connection current = connection;
+        if (current == null) {
+            request.fail(new IOException("The client is not connected to the server."));
+            return request.result;
+        }
+        current.outstanding.add(request.result);
+        request.result.whenComplete((result, x) -> current.outstanding.remove(request.result));
+        current.start(request, sender);
+        return request.result;
+    }
+
+    private static <T> CompletableFuture<T> failed(IOException x) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(x);
+        return result;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException x) {
+            // The file was only read.
+        }
+    }
+
+    /** Loads the keystore and truststore of the client once. The
+     *  stores are watched, so that a renewed certificate is used by
+     *  the next connection.
+     *
+     * @return The provider of the client's SSLContext
+     */
+    static SslContextProvider createSslContextProvider() throws Exception {
+        // The sessions of the context are offered to the server when the client
+        // connects again, TLS 1.2 by session id and TLS 1.3 by session ticket.
+        SslContextProvider provider = new SslContextProvider(KEYSTORE, TRUSTSTORE, STOREPASSWD, ALIASPASSWD,
+                SESSION_CACHE_SIZE, SESSION_TIMEOUT_SECONDS);
+        provider.watch();
+        return provider;
+    }
+
+    /** Connects to the server with TLS and does the handshake.
+     *
+     * @return The connected SSL socket
+     */
+    private SSLSocket connectTLS() throws Exception {
+        if (sslContexts == null) {
+            sslContexts = createSslContextProvider();
+        }
+
+        // The client needs an SSLSocketFactory object.
+        SSLSocketFactory sslFact = sslContexts.get().getSocketFactory();
+
+        // With the factory object available, the required SSLSocket object is created to connect
+        // with the specified host using the port identified. Only the protocols and cipher suites
+        // of the TlsPolicy are offered to the server, the fastest on this CPU first:
+        long started = System.currentTimeMillis();
+        SSLSocket client =  (SSLSocket)sslFact.createSocket(host, port);
+        // The frames are flushed whole, so nothing is gained by waiting to fill a packet.
+        client.setTcpNoDelay(true);
+        TlsPolicy.apply(client);
+        client.startHandshake();
 
-            // Check if the file exists.
-            if(!temp.equals(ERROR)){
+        // A resumed session keeps the creation time of the session it was resumed from,
+        // which may have been made by another client of the same SSLContext.
+        SSLSession session = client.getSession();
+        resumed = session.getCreationTime() < started;
+        if (resumed) {
+            System.out.println("The TLS session was resumed, " + TlsPolicy.describe(session) + ".");
+        }else{
+            System.out.println("The SSL/TLS handshake was completed, " + TlsPolicy.describe(session) + ".");
+        }
+        return client;
+    }
 
-                StringBuilder stringBuilder = new StringBuilder();
+    /** Connects to a plaintext server, which only accepts
+     *  clients on the same host.
+     *
+     * @return The connected socket
+     */
+    private Socket connectPlaintext() throws IOException {
+        if (!host.isLoopbackAddress()) {
+            throw new IOException("Plaintext connections are only allowed to the loopback interface.");
+        }
+        System.out.println("Warning: the connection to the server is not encrypted.");
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * A connection to the server. Its reader thread reads the replies
+     * and hands every frame to the request with the same id.
+     */
+    private class Connection implements Runnable {
+        private final Socket socket;
+        // These are used to receive and send information between the client and the server.
+        private final FrameInputStream socketInput;
+        private final FrameOutputStream socketOutput;
+        // The requests that have been sent and wait for their replies.
+        private final Map<Integer, PendingRequest<?>> pending = new ConcurrentHashMap<>();
+        // The requests that wait for room, and the ones that are being sent or
+        // wait for their replies, which are at most MAX_REQUESTS_IN_FLIGHT. Guarded by this.
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight;
+        // The results of all requests that were started and are not done, sent or not.
+        final Set<CompletableFuture<?>> outstanding = ConcurrentHashMap.newKeySet();
+        // Set by the reader when the connection is lost.
+        volatile IOException failure;
+        // Set when a frame could not be written, the socket can not be used any more.
+        private volatile boolean broken;
+        // Set when the server has accepted compression.
+        volatile boolean compress;
+        private final int number = CONNECTIONS.incrementAndGet();
+        // Send the requests, so the callers do not wait for the connection,
+        // at most MAX_REQUESTS_IN_FLIGHT at a time. Shut down by close().
+        private final ExecutorService senders = Executors.newCachedThreadPool(new ClientThreadFactory("sender-" + number));
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.socketInput = new FrameInputStream(socket.getInputStream());
+            this.socketOutput = new FrameOutputStream(socket.getOutputStream());
+        }
 
-                // Reading the text from the file, which is on the server.
-                while(!temp.equals(DATA_TEXT_SENT)) {
-                    // Build the string with the text from the file.
-                    stringBuilder.append(temp);
-                    // Iterate.
-                    temp = socketInput.readLine();
+        /** Starts the thread that reads the replies, named after the connection.
+         */
+        void startReader() {
+            Thread reader = new Thread(this, "SecureAdditionClient-reader-" + number);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /** Sends a request on a sender thread once fewer than
+         *  MAX_REQUESTS_IN_FLIGHT requests are waiting for their replies,
+         *  until then it waits in the queue without a thread.
+         */
+        void start(PendingRequest<?> request, RequestSender sender) {
+            Runnable task = () -> send(request, sender);
+            synchronized (this) {
+                if (inFlight >= MAX_REQUESTS_IN_FLIGHT) {
+                    waiting.add(task);
+                    return;
+                }
+                inFlight++;
+            }
+            run(task);
+        }
+
+        /** Gives the place of a request that is done to the next one in the queue.
+         */
+        private void released() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
                 }
+            }
+            run(next);
+        }
 
-                String fileTextContent = stringBuilder.toString();
+        /** Runs a request that has a place on a sender thread.
+         */
+        private void run(Runnable task) {
+            try {
+                senders.execute(task);
+            } catch (RejectedExecutionException x) {
+                // The client is closed, the request fails when it finds the connection closed.
+                close();
+                task.run();
+            }
+        }
 
-                // Creating a new file with the text taken from above.
-                try{
-                    BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter("files/" + fileName));
-                    // Write the whole string to the newly created file.
-                    bufferedWriter.write(fileTextContent, 0, fileTextContent.length());
-                    bufferedWriter.close();
+        private void send(PendingRequest<?> request, RequestSender sender) {
+            int requestId = nextRequestId.getAndIncrement();
+            pending.put(requestId, request);
+            // The reader may have failed the pending requests before this one was added.
+            if (failure != null && pending.remove(requestId) != null) {
+                released();
+                request.fail(failure);
+                return;
+            }
 
-                    System.out.println("The file " + fileName + " has been downloaded.");
+            try {
+                sender.send(this, requestId);
+            } catch (IOException x) {
+                if (broken) {
+                    // The state of the request on the server is unknown, the reader fails
+                    // all requests of the connection once the socket is closed.
+                    close();
+                    return;
+                }
+                // Only this request failed, a file of the client could not be read. The
+                // server stops its upload and answers, which gives the place back.
+                request.fail(x);
+                try {
+                    send(Frame.ERROR, requestId, "The client could not send the rest of the request.");
+                } catch (IOException y) {
+                    close();
+                }
+            }
+        }
 
-                }catch (IOException x) {
-                    System.out.println("An error occurred in the client when trying to write the downloaded file.");
-                    //System.out.println(x);
-                    //x.printStackTrace();
+        /** Writes one frame. The frames of different requests may
+         *  follow each other in any order, but never mix.
+         */
+        void send(int opcode, int flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+            synchronized (socketOutput) {
+                try {
+                    socketOutput.writeFrame(opcode, flags, requestId, payload, offset, length);
+                } catch (IOException x) {
+                    broken = true;
+                    throw x;
                 }
+            }
+        }
 
-            }else{
-                // Print the error message from the server.
-                System.out.println(socketInput.readLine());
+        void send(int opcode, int requestId, String text) throws IOException {
+            byte[] payload = Frame.utf8(text);
+            send(opcode, 0, requestId, payload, 0, payload.length);
+        }
+
+        /** Reads the replies until the connection is closed.
+         */
+        public void run() {
+            IOException error;
+            try {
+                Frame frame;
+                while ((frame = socketInput.readFrame()) != null) {
+                    PendingRequest<?> request = pending.get(frame.requestId);
+                    if (request == null) {
+                        throw new ProtocolException("Unexpected reply to request " + frame.requestId + ".");
+                    }
+                    if (request.onFrame(frame)) {
+                        pending.remove(frame.requestId);
+                        released();
+                    }
+                }
+                error = new EOFException("The server has closed the connection.");
+            } catch (IOException x) {
+                error = x;
             }
 
-            // Print the error message from the server if an error has occurred.
-            if(socketInput.readLine().equals(ERROR)){
-                System.out.println(socketInput.readLine());
+            failure = error;
+            close();
+            for (Integer requestId : new ArrayList<>(pending.keySet())) {
+                PendingRequest<?> request = pending.remove(requestId);
+                if (request != null) {
+                    released();
+                    request.fail(error);
+                }
             }
+            // The queued requests are sent by released() in turn and find the failure.
+        }
 
-        }catch (IOException x) {
-            System.out.println("An error occurred in the client when trying to download the file " + fileName + ".");
-            //System.out.println(x);
-            //x.printStackTrace();
+        /** Waits until all requests that were started are done.
+         */
+        void awaitRequests() {
+            List<CompletableFuture<?>> results = new ArrayList<>(outstanding);
+            try {
+                CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).join();
+            } catch (CompletionException | CancellationException x) {
+                // Failed requests are done as well.
+            }
         }
 
+        void close() {
+            senders.shutdown();
+            try {
+                socket.close();
+            } catch (IOException x) {
+                // Nothing more can be done with this connection.
+            }
+        }
     }
 
-    /** Upload a text file to the server.
+    /**
+     * A request that waits for its reply.
      */
-    private void uploadFileToServer() {
-        System.out.println("Enter the file name that you wish to upload to the server:");
-        Scanner scanner = new Scanner(System.in);
-        String fileName = scanner.nextLine();
+    private abstract static class PendingRequest<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
 
-        // Read the text from the file and send to the server.
-        try {
-            // Try to read the file, it will throw an exception if the file does not exist.
-            BufferedReader bufferedReader = new BufferedReader(new FileReader("files/"  + fileName));
+        /** Handles the next frame of the reply, on the reader thread.
+         *
+         * @return true when the reply is complete
+         */
+        abstract boolean onFrame(Frame frame);
 
-            // If the file has been found then send the request
-            // to the server that the client wants to upload a file.
-            socketOutput.println(UPLOAD);
-            socketOutput.println(fileName);
-            // Notify the server that the file name has been sent.
-            socketOutput.println(DATA_NAME_SENT);
+        /** Called when the request can not be completed.
+         */
+        void fail(IOException x) {
+            result.completeExceptionally(x);
+        }
 
-            String fileText;
-            // Read the text. "readLine" returns null when reached the end of the line.
-            while ((fileText = bufferedReader.readLine()) != null) {
-                // Send the text to the server.
-                socketOutput.println(fileText);
+        /** @return An error for a frame that does not belong in the reply
+         */
+        IOException unexpected(Frame frame) {
+            return new ProtocolException("Unexpected frame " + frame.opcode + " in the reply to request " + frame.requestId + ".");
+        }
+    }
+
+    /**
+     * A request that is answered with FINISHED or ERROR and a message.
+     */
+    private static class MessageRequest extends PendingRequest<String> {
+        boolean onFrame(Frame frame) {
+            if (frame.opcode == Frame.FINISHED) {
+                result.complete(frame.text());
+            }
+            else if (frame.opcode == Frame.ERROR) {
+                fail(new RequestFailedException(frame.text()));
+            }else{
+                fail(unexpected(frame));
             }
-            // Notify the server that all of the text from the file has been sent.
-            socketOutput.println(DATA_TEXT_SENT);
+            return true;
+        }
+    }
 
-            // Print the message from the server if the file was successfully uploaded or not.
-            if(socketInput.readLine().equals(FINISHED_REQUEST) || socketInput.readLine().equals(ERROR)){
-                System.out.println(socketInput.readLine());
+    /**
+     * A SUMS request, the checksums arrive in DATA frames before the size.
+     */
+    private static class ChecksumRequest extends PendingRequest<ChunkChecksums> {
+        private final boolean digests;
+        // The payloads of the DATA frames one after the other.
+        private byte[] records = new byte[0];
+        private int length;
+
+        ChecksumRequest(boolean digests) {
+            this.digests = digests;
+        }
+
+        boolean onFrame(Frame frame) {
+            switch (frame.opcode) {
+                case Frame.DATA:
+                    if (length + frame.length > records.length) {
+                        records = Arrays.copyOf(records, Math.max(length + frame.length, 2 * records.length));
+                    }
+                    System.arraycopy(frame.payload, 0, records, length, frame.length);
+                    length += frame.length;
+                    return false;
+                case Frame.FINISHED:
+                    long size;
+                    try {
+                        size = Long.parseLong(frame.text());
+                    } catch (NumberFormatException x) {
+                        fail(unexpected(frame));
+                        return true;
+                    }
+                    ChunkChecksums checksums = ChunkChecksums.decode(size, records, length, digests);
+                    if (checksums == null) {
+                        fail(new ProtocolException("The server sent " + length + " bytes of checksums for a file of " + size + " bytes."));
+                    }else{
+                        result.complete(checksums);
+                    }
+                    return true;
+                case Frame.ERROR:
+                    fail(new RequestFailedException(frame.text()));
+                    return true;
+                default:
+                    fail(unexpected(frame));
+                    return true;
             }
+        }
+    }
 
-        } catch (IOException x) {
-            System.out.println("The file can " + fileName + " not be found.");
-            socketOutput.flush();
-            //System.out.println(x);
-            //x.printStackTrace();
+    /**
+     * A LIST request, every line of the DATA frames is a file.
+     */
+    private static class ListRequest extends PendingRequest<List<RemoteFile>> {
+        private final List<RemoteFile> files = new ArrayList<>();
+
+        boolean onFrame(Frame frame) {
+            switch (frame.opcode) {
+                case Frame.DATA:
+                    try {
+                        for (String line : frame.text().split("\n")) {
+                            files.add(RemoteFile.parse(line));
+                        }
+                    } catch (IllegalArgumentException x) {
+                        fail(new ProtocolException("The server sent a line that is not a file."));
+                        return true;
+                    }
+                    return false;
+                case Frame.FINISHED:
+                    result.complete(files);
+                    return true;
+                case Frame.ERROR:
+                    fail(new RequestFailedException(frame.text()));
+                    return true;
+                default:
+                    fail(unexpected(frame));
+                    return true;
+            }
         }
     }
 
-    /** Delete a text file from the server.
+    /**
+     * A bulk request, every file is answered with an ENTRY before the FINISHED.
      */
-    private void deleteFileFromServer() {
-        try {
-            System.out.println("Enter the file name that you wish to delete from the server:");
-            Scanner scanner = new Scanner(System.in);
-            String fileName = scanner.nextLine();
-
-            // Send the request to the server that the
-            // client wants to delete a file from the server.
-            socketOutput.println(DELETE);
-            socketOutput.println(fileName);
-            socketOutput.println(DATA_NAME_SENT);
-
-            // Print the message from the server if the file was successfully removed or not.
-            String temp = socketInput.readLine();
-            boolean running = true;
-
-            while(running){
-                // Check if the client has received any commands from the server.
-                if(temp.equals(FINISHED_REQUEST) || temp.equals(ERROR)){
-                    // Print the message from the server.
-                    System.out.println(socketInput.readLine());
-                    running = false;
+    private static class BulkRequest extends PendingRequest<BulkResult> {
+        final List<String> succeeded = new ArrayList<>();
+        // Also filled by the sender with the files of an upload that could not be read.
+        final Map<String, String> failed = new ConcurrentHashMap<>();
+
+        boolean onFrame(Frame frame) {
+            switch (frame.opcode) {
+                case Frame.ENTRY:
+                    onEntry(frame);
+                    return false;
+                case Frame.FINISHED:
+                    onFinished();
+                    result.complete(new BulkResult(succeeded, new LinkedHashMap<>(failed), frame.text()));
+                    return true;
+                case Frame.ERROR:
+                    fail(new RequestFailedException(frame.text()));
+                    return true;
+                default:
+                    fail(unexpected(frame));
+                    return true;
+            }
+        }
+
+        /** Notes a file, an ENTRY with the FAILED flag has the message on its second line.
+         */
+        void onEntry(Frame frame) {
+            String text = frame.text();
+            if ((frame.flags & Frame.FAILED) != 0) {
+                int newline = text.indexOf('\n');
+                failed.put(newline < 0 ? text : text.substring(0, newline), newline < 0 ? "" : text.substring(newline + 1));
+            }else{
+                succeeded.add(text);
+            }
+        }
+
+        /** Called before the result is completed.
+         */
+        void onFinished() {
+        }
+    }
+
+    /**
+     * A bulk download, the DATA frames after an ENTRY are written to the
+     * file of that name as they arrive, and the file is moved into place
+     * when the next ENTRY or the FINISHED arrives.
+     */
+    private static class BulkDownloadRequest extends BulkRequest {
+        private final Path directory;
+        // The file that is being received and its name, null between files.
+        private DownloadRequest current;
+        private String currentName;
+
+        BulkDownloadRequest(Path directory) {
+            this.directory = directory;
+        }
+
+        boolean onFrame(Frame frame) {
+            if (frame.opcode == Frame.DATA) {
+                if (current == null) {
+                    fail(unexpected(frame));
+                    return true;
+                }
+                current.write(frame);
+                return false;
+            }
+            return super.onFrame(frame);
+        }
+
+        void onEntry(Frame frame) {
+            finishFile();
+            if ((frame.flags & Frame.FAILED) != 0) {
+                super.onEntry(frame);
+                return;
+            }
+            currentName = frame.text();
+            Path target;
+            try {
+                target = directory.resolve(currentName);
+            } catch (InvalidPathException x) {
+                target = null;
+            }
+            // The names of the server only ever reach files in the directory.
+            if (target == null || !target.normalize().startsWith(directory.normalize())
+                    || target.normalize().equals(directory.normalize())) {
+                failed.put(currentName, "The file name " + currentName + " can not be used.");
+                current = new DownloadRequest(null, -1, -1);
+                current.error = new IOException("The file name can not be used.");
+                return;
+            }
+            current = new DownloadRequest(target, -1, -1);
+        }
+
+        void onFinished() {
+            finishFile();
+        }
+
+        private void finishFile() {
+            if (current == null) {
+                return;
+            }
+            boolean usable = current.target != null;
+            current.finish();
+            if (usable) {
+                if (current.error == null) {
+                    succeeded.add(currentName);
                 }else{
-                    // Iterate.
-                    temp = socketInput.readLine();
+                    failed.put(currentName, current.error.getMessage());
                 }
             }
+            current = null;
+        }
 
-        }catch (IOException x) {
-            System.out.println("An error occurred when trying to delete the file from the server.");
-            //System.out.println(x);
-            //x.printStackTrace();
+        void fail(IOException x) {
+            if (current != null) {
+                current.abort();
+                current = null;
+            }
+            super.fail(x);
         }
     }
 
-    /** Delete a text file from the client.
+    /**
+     * A download, the DATA frames are written to the file as they arrive.
      */
-    private void deleteFileFromClient(){
-        System.out.println("Enter the file name that you wish to delete from the client:");
-        Scanner scanner = new Scanner(System.in);
-        String fileName = scanner.nextLine();
+    private static class DownloadRequest extends PendingRequest<Path> {
+        private final Path target;
+        // Where a range starts in the file and the size of the whole file, -1 for a whole file.
+        private final long position;
+        private final long size;
+        private OverlappedFileWriter writer;
+        // The partial file of a whole file, one of its own for every download.
+        private Path part;
+        // Set when the file could not be written, the rest of the data is ignored.
+        private IOException error;
+
+        DownloadRequest(Path target, long position, long size) {
+            this.target = target;
+            this.position = position;
+            this.size = size;
+        }
 
-        if(!fileName.equals("")){
+        /** A whole file is written to a partial file of its own, which takes the
+         *  place of the target when it is complete. A range is written into the target.
+         */
+        private OverlappedFileWriter open() throws IOException {
+            if (position >= 0) {
+                return new OverlappedFileWriter(target, position, size);
+            }
+            part = OverlappedFileWriter.newPartOf(target);
             try {
-                // Find the file and delete it.
-                File file = new File("files/" + fileName);
+                return new OverlappedFileWriter(part);
+            } catch (IOException x) {
+                Files.deleteIfExists(part);
+                throw x;
+            }
+        }
 
-                // Check if the file can be deleted.
-                if(file.delete()){
-                    System.out.println("The file " + fileName + " was deleted from the client.");
-                }else{
-                    System.out.println("An error occurred when trying to delete the file " + fileName + " from the client.");
+        boolean onFrame(Frame frame) {
+            switch (frame.opcode) {
+                case Frame.DATA:
+                    write(frame);
+                    return false;
+                case Frame.FINISHED:
+                    finish();
+                    return true;
+                case Frame.ERROR:
+                    fail(new RequestFailedException(frame.text()));
+                    return true;
+                default:
+                    fail(unexpected(frame));
+                    return true;
+            }
+        }
+
+        /** The file is only created once the server sends its content, so a
+         *  file that is there already is kept when the server has an error.
+         */
+        private void write(Frame frame) {
+            if (error != null) {
+                return;
+            }
+            try {
+                if (writer == null) {
+                    writer = open();
                 }
+                Frame data = (frame.flags & Frame.COMPRESSED) != 0 ? ChunkCompressor.inflate(frame) : frame;
+                writer.write(data.payload, 0, data.length);
+            } catch (ProtocolException x) {
+                error = x;
+                abort();
+            } catch (IOException | InvalidPathException x) {
+                error = new IOException("An error occurred in the client when trying to write the downloaded file.", x);
+                abort();
+            }
+        }
+
+        private void finish() {
+            if (error == null) {
+                try {
+                    // An empty file has no DATA frames.
+                    if (writer == null) {
+                        writer = open();
+                    }
+                    writer.close();
+                    writer = null;
+                    if (position < 0) {
+                        OverlappedFileWriter.replace(part, target);
+                    }
+                    result.complete(target);
+                    return;
+                } catch (IOException x) {
+                    error = new IOException("An error occurred in the client when trying to write the downloaded file.", x);
+                }
+            }
+            fail(error);
+        }
+
+        void fail(IOException x) {
+            abort();
+            super.fail(x);
+        }
 
-            }catch (Exception e) {
-                System.out.println("An error occurred when trying to delete the file " + fileName + " from the client.");
-                //e.printStackTrace();
+        private void abort() {
+            if (writer != null) {
+                writer.abort();
+                writer = null;
             }
         }
     }
 
+    /** Names the threads after the client, they do not keep the program running.
+     */
+    private static class ClientThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String kind;
+
+        ClientThreadFactory(String kind) {
+            this.kind = kind;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SecureAdditionClient-" + kind + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** The test method for the class
+     * @param args[0] Optional port number in place of
+     *        the default
+     * @param args[1] Optional host name of the server
+     * @param args[2] Optional "plaintext" to connect without
+     *        TLS to a plaintext server on this host
+     */
     public static void main(String[] args) {
 
         try {
-            InetAddress host = InetAddress.getLocalHost();
+            boolean plaintext = args.length > 2 && args[2].equals("plaintext");
+            // A plaintext server only listens on the loopback interface.
+            InetAddress host = plaintext ? InetAddress.getLoopbackAddress() : InetAddress.getLocalHost();
             int port = DEFAULT_PORT;
             if ( args.length > 0 ) {
                 port = Integer.parseInt( args[0] );
@@ -338,8 +1239,8 @@ public class SecureAdditionClient {
             if ( args.length > 1 ) {
                 host = InetAddress.getByName( args[1] );
             }
-            SecureAdditionClient addClient = new SecureAdditionClient( host, port );
-            addClient.run();
+            SecureAdditionClient addClient = new SecureAdditionClient( host, port, plaintext );
+            new ClientMenu(addClient).run();
         }
         catch ( UnknownHostException uhx ) {
             System.out.println( uhx );
@@ -0,0 +1,102 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Seeds the partial file of a download from an old copy and checks which chunks were found.
+ */
+class DeltaSyncTest {
+    private static final int CHUNK = Frame.CHUNK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Seeds the partial file with the old copy for the new file of the server.
+     *
+     * @return The chunks of the new file that the partial file has
+     */
+    private boolean[] seed(byte[] old, byte[] server, long expectedReused) throws IOException {
+        Path copy = Files.write(directory.resolve("copy"), old);
+        Path part = directory.resolve("copy.part");
+        ChunkChecksums sums = ChunkChecksums.of(Files.write(directory.resolve("server"), server), true);
+        assertEquals(expectedReused, DeltaSync.seed(copy, part, sums));
+
+        ChunkChecksums seeded = ChunkChecksums.of(part);
+        boolean[] found = new boolean[sums.chunks()];
+        for (int i = 0; i < found.length; i++) {
+            found[i] = sums.sameChunk(seeded, i);
+        }
+        return found;
+    }
+
+    @Test
+    void findsTheChunksOfAFileThatWasChangedInPlace() throws IOException {
+        byte[] old = random(10 * CHUNK, 1);
+        byte[] server = old.clone();
+        server[3 * CHUNK + 17] ^= 1;
+        boolean[] found = seed(old, server, 9L * CHUNK);
+        for (int i = 0; i < found.length; i++) {
+            assertEquals(i != 3, found[i], "chunk " + i);
+        }
+    }
+
+    @Test
+    void findsTheChunksThatMovedAfterAnInsert() throws IOException {
+        byte[] old = random(10 * CHUNK, 2);
+        byte[] server = new byte[old.length + 777];
+        System.arraycopy(old, 0, server, 777, old.length);
+        // The first chunk has the inserted bytes and the last one is shorter, the others are whole chunks of the old copy.
+        boolean[] found = seed(old, server, 9L * CHUNK);
+        assertFalse(found[0]);
+        for (int i = 1; i < 10; i++) {
+            assertTrue(found[i], "chunk " + i);
+        }
+        assertFalse(found[10]);
+    }
+
+    @Test
+    void findsTheChunksThatMovedAfterADelete() throws IOException {
+        byte[] old = random(8 * CHUNK, 3);
+        byte[] server = new byte[old.length - 100];
+        System.arraycopy(old, 0, server, 0, 2 * CHUNK);
+        System.arraycopy(old, 2 * CHUNK + 100, server, 2 * CHUNK, server.length - 2 * CHUNK);
+        boolean[] found = seed(old, server, 7L * CHUNK);
+        assertTrue(found[0]);
+        assertTrue(found[1]);
+        assertTrue(found[2]);
+        assertFalse(found[7]);
+    }
+
+    @Test
+    void findsTheSameChunkAtSeveralPositions() throws IOException {
+        byte[] chunk = random(CHUNK, 4);
+        byte[] old = Arrays.copyOf(chunk, CHUNK + 5);
+        byte[] server = new byte[3 * CHUNK];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(chunk, 0, server, i * CHUNK, CHUNK);
+        }
+        boolean[] found = seed(old, server, 3L * CHUNK);
+        assertTrue(found[0] && found[1] && found[2]);
+    }
+
+    @Test
+    void findsNothingInAnUnrelatedCopy() throws IOException {
+        boolean[] found = seed(random(4 * CHUNK, 5), random(4 * CHUNK, 6), 0);
+        for (boolean chunk : found) {
+            assertFalse(chunk);
+        }
+    }
+}
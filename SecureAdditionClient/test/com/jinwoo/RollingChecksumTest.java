@@ -0,0 +1,65 @@
+package com.jinwoo;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the rolling checksum with java.util.zip.CRC32 of the same window.
+ */
+class RollingChecksumTest {
+
+    private static int crc32(byte[] bytes, int offset) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, RollingChecksum.WINDOW);
+        return (int) crc.getValue();
+    }
+
+    @Test
+    void isTheCrc32OfTheWindowAtEveryPosition() {
+        byte[] bytes = new byte[RollingChecksum.WINDOW + 5000];
+        new Random(1).nextBytes(bytes);
+        RollingChecksum rolling = new RollingChecksum();
+        for (int i = 0; i < RollingChecksum.WINDOW; i++) {
+            rolling.add(bytes[i]);
+        }
+        assertEquals(crc32(bytes, 0), rolling.value());
+        for (int start = 1; start + RollingChecksum.WINDOW <= bytes.length; start++) {
+            rolling.roll(bytes[start - 1], bytes[start - 1 + RollingChecksum.WINDOW]);
+            assertEquals(crc32(bytes, start), rolling.value(), "at " + start);
+        }
+    }
+
+    @Test
+    void startsOverAfterAReset() {
+        byte[] bytes = new byte[2 * RollingChecksum.WINDOW];
+        new Random(2).nextBytes(bytes);
+        RollingChecksum rolling = new RollingChecksum();
+        for (int i = 0; i < RollingChecksum.WINDOW; i++) {
+            rolling.add(bytes[i]);
+        }
+        rolling.reset();
+        for (int i = RollingChecksum.WINDOW; i < bytes.length; i++) {
+            rolling.add(bytes[i]);
+        }
+        assertEquals(crc32(bytes, RollingChecksum.WINDOW), rolling.value());
+    }
+
+    @Test
+    void rollsOverWindowsOfOneByteValue() {
+        // The bytes above 127 are negative in Java, every one of them leaves the window once.
+        byte[] bytes = new byte[RollingChecksum.WINDOW + 256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        RollingChecksum rolling = new RollingChecksum();
+        for (int i = 0; i < RollingChecksum.WINDOW; i++) {
+            rolling.add(bytes[i]);
+        }
+        for (int start = 1; start <= 256; start++) {
+            rolling.roll(bytes[start - 1], bytes[start - 1 + RollingChecksum.WINDOW]);
+        }
+        assertEquals(crc32(bytes, 256), rolling.value());
+    }
+}
@@ -0,0 +1,81 @@
+package com.jinwoo;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of one size.
+ *
+ * Connections only hold buffers while they have data in them, an idle
+ * connection gives its buffers back so that many idle clients do not
+ * keep many buffers allocated.
+ *
+ * A TLS session may need larger records than the one that the pool was
+ * sized after, the pool then grows and hands out only larger buffers.
+ */
+class BufferPool {
+    private volatile int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize The capacity of every buffer in the pool
+     * @param maxPooled How many free buffers are kept for reuse
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /** @return A cleared buffer, taken from the pool if one is free
+     */
+    ByteBuffer acquire() {
+        int size = bufferSize;
+        ByteBuffer buffer;
+        while ((buffer = free.poll()) != null) {
+            pooled.decrementAndGet();
+            // The buffers from before the pool has grown are dropped.
+            if (buffer.capacity() >= size) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /** Gives a buffer back to the pool.
+     *
+     * @param buffer A buffer that is no longer used by its owner
+     */
+    void release(ByteBuffer buffer) {
+        // Buffers of another size, from before the pool has grown, are not pooled.
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        }else{
+            pooled.decrementAndGet();
+        }
+    }
+
+    /** Has the pool hand out buffers of at least the size from now on.
+     *
+     * @param size The capacity that a TLS session needs
+     */
+    synchronized void grow(int size) {
+        if (size > bufferSize) {
+            bufferSize = size;
+        }
+    }
+
+    /** @return The capacity of the buffers in the pool
+     */
+    int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,531 @@
+package com.jinwoo;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Keeps the content of the files once per chunk, so content that is
+ * uploaded under many names, or again with a few changes, is only
+ * written and stored once. It is used with -Dsecureaddition.storage=chunks.
+ *
+ * The files directory holds three directories:
+ *
+ *   chunks/ab/abcd...   the chunks, named by the SHA-256 of their content
+ *   manifests/name      the size, time and SHA-256 of a file and its chunks
+ *   incoming/name.part  the partial files of the uploads, a whole
+ *                       upload has a number before .part
+ *
+ * A file is cut into chunks where its content says so and not at fixed
+ * positions: a gear hash of the last 64 bytes is computed at every byte,
+ * and a chunk ends where its top bits are 0. Bytes that are inserted into
+ * a file therefore only change the chunks around them, the chunks after
+ * them are found again. The chunks are 64 KiB on average, like the DATA
+ * frames, and between MIN_CHUNK and MAX_CHUNK long.
+ *
+ * The manifests are read into memory when the server starts, and every
+ * chunk counts the manifests that refer to it. A file that is replaced
+ * or deleted gives its chunks back once no download reads it any more,
+ * and a chunk that nothing refers to is deleted. Chunks that were left
+ * behind when the server stopped are deleted when it starts again.
+ *
+ * The store belongs to one server, the files can not be changed from
+ * outside of it.
+ */
+class ChunkStore implements FileStore {
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+    // A chunk ends where these bits of the hash are 0, after 64 KiB on average.
+    private static final long BOUNDARY_MASK = 0xffffL << 48;
+    // The bytes that the gear hash depends on.
+    private static final int HASH_WINDOW = 64;
+    // The buffer that a partial file is read through when it is put.
+    private static final int READ_SIZE = 1024 * 1024;
+
+    // A random number for every byte, the same on every run so the same content gives the same chunks.
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5ecadd17L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Path chunks;
+    private final Path manifests;
+    private final Path incoming;
+    // The files by their names and the manifests that refer to every chunk, guarded by this.
+    private final Map<String, Manifest> files = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+
+    /**
+     * Constructor, reads the manifests and deletes the chunks that none of them refers to.
+     *
+     * @param directory The files directory
+     */
+    ChunkStore(Path directory) throws IOException {
+        this.chunks = directory.resolve("chunks");
+        this.manifests = directory.resolve("manifests");
+        this.incoming = directory.resolve("incoming");
+        Files.createDirectories(chunks);
+        Files.createDirectories(manifests);
+        Files.createDirectories(incoming);
+
+        try (DirectoryStream<Path> stored = Files.newDirectoryStream(manifests)) {
+            for (Path path : stored) {
+                String encoded = path.getFileName().toString();
+                if (encoded.endsWith(".tmp")) {
+                    Files.delete(path);
+                    continue;
+                }
+                try {
+                    Manifest manifest = Manifest.read(path);
+                    files.put(URLDecoder.decode(encoded, "UTF-8"), manifest);
+                    for (String hash : manifest.chunks) {
+                        acquire(hash);
+                    }
+                } catch (IOException | RuntimeException x) {
+                    System.out.println("The manifest " + path + " can not be read, its file is left out.");
+                }
+            }
+        }
+
+        long size = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunks)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> stored = Files.newDirectoryStream(prefix)) {
+                    for (Path chunk : stored) {
+                        if (references.containsKey(chunk.getFileName().toString())) {
+                            size += Files.size(chunk);
+                        }else{
+                            Files.delete(chunk);
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("The store has " + files.size() + " files in " + references.size()
+                + " chunks of " + size + " bytes.");
+    }
+
+    /** @return The name of the manifest of a file, which is a valid file name for any name
+     */
+    private static String encode(String name) {
+        if (name.isEmpty()) {
+            throw new InvalidPathException(name, "The name of a file can not be empty");
+        }
+        try {
+            String encoded = URLEncoder.encode(name, "UTF-8");
+            // Never "." or ".." and never hidden.
+            return encoded.startsWith(".") ? "%2E" + encoded.substring(1) : encoded;
+        } catch (UnsupportedEncodingException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    public Path partOf(String name) {
+        return incoming.resolve(encode(name) + OverlappedFileWriter.PART_SUFFIX);
+    }
+
+    public Path newPart(String name) throws IOException {
+        return Files.createTempFile(incoming, encode(name) + ".", OverlappedFileWriter.PART_SUFFIX);
+    }
+
+    /** Cuts the partial file into chunks, writes the chunks that are not
+     *  stored yet and then the manifest. The chunks that are already
+     *  stored are only counted. A durable put forces the chunks and their
+     *  directories before the manifest, and the manifest before its rename.
+     */
+    public void put(String name, Path part, Set<Path> directories) throws IOException {
+        Path target = manifests.resolve(encode(name));
+        Set<Path> chunkDirectories = directories != null ? new HashSet<>() : null;
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        MessageDigest whole = ChunkChecksums.sha256();
+        MessageDigest sha = ChunkChecksums.sha256();
+        long size = 0;
+        boolean stored = false;
+        try {
+            byte[] chunk = new byte[MAX_CHUNK];
+            int length = 0;
+            long hash = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            byte[] bytes = buffer.array();
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.READ)) {
+                int count;
+                while ((count = channel.read(buffer)) >= 0) {
+                    whole.update(bytes, 0, count);
+                    size += count;
+                    for (int i = 0; i < count; i++) {
+                        chunk[length++] = bytes[i];
+                        // The hash only depends on the last bytes, so the start of a chunk is skipped.
+                        if (length <= MIN_CHUNK - HASH_WINDOW) {
+                            continue;
+                        }
+                        hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+                        if (length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0 || length == MAX_CHUNK) {
+                            store(chunk, length, sha, hashes, chunkDirectories);
+                            lengths.add(length);
+                            length = 0;
+                            hash = 0;
+                        }
+                    }
+                    buffer.clear();
+                }
+            }
+            if (length > 0) {
+                store(chunk, length, sha, hashes, chunkDirectories);
+                lengths.add(length);
+            }
+
+            Manifest manifest = new Manifest(size, FileTime.fromMillis(System.currentTimeMillis()),
+                    ChunkChecksums.hex(whole.digest()), hashes.toArray(new String[0]), lengths);
+            Path temporary = Files.createTempFile(manifests, "manifest", ".tmp");
+            try {
+                manifest.write(temporary);
+                if (directories != null) {
+                    for (Path directory : chunkDirectories) {
+                        GroupCommit.forceDirectory(directory);
+                    }
+                    GroupCommit.force(temporary);
+                }
+                Manifest old;
+                synchronized (this) {
+                    // Moved while holding the lock, so the last manifest on the disk is the one in memory.
+                    OverlappedFileWriter.replace(temporary, target);
+                    old = files.put(name, manifest);
+                    stored = true;
+                    if (old != null) {
+                        retire(old);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            if (directories != null) {
+                directories.add(manifests.toAbsolutePath());
+            }
+        } finally {
+            if (!stored) {
+                synchronized (this) {
+                    release(hashes.toArray(new String[0]));
+                }
+            }
+        }
+        Files.deleteIfExists(part);
+    }
+
+    /** Counts a chunk and writes it unless it is there already.
+     *
+     * @param hashes Where the hash of the chunk is added once it is counted
+     * @param directories null, or the chunk is forced and its directory is added
+     */
+    private void store(byte[] chunk, int length, MessageDigest sha, List<String> hashes,
+            Set<Path> directories) throws IOException {
+        sha.update(chunk, 0, length);
+        String hash = ChunkChecksums.hex(sha.digest());
+        Path path = chunkPath(hash);
+        boolean first;
+        synchronized (this) {
+            first = acquire(hash);
+        }
+        hashes.add(hash);
+        // A chunk that was counted before may still be written by another upload, it is written again then.
+        if (!first && Files.exists(path)) {
+            ServerMetrics.deduplicated(length);
+            if (directories != null) {
+                // It may have been stored by an upload that was not durable.
+                GroupCommit.force(path);
+                directories.add(path.getParent());
+            }
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        Path temporary = Files.createTempFile(path.getParent(), hash, ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                if (directories != null) {
+                    out.force(false);
+                }
+            }
+            OverlappedFileWriter.replace(temporary, path);
+            if (directories != null) {
+                directories.add(path.getParent());
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    public StoredFile open(String name) throws IOException {
+        Manifest manifest;
+        synchronized (this) {
+            manifest = files.get(name);
+            if (manifest == null) {
+                throw new NoSuchFileException(name);
+            }
+            manifest.readers++;
+        }
+        return new ChunkedFile(manifest);
+    }
+
+    public boolean delete(String name) throws IOException {
+        String encoded = encode(name);
+        synchronized (this) {
+            Manifest manifest = files.get(name);
+            if (manifest == null) {
+                return false;
+            }
+            Files.delete(manifests.resolve(encoded));
+            files.remove(name);
+            retire(manifest);
+        }
+        return true;
+    }
+
+    public List<String> list(String glob) throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(files.keySet());
+        }
+        List<String> matches = new ArrayList<>();
+        for (String name : names) {
+            try {
+                if (matcher.matches(Paths.get(name))) {
+                    matches.add(name);
+                }
+            } catch (InvalidPathException x) {
+                // Only fetched by its name.
+            }
+        }
+        return matches;
+    }
+
+    /** Takes a file out of the store, its chunks are given back once no download reads it.
+     */
+    private void retire(Manifest manifest) {
+        manifest.retired = true;
+        if (manifest.readers == 0) {
+            release(manifest.chunks);
+        }
+    }
+
+    /** Counts a reference to a chunk.
+     *
+     * @return true if nothing referred to the chunk before
+     */
+    private boolean acquire(String hash) {
+        return references.merge(hash, 1, Integer::sum) == 1;
+    }
+
+    /** Gives back the references of a file, and deletes the chunks that are not referred to any more.
+     */
+    private void release(String[] hashes) {
+        for (String hash : hashes) {
+            Integer count = references.get(hash);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                references.put(hash, count - 1);
+                continue;
+            }
+            references.remove(hash);
+            try {
+                Files.deleteIfExists(chunkPath(hash));
+            } catch (IOException x) {
+                // Deleted when the server starts again.
+            }
+        }
+    }
+
+    private Path chunkPath(String hash) {
+        return chunks.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * The size, time and hash of a file and the chunks of its content.
+     *
+     * It is stored as text, a line with the size, the time in milliseconds
+     * and the SHA-256, then a line with the hash and length of every chunk.
+     */
+    private static final class Manifest {
+        final long size;
+        final FileTime modified;
+        final String sha256;
+        final String[] chunks;
+        // Where every chunk starts in the file, and one more entry with the size.
+        final long[] offsets;
+        // The downloads that read the file, and whether it has been replaced or deleted, guarded by the store.
+        int readers;
+        boolean retired;
+
+        Manifest(long size, FileTime modified, String sha256, String[] chunks, List<Integer> lengths) {
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+            this.chunks = chunks;
+            this.offsets = new long[chunks.length + 1];
+            for (int i = 0; i < chunks.length; i++) {
+                offsets[i + 1] = offsets[i] + lengths.get(i);
+            }
+            if (offsets[chunks.length] != size) {
+                throw new IllegalArgumentException("The chunks do not add up to the size of the file.");
+            }
+        }
+
+        static Manifest read(Path path) throws IOException {
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String[] header = in.readLine().split(" ");
+                List<String> chunks = new ArrayList<>();
+                List<Integer> lengths = new ArrayList<>();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    chunks.add(line.substring(0, space));
+                    lengths.add(Integer.valueOf(line.substring(space + 1)));
+                }
+                return new Manifest(Long.parseLong(header[0]), FileTime.fromMillis(Long.parseLong(header[1])),
+                        header[2], chunks.toArray(new String[0]), lengths);
+            }
+        }
+
+        void write(Path path) throws IOException {
+            try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                out.write(size + " " + modified.toMillis() + " " + sha256 + "\n");
+                for (int i = 0; i < chunks.length; i++) {
+                    out.write(chunks[i] + " " + (offsets[i + 1] - offsets[i]) + "\n");
+                }
+            }
+        }
+
+        /** @return The chunk that the position is in
+         */
+        int chunkAt(long position) {
+            int found = Arrays.binarySearch(offsets, position);
+            return found >= 0 ? found : -found - 2;
+        }
+    }
+
+    /**
+     * A stored file that is open for reading. Its chunks stay in the store
+     * until it is closed, and the chunk that was read last stays open, as
+     * most reads go on where the last one ended.
+     */
+    private final class ChunkedFile implements StoredFile {
+        private final Manifest manifest;
+        private FileChannel channel;
+        private int current = -1;
+        private boolean closed;
+
+        ChunkedFile(Manifest manifest) {
+            this.manifest = manifest;
+        }
+
+        public long size() {
+            return manifest.size;
+        }
+
+        public FileTime lastModified() {
+            return manifest.modified;
+        }
+
+        public String sha256() {
+            return manifest.sha256;
+        }
+
+        public boolean isCurrent() {
+            synchronized (ChunkStore.this) {
+                return !manifest.retired;
+            }
+        }
+
+        public void read(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (position >= manifest.size) {
+                    throw new EOFException("The file ended before it was sent.");
+                }
+                int chunk = manifest.chunkAt(position);
+                int limit = buffer.limit();
+                buffer.limit((int) Math.min(limit, buffer.position() + manifest.offsets[chunk + 1] - position));
+                try {
+                    FileRequestProcessor.readFully(channel(chunk), buffer, position - manifest.offsets[chunk]);
+                } finally {
+                    buffer.limit(limit);
+                }
+                position = manifest.offsets[chunk + 1];
+            }
+        }
+
+        public void send(int requestId, long position, long length, ResponseWriter out) throws IOException {
+            while (length > 0) {
+                int chunk = manifest.chunkAt(position);
+                long count = Math.min(length, manifest.offsets[chunk + 1] - position);
+                out.sendFile(requestId, channel(chunk), position - manifest.offsets[chunk], count);
+                position += count;
+                length -= count;
+            }
+        }
+
+        private FileChannel channel(int chunk) throws IOException {
+            if (chunk != current) {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                channel = FileChannel.open(chunkPath(manifest.chunks[chunk]), StandardOpenOption.READ);
+                current = chunk;
+            }
+            return channel;
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                synchronized (ChunkStore.this) {
+                    if (--manifest.readers == 0 && manifest.retired) {
+                        release(manifest.chunks);
+                    }
+                }
+            }
+        }
+    }
+}
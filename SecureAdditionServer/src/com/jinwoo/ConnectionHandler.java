@@ -0,0 +1,242 @@
+package com.jinwoo;
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocket;
+
+import static com.jinwoo.SecureAdditionServer.HANDSHAKE_TIMEOUT_SECONDS;
+import static com.jinwoo.SecureAdditionServer.IDLE_TIMEOUT_SECONDS;
+import static com.jinwoo.SecureAdditionServer.READ_TIMEOUT_SECONDS;
+
+/**
+ * Serves the requests of a single client connection.
+ *
+ * Every accepted socket gets its own handler, so the
+ * socketInput and socketOutput streams are never shared
+ * between two clients.
+ *
+ * The reads of the socket time out, so the handler wakes up while its
+ * client is quiet. A client that stops in the middle of a frame or an
+ * upload, or stops reading its downloads, is disconnected after the
+ * read timeout, and one without requests after the idle timeout.
+ */
+class ConnectionHandler implements Runnable {
+    private final Socket incoming;
+    // The TCP socket under the TLS layer, closing it also stops a thread that is stuck writing.
+    private final Socket raw;
+    private final SecureAdditionServer server;
+    private final FileRequestProcessor processor;
+    private final Executor requests;
+    private final TrafficLimits limits;
+
+    FrameInputStream socketInput;
+    FrameOutputStream socketOutput;
+    // Set once the handshake is done, read by the server when it drains the connections.
+    private volatile RequestHandler handler;
+    private StreamResponseWriter writer;
+    // The SO_TIMEOUT of the socket for the frames, -1 until it is first set.
+    private int timeout = -1;
+
+    /**
+     * Constructor
+     *
+     * @param incoming The accepted socket of the client
+     * @param raw The TCP socket of the client, the same as incoming without TLS
+     * @param server The server that accepted the connection
+     * @param processor Carries out the requests of the client
+     * @param requests Runs the downloads and deletes of the client
+     * @param limits The limits that the client shares with the others
+     */
+    ConnectionHandler(Socket incoming, Socket raw, SecureAdditionServer server, FileRequestProcessor processor,
+                      Executor requests, TrafficLimits limits) {
+        this.incoming = incoming;
+        this.raw = raw;
+        this.server = server;
+        this.processor = processor;
+        this.requests = requests;
+        this.limits = limits;
+    }
+
+    /**
+     * Handles all of the requests sent from the client
+     * until it exits or the connection is closed.
+     */
+    public void run() {
+        try {
+            if (incoming instanceof SSLSocket) {
+                // Report what was negotiated, so it can be checked that the fast ciphers are used.
+                SSLSocket socket = (SSLSocket) incoming;
+                long started = ServerMetrics.now();
+                try {
+                    socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(HANDSHAKE_TIMEOUT_SECONDS));
+                    socket.startHandshake();
+                } catch (SocketTimeoutException x) {
+                    ServerMetrics.handshakeFailed();
+                    ServerMetrics.timedOut();
+                    System.out.println("A client did not finish its handshake in time and was disconnected.");
+                    return;
+                } catch (IOException x) {
+                    ServerMetrics.handshakeFailed();
+                    throw x;
+                }
+                ServerMetrics.handshakeFinished(started);
+                System.out.println("A client has connected with " + TlsPolicy.describe(socket.getSession()) + ".");
+            }
+
+            // Reads the frames sent by the client.
+            socketInput = new FrameInputStream(incoming.getInputStream());
+            // Writes the frames of the responses to the client.
+            socketOutput = new FrameOutputStream(incoming.getOutputStream());
+
+            // Only a plaintext socket has a channel, files are sent on it without copying.
+            writer = new StreamResponseWriter(socketOutput, incoming.getChannel());
+            TrafficLimits.Client client = limits.newClient();
+            ResponseWriter out = client.limitsBytes() ? new ThrottledResponseWriter(writer, client) : writer;
+            RequestHandler handler = new RequestHandler(processor, out, requests, client);
+            this.handler = handler;
+            try {
+                // Handles all of the requests sent from the client, until it exits
+                // or closes the connection.
+                long lastFrame = System.nanoTime();
+                while(true){
+                    Frame frame;
+                    try {
+                        setTimeout(handler, System.nanoTime() - lastFrame);
+                        frame = socketInput.readFrame();
+                    } catch (SocketTimeoutException x) {
+                        String reason = timedOut(handler, System.nanoTime() - lastFrame);
+                        if (reason == null) {
+                            if (!handler.isIdle()) {
+                                // A long download does not count as idle time.
+                                lastFrame = System.nanoTime();
+                            }
+                            continue;
+                        }
+                        ServerMetrics.timedOut();
+                        System.out.println(reason);
+                        // The requests of the client are not waited for, they fail with the socket.
+                        close();
+                        break;
+                    }
+                    if (frame == null) {
+                        break;
+                    }
+                    lastFrame = System.nanoTime();
+                    if(!handler.handle(frame)){
+                        break;
+                    }
+                    // A client over its limits is held back by not reading from its socket.
+                    TrafficLimits.pause(handler.delayAfter(frame));
+                }
+            } finally {
+                handler.abort();
+            }
+
+            // Let the downloads that are still running finish before the socket is closed.
+            CountDownLatch idle = new CountDownLatch(1);
+            handler.whenIdle(idle::countDown);
+            idle.await();
+        }
+        catch(Exception x) {
+            if (server.isRunning()) {
+                ServerMetrics.serverError();
+                System.out.println("Connection error.");
+                System.out.println(x);
+            }
+        }
+        finally {
+            // Close the socket and let the server accept another client.
+            try {
+                incoming.close();
+            } catch (IOException x) {
+                // Nothing more can be done with this connection.
+            }
+            server.connectionClosed(this);
+        }
+    }
+
+    /** Sets how long the next read waits for the client: the read
+     *  timeout, or what is left of the idle timeout if that is shorter.
+     *
+     * @param quietNanos How long ago the last frame arrived, or the
+     *        client was last waiting for an answer
+     */
+    private void setTimeout(RequestHandler handler, long quietNanos) throws IOException {
+        // 0 waits for the client without a timeout.
+        long millis = TimeUnit.SECONDS.toMillis(READ_TIMEOUT_SECONDS);
+        if (IDLE_TIMEOUT_SECONDS > 0) {
+            // A busy client is looked at again once the idle timeout has passed.
+            long left = TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS);
+            if (handler.isIdle()) {
+                left = Math.max(1, left - TimeUnit.NANOSECONDS.toMillis(quietNanos));
+            }
+            millis = millis > 0 ? Math.min(millis, left) : left;
+        }
+        int next = (int) Math.min(millis, Integer.MAX_VALUE);
+        if (next != timeout) {
+            incoming.setSoTimeout(next);
+            timeout = next;
+        }
+    }
+
+    /** Decides what a read that timed out means for the connection.
+     *
+     * @param quietNanos How long ago the last frame arrived
+     * @return Why the client is disconnected, or null to go on waiting for it
+     */
+    private String timedOut(RequestHandler handler, long quietNanos) {
+        if (socketInput.isInFrame()) {
+            // What was read of the frame is lost, the stream can not be read any further.
+            return "A client stopped in the middle of a frame and was disconnected.";
+        }
+        if (handler.isReceiving()) {
+            return "A client stopped in the middle of an upload and was disconnected.";
+        }
+        if (READ_TIMEOUT_SECONDS > 0 && writer.stalledNanos() >= TimeUnit.SECONDS.toNanos(READ_TIMEOUT_SECONDS)) {
+            return "A client stopped reading what it was sent and was disconnected.";
+        }
+        if (IDLE_TIMEOUT_SECONDS > 0 && handler.isIdle() && quietNanos >= TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS)) {
+            return "A client was idle for too long and was disconnected.";
+        }
+        return null;
+    }
+
+    /** Closes the connection if the client has finished its handshake and
+     *  has no requests in flight, used when the server shuts down. A
+     *  request that arrives meanwhile is refused, see RequestHandler.stopIfIdle().
+     *
+     * @return true if the connection was closed
+     */
+    boolean closeIfIdle() {
+        RequestHandler current = handler;
+        if (current == null || !current.stopIfIdle()) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    /** @return The requests of the client that have not been answered
+     */
+    int requestsInFlight() {
+        RequestHandler current = handler;
+        return current != null ? current.requestsInFlight() : 0;
+    }
+
+    /** Closes the connection, used when the server shuts down
+     *  before the client has exited or the client has timed out.
+     */
+    void close() {
+        try {
+            // A thread that is stuck writing to the TLS socket may hold the lock that
+            // close() of the TLS socket takes, so the socket under it is closed first.
+            raw.close();
+            incoming.close();
+        } catch (IOException x) {
+            // The connection is already gone.
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps every file under its name in the files directory, next to the
+ * partial files of its uploads. This is the store of the server unless
+ * -Dsecureaddition.storage is set, and the files can be changed by
+ * someone else while the server runs.
+ */
+class DirectoryStore implements FileStore {
+    private final Path directory;
+
+    /**
+     * Constructor
+     *
+     * @param directory The files directory
+     */
+    DirectoryStore(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    /** @return The path of the file of the name, like Paths.get() joins them
+     * @throws InvalidPathException If the path leaves the files directory,
+     *         or is the one of a partial file, which list() does not show
+     */
+    private Path file(String name) {
+        Path file = directory.getFileSystem().getPath(directory.toString(), name).normalize();
+        if (!file.startsWith(directory) || file.equals(directory)) {
+            throw new InvalidPathException(name, "The file is not in the files directory");
+        }
+        if (file.getFileName().toString().endsWith(OverlappedFileWriter.PART_SUFFIX)) {
+            throw new InvalidPathException(name, "Partial files are not served");
+        }
+        return file;
+    }
+
+    public Path partOf(String name) {
+        return OverlappedFileWriter.partOf(file(name));
+    }
+
+    public Path newPart(String name) throws IOException {
+        return OverlappedFileWriter.newPartOf(file(name));
+    }
+
+    public void put(String name, Path part, Set<Path> directories) throws IOException {
+        Path file = file(name);
+        if (directories != null) {
+            GroupCommit.force(part);
+        }
+        OverlappedFileWriter.replace(part, file);
+        if (directories != null) {
+            directories.add(file.toAbsolutePath().getParent());
+        }
+    }
+
+    public StoredFile open(String name) throws IOException {
+        Path file = file(name);
+        while (true) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                throw new NoSuchFileException(file.toString());
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                // The size is the one of the open file, the attributes have to be
+                // the same after the open, or the file was replaced in between.
+                BasicFileAttributes opened = Files.readAttributes(file, BasicFileAttributes.class);
+                if (opened.lastModifiedTime().equals(attributes.lastModifiedTime())
+                        && Objects.equals(opened.fileKey(), attributes.fileKey())) {
+                    DirectoryFile stored = new DirectoryFile(file, channel, channel.size(), attributes.lastModifiedTime());
+                    channel = null;
+                    return stored;
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    public boolean delete(String name) throws IOException {
+        Path file = file(name);
+        return Files.isRegularFile(file) && Files.deleteIfExists(file);
+    }
+
+    public List<String> list(String glob) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                // Partial files are not served.
+                if (Files.isRegularFile(file) && !name.endsWith(OverlappedFileWriter.PART_SUFFIX)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * A file of the directory, open from the start, so its content and
+     * its size stay the same when the file is replaced meanwhile.
+     */
+    private static final class DirectoryFile implements StoredFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+        private final FileTime modified;
+
+        DirectoryFile(Path path, FileChannel channel, long size, FileTime modified) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public FileTime lastModified() {
+            return modified;
+        }
+
+        public String sha256() {
+            return null;
+        }
+
+        public boolean isCurrent() throws IOException {
+            BasicFileAttributes now = Files.readAttributes(path, BasicFileAttributes.class);
+            return now.size() == size && now.lastModifiedTime().equals(modified);
+        }
+
+        public void read(ByteBuffer buffer, long position) throws IOException {
+            FileRequestProcessor.readFully(channel, buffer, position);
+        }
+
+        public void send(int requestId, long position, long length, ResponseWriter out) throws IOException {
+            out.sendFile(requestId, channel, position, length);
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.jinwoo;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the content of small files in direct buffers, so that files
+ * which many clients download are sent from memory instead of being
+ * read from the disk for every request.
+ *
+ * A file is kept under its name together with its size and modification
+ * time, and every lookup compares them with the file, which only asks
+ * the store for the attributes. A file that was changed by someone else
+ * is therefore read again. Uploads and deletes of the server remove
+ * the file from the cache as well.
+ *
+ * The files that were used least recently are dropped when the cache
+ * holds more than its budget. Files larger than the largest cached
+ * size are never kept, so one big download does not empty the cache.
+ *
+ * The budget and the largest cached file are set with
+ * -Dsecureaddition.cache.size and -Dsecureaddition.cache.maxFileSize,
+ * a budget of 0 turns the cache off.
+ */
+class FileCache {
+    static final long DEFAULT_BUDGET = Long.getLong("secureaddition.cache.size", 64 * 1024 * 1024);
+    static final long DEFAULT_MAX_FILE_SIZE = Long.getLong("secureaddition.cache.maxFileSize", 1024 * 1024);
+
+    private final long budget;
+    private final long maxFileSize;
+    // The files in the order that they were used, the least recently used first, guarded by this.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // Counts the invalidations, a file that was read while one happened is not kept.
+    private long invalidations;
+
+    /**
+     * Constructor
+     *
+     * @param budget The most bytes that are kept, 0 to keep nothing
+     * @param maxFileSize The size of the largest file that is kept
+     */
+    FileCache(long budget, long maxFileSize) {
+        this.budget = budget;
+        this.maxFileSize = Math.min(maxFileSize, budget);
+    }
+
+    /** Finds the content of a file, and reads it into the cache if it is small enough.
+     *
+     * @param name The name of the file
+     * @param file The file, open in the store
+     * @return A read-only buffer with the content of the file, or null if it is not cached
+     * @throws IOException If the file can not be read
+     */
+    ByteBuffer get(String name, StoredFile file) throws IOException {
+        if (budget <= 0) {
+            return null;
+        }
+        long generation;
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.matches(file)) {
+                return entry.content.duplicate();
+            }
+            if (entry != null) {
+                remove(name);
+            }
+            if (file.size() > maxFileSize) {
+                return null;
+            }
+            generation = invalidations;
+        }
+
+        // Read without holding the lock, so the other files are served meanwhile.
+        ByteBuffer content = ByteBuffer.allocateDirect((int) file.size());
+        try {
+            file.read(content, 0);
+        } catch (EOFException x) {
+            return null;
+        }
+        content.flip();
+        content = content.asReadOnlyBuffer();
+        if (!file.isCurrent()) {
+            // Changed while it was read, sent from the disk this time.
+            return null;
+        }
+
+        synchronized (this) {
+            if (generation == invalidations) {
+                remove(name);
+                entries.put(name, new Entry(content, file));
+                bytes += content.capacity();
+                evict();
+            }
+        }
+        return content.duplicate();
+    }
+
+    /** Drops a file from the cache, called when it is replaced or deleted.
+     *
+     * @param name The name of the file
+     */
+    synchronized void invalidate(String name) {
+        invalidations++;
+        remove(name);
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.content.capacity();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> leastRecent = entries.values().iterator();
+        while (bytes > budget && leastRecent.hasNext()) {
+            bytes -= leastRecent.next().content.capacity();
+            leastRecent.remove();
+        }
+    }
+
+    /**
+     * The content of a cached file and the attributes that it had when it was read.
+     */
+    private static final class Entry {
+        final ByteBuffer content;
+        private final long size;
+        private final FileTime modified;
+
+        Entry(ByteBuffer content, StoredFile file) {
+            this.content = content;
+            this.size = file.size();
+            this.modified = file.lastModified();
+        }
+
+        boolean matches(StoredFile file) {
+            return size == file.size() && modified.equals(file.lastModified());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Remembers the SHA-256 of the files of the server, so that LIST does
+ * not read every file again for every client.
+ *
+ * A hash is kept together with the size and modification time of the
+ * file, and every lookup compares them with the file like the FileCache
+ * does. Only the files that were changed since the last lookup are read,
+ * whoever changed them. Uploads and deletes of the server remove the
+ * file from the index as well, in case the time did not change.
+ *
+ * A store that keeps the hashes of its files, like the ChunkStore,
+ * answers for itself and nothing is kept for its files.
+ */
+class FileIndex {
+    // The hashes of the files, guarded by this.
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Counts the invalidations, a file that was hashed while one happened is not kept.
+    private long invalidations;
+
+    /** Finds the hash of a file, and reads the file to compute it if it
+     *  is not known or the file has changed.
+     *
+     * @param name The name of the file
+     * @param file The file, open in the store
+     * @return The size, time and hash of the file
+     * @throws IOException If the file can not be read
+     */
+    Entry get(String name, StoredFile file) throws IOException {
+        if (file.sha256() != null) {
+            // The store knows it already.
+            return new Entry(file.size(), file.lastModified(), file.sha256());
+        }
+        long generation;
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.matches(file)) {
+                return entry;
+            }
+            generation = invalidations;
+        }
+
+        // Hashed without holding the lock, so the other files are listed meanwhile.
+        MessageDigest sha = ChunkChecksums.sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Frame.CHUNK_SIZE);
+        for (long position = 0; position < file.size(); position += buffer.capacity()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), file.size() - position));
+            file.read(buffer, position);
+            buffer.flip();
+            sha.update(buffer);
+        }
+        Entry entry = new Entry(file.size(), file.lastModified(), ChunkChecksums.hex(sha.digest()));
+
+        synchronized (this) {
+            // A file that changed while it was hashed is hashed again by the next lookup.
+            if (generation == invalidations && file.isCurrent()) {
+                entries.put(name, entry);
+            }
+        }
+        return entry;
+    }
+
+    /** Drops a file from the index, called when it is replaced or deleted.
+     *
+     * @param name The name of the file
+     */
+    synchronized void invalidate(String name) {
+        invalidations++;
+        entries.remove(name);
+    }
+
+    /** Drops the files that are not in the list, called after all files
+     *  were listed, so the files that were deleted by someone else do
+     *  not stay in the index.
+     *
+     * @param names The names of the files that are there
+     */
+    synchronized void retain(Collection<String> names) {
+        entries.keySet().retainAll(new HashSet<>(names));
+    }
+
+    /**
+     * The hash of a file and the attributes that it had when it was hashed.
+     */
+    static final class Entry {
+        final long size;
+        final FileTime modified;
+        // The SHA-256 of the content in lower case hex.
+        final String sha256;
+
+        Entry(long size, FileTime modified, String sha256) {
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+        }
+
+        boolean matches(StoredFile file) {
+            return size == file.size() && modified.equals(file.lastModified());
+        }
+    }
+}
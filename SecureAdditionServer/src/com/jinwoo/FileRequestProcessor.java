@@ -0,0 +1,679 @@
+package com.jinwoo;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Carries out the DOWNLOAD, UPLOAD and DELETE requests on the
+ * files of the server, which are kept in a FileStore.
+ *
+ * The processor does not know how the client is connected, it
+ * only writes its responses to a ResponseWriter. Files are sent
+ * and received in chunks, so the memory of a transfer does not
+ * grow with the size of the file. It is shared by
+ * all connections of both the blocking and the non-blocking transport.
+ *
+ * The ranges of one file can be downloaded and uploaded by several
+ * requests at the same time, each one reads or writes its own part.
+ * Uploads are written to the partial file of the file and only moved
+ * into place when they are complete, the partial file of an upload in
+ * ranges is kept until it is committed, so a client can resume it.
+ *
+ * Small files are kept in a FileCache, so files that many clients
+ * download are not read from the disk again. Replacing or deleting a
+ * file through the processor removes it from the cache.
+ *
+ * LIST reports the size, time and SHA-256 of the files. The hashes are
+ * kept in a FileIndex, so a file is only read again once it has changed,
+ * and a client can tell which of its copies are out of date.
+ *
+ * The bulk requests carry out the same work for many files in one
+ * request, every file is answered with an ENTRY and a file that fails
+ * does not stop the others.
+ *
+ * The files are kept under their names in the files directory, unless
+ * -Dsecureaddition.storage=chunks keeps them in a ChunkStore, which
+ * stores content that many files have in common only once.
+ *
+ * An upload is answered once it is in the store, where a crash may still
+ * lose it. A durable upload, with the DURABLE flag or -Dsecureaddition.durable,
+ * is answered once it is on the disk. It is handed to the GroupCommit, so
+ * the thread of the connection does not wait for the disk, and uploads that
+ * finish at the same time share the forces of their directories.
+ */
+class FileRequestProcessor {
+    // The directory is relative to the working directory, set with -Dsecureaddition.files.
+    static final String FILES = System.getProperty("secureaddition.files", "files");
+    // "directory" or "chunks", set with -Dsecureaddition.storage.
+    static final String STORAGE = System.getProperty("secureaddition.storage", "directory");
+    // Makes every upload durable, not only the ones with the DURABLE flag.
+    static final boolean DURABLE = Boolean.getBoolean("secureaddition.durable");
+
+    private final FileStore store;
+    // The small files that were downloaded most recently.
+    private final FileCache cache = new FileCache(FileCache.DEFAULT_BUDGET, FileCache.DEFAULT_MAX_FILE_SIZE);
+    // The hashes of the files that were listed.
+    private final FileIndex index = new FileIndex();
+    // Puts the durable uploads into the store.
+    private final GroupCommit commits = new GroupCommit();
+
+    /**
+     * Constructor for the store that -Dsecureaddition.storage chooses.
+     */
+    FileRequestProcessor() {
+        this(createStore());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param store Where the files are kept
+     */
+    FileRequestProcessor(FileStore store) {
+        this.store = store;
+    }
+
+    private static FileStore createStore() {
+        Path directory = Paths.get(FILES);
+        switch (STORAGE) {
+            case "directory":
+                return new DirectoryStore(directory);
+            case "chunks":
+                try {
+                    return new ChunkStore(directory);
+                } catch (IOException x) {
+                    throw new UncheckedIOException("The store in " + directory + " can not be opened.", x);
+                }
+            default:
+                throw new IllegalArgumentException("There is no storage called " + STORAGE + ".");
+        }
+    }
+
+    /** Sends a file from the server to the client.
+     *  Called when the client requests to download from
+     *  the server.
+     *
+     * @param compress true if the connection has agreed on compression
+     */
+    void sendFileToClient(int requestId, String fileName, boolean compress, ResponseWriter out) throws IOException {
+        sendFileToClient(requestId, fileName, 0, Long.MAX_VALUE, compress, out);
+    }
+
+    /** Sends a range of a file from the server to the client.
+     *  Called when the client downloads a file in parts.
+     *
+     * @param position Where the range starts in the file
+     * @param length The length of the range, cut short at the end of the file
+     * @param compress true if the connection has agreed on compression
+     */
+    void sendFileToClient(int requestId, String fileName, long position, long length, boolean compress,
+            ResponseWriter out) throws IOException {
+        String error = sendContent(requestId, fileName, position, length, compress, null, out);
+        if (error != null) {
+            // Notify the client that the file could not be sent.
+            out.send(Frame.ERROR, requestId, error);
+            return;
+        }
+
+        // Notify the client that the download request is over.
+        out.send(Frame.FINISHED, requestId, "The file " + fileName + " was sent.");
+    }
+
+    /** Sends many files from the server to the client, each one after an
+     *  ENTRY with its name. Called when the client downloads a list of
+     *  files or the files that match a glob.
+     *
+     * @param names The names and globs, one per line
+     * @param compress true if the connection has agreed on compression
+     */
+    void sendFilesToClient(int requestId, String names, boolean compress, ResponseWriter out) throws IOException {
+        List<String> fileNames;
+        try {
+            fileNames = resolve(names);
+        } catch (IOException | IllegalArgumentException x) {
+            out.send(Frame.ERROR, requestId, "The names of the files can not be read.");
+            return;
+        }
+
+        int failed = 0;
+        for (String fileName : fileNames) {
+            String error = sendContent(requestId, fileName, 0, Long.MAX_VALUE, compress, Frame.utf8(fileName), out);
+            if (error != null) {
+                failed++;
+                sendFailedEntry(requestId, fileName, error, out);
+            }
+        }
+        out.send(Frame.FINISHED, requestId, summary(fileNames.size() - failed, failed, "sent"));
+    }
+
+    /** Sends the content of a file as DATA frames.
+     *
+     * @param entry The payload of the ENTRY that comes before the content
+     *        of a file of a bulk download, or null
+     * @return null if the file was sent, otherwise the message for the client
+     */
+    private String sendContent(int requestId, String fileName, long position, long length, boolean compress,
+            byte[] entry, ResponseWriter out) throws IOException {
+        ChunkCompressor compressor = new ChunkCompressor(fileName, compress);
+        StoredFile file;
+        ByteBuffer cached;
+
+        // Try to open the file, small files are sent from memory.
+        try{
+            file = store.open(fileName);
+        }catch (IOException | InvalidPathException x) {
+            System.out.println("The file " + fileName + " can not be found.");
+            return "The file " + fileName + " can not be found.";
+        }
+
+        // Send the content of the file to the client, the writer of the
+        // connection decides how the bytes get from the file to the socket.
+        try{
+            cached = cache.get(fileName, file);
+            long size = cached != null ? cached.remaining() : file.size();
+            if (position < 0 || length < 0 || position > size) {
+                return "The range at " + position + " is outside of the file " + fileName + ".";
+            }
+            if (entry != null) {
+                out.send(Frame.ENTRY, 0, requestId, entry, 0, entry.length);
+            }
+            length = Math.min(length, size - position);
+            if (cached != null) {
+                cached.position((int) position);
+                cached.limit((int) (position + length));
+            }
+            if (compressor.isEnabled()) {
+                sendCompressed(requestId, file, cached, position, length, compressor, out);
+            }else if (cached != null) {
+                out.sendContent(requestId, cached);
+            }else{
+                file.send(requestId, position, length, out);
+            }
+        }finally {
+            file.close();
+        }
+        return null;
+    }
+
+    /** Reads the names of a bulk request.
+     *
+     * @param names The names and globs, one per line
+     * @return The names, with every glob replaced by the sorted names of the files that match it
+     */
+    private List<String> resolve(String names) throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        for (String name : names.split("\n")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.indexOf('*') < 0 && name.indexOf('?') < 0 && name.indexOf('[') < 0) {
+                fileNames.add(name);
+                continue;
+            }
+            List<String> matches = store.list(name);
+            Collections.sort(matches);
+            fileNames.addAll(matches);
+        }
+        return fileNames;
+    }
+
+    /** Tells the client that one file of a bulk request has failed.
+     */
+    private static void sendFailedEntry(int requestId, String fileName, String error, ResponseWriter out) throws IOException {
+        byte[] payload = Frame.utf8(fileName + "\n" + error);
+        out.send(Frame.ENTRY, Frame.FAILED, requestId, payload, 0, payload.length);
+    }
+
+    /** @return The message that ends a bulk request
+     */
+    private static String summary(int done, int failed, String verb) {
+        return done + (done == 1 ? " file was " : " files were ") + verb
+                + (failed > 0 ? ", " + failed + " failed." : ".");
+    }
+
+    /** Sends a part of a file, or of its content in the cache, as DATA frames
+     *  that are compressed when they shrink. The chunks have to be copied
+     *  through the JVM for this, so transferTo() is not used.
+     */
+    private static void sendCompressed(int requestId, StoredFile file, ByteBuffer cached, long position, long length,
+            ChunkCompressor compressor, ResponseWriter out) throws IOException {
+        byte[] chunk = new byte[Frame.CHUNK_SIZE];
+        byte[] packed = new byte[Frame.CHUNK_SIZE];
+        while (length > 0) {
+            int count = (int) Math.min(length, Frame.CHUNK_SIZE);
+            if (cached != null) {
+                cached.get(chunk, 0, count);
+            }else{
+                file.read(ByteBuffer.wrap(chunk, 0, count), position);
+            }
+            int packedLength = compressor.compress(chunk, count, packed);
+            if (packedLength < 0) {
+                out.send(Frame.DATA, 0, requestId, chunk, 0, count);
+            }else{
+                out.send(Frame.DATA, Frame.COMPRESSED, requestId, packed, 0, packedLength);
+            }
+            position += count;
+            length -= count;
+        }
+    }
+
+    /** Sends the size of a file to the client, so that
+     *  it can download the file in ranges.
+     */
+    void statFile(int requestId, String fileName, ResponseWriter out) throws IOException {
+        long size;
+        try (StoredFile file = store.open(fileName)) {
+            size = file.size();
+        } catch (IOException | InvalidPathException x) {
+            out.send(Frame.ERROR, requestId, "The file " + fileName + " can not be found.");
+            return;
+        }
+        out.send(Frame.FINISHED, requestId, Long.toString(size));
+    }
+
+    /** Sends the size, time and hash of files as lines of text, so that
+     *  the client can tell which files it has to fetch.
+     *
+     * @param names The names and globs, one per line, empty for all files
+     */
+    void listFiles(int requestId, String names, ResponseWriter out) throws IOException {
+        List<String> fileNames;
+        try {
+            fileNames = resolve(names.isEmpty() ? "*" : names);
+        } catch (IOException | IllegalArgumentException x) {
+            out.send(Frame.ERROR, requestId, "The names of the files can not be read.");
+            return;
+        }
+
+        // The lines are gathered into frames, a line is never split.
+        byte[] payload = new byte[Frame.CHUNK_SIZE];
+        int length = 0;
+        List<String> listed = new ArrayList<>();
+        for (String fileName : fileNames) {
+            FileIndex.Entry entry;
+            if (fileName.indexOf('\n') >= 0) {
+                continue;
+            }
+            try (StoredFile file = store.open(fileName)) {
+                entry = index.get(fileName, file);
+                listed.add(fileName);
+            } catch (IOException | InvalidPathException x) {
+                // Deleted since it was found, or a name that is not there.
+                continue;
+            }
+            byte[] line = Frame.utf8(entry.size + " " + entry.modified.toMillis() + " " + entry.sha256 + " " + fileName + "\n");
+            if (length + line.length > payload.length) {
+                out.send(Frame.DATA, 0, requestId, payload, 0, length);
+                length = 0;
+            }
+            System.arraycopy(line, 0, payload, length, line.length);
+            length += line.length;
+        }
+        if (length > 0) {
+            out.send(Frame.DATA, 0, requestId, payload, 0, length);
+        }
+        if (names.isEmpty()) {
+            index.retain(listed);
+        }
+        out.send(Frame.FINISHED, requestId, Integer.toString(listed.size()));
+    }
+
+    /** Sends the checksums of the chunks of a file, so that the client
+     *  can find the chunks that a resumed transfer has to send.
+     *
+     * @param partial true for the partial file of an upload, which
+     *        counts as empty if nothing has been uploaded yet
+     * @param digests true to send the digest of every chunk after its checksum
+     */
+    void sendChecksums(int requestId, String fileName, boolean partial, boolean digests, ResponseWriter out) throws IOException {
+        ChunkChecksums checksums;
+        try {
+            if (partial) {
+                Path part = store.partOf(fileName);
+                checksums = !Files.exists(part) ? new ChunkChecksums(0, new int[0], digests ? new byte[0] : null)
+                        : ChunkChecksums.of(part, digests);
+            }else{
+                try (StoredFile file = store.open(fileName)) {
+                    checksums = ChunkChecksums.of(file.size(), file, digests);
+                }
+            }
+        } catch (IOException | InvalidPathException x) {
+            out.send(Frame.ERROR, requestId, "The file " + fileName + " can not be found.");
+            return;
+        }
+
+        byte[] payload = new byte[Frame.CHUNK_SIZE];
+        for (int chunk = 0; chunk < checksums.chunks(); ) {
+            int count = checksums.encode(chunk, payload);
+            out.send(Frame.DATA, 0, requestId, payload, 0, count * checksums.recordSize());
+            chunk += count;
+        }
+        out.send(Frame.FINISHED, requestId, Long.toString(checksums.size));
+    }
+
+    /** Moves the partial file of an upload in ranges into place,
+     *  once the client has sent all of its ranges.
+     *
+     * @param size The size of the file, which the partial file must have
+     * @param durable true to answer once the file is on the disk, the
+     *        thread waits for the GroupCommit then
+     */
+    void commitUpload(int requestId, String fileName, long size, boolean durable, ResponseWriter out) throws IOException {
+        try {
+            Path part = store.partOf(fileName);
+            // A COMMIT without a ranged upload has no partial file and does not replace the file.
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                if (channel.size() < size) {
+                    out.send(Frame.ERROR, requestId, "Only " + channel.size() + " of the " + size
+                            + " bytes of the file " + fileName + " have been uploaded.");
+                    return;
+                }
+                channel.truncate(size);
+            }
+            if (durable || DURABLE) {
+                commitDurably(fileName, part);
+            }else{
+                store.put(fileName, part, null);
+                invalidate(fileName);
+            }
+        } catch (NoSuchFileException x) {
+            out.send(Frame.ERROR, requestId, "Nothing of the file " + fileName + " has been uploaded.");
+            return;
+        } catch (IOException | InvalidPathException x) {
+            System.out.println("There was an error trying write the new file called " + fileName + " to the server.");
+            out.send(Frame.ERROR, requestId, "There was an error trying upload the new file called " + fileName + " to the server.");
+            return;
+        }
+        out.send(Frame.FINISHED, requestId, "The file " + fileName + " was uploaded successfully.");
+    }
+
+    /** Puts a committed partial file into the store with the next group of the GroupCommit.
+     */
+    private void commitDurably(String fileName, Path part) throws IOException {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        commits.submit(directories -> {
+            store.put(fileName, part, directories);
+            invalidate(fileName);
+        }, failure -> {
+            if (failure != null) {
+                committed.completeExceptionally(failure);
+            }else{
+                committed.complete(null);
+            }
+        });
+        try {
+            committed.get();
+        } catch (ExecutionException x) {
+            throw (IOException) x.getCause();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The commit was stopped.");
+        }
+    }
+
+    /** Starts to upload a file from the client to the server.
+     *  Called when the clients requests to upload a file
+     *  to the server.
+     *
+     * @param durable true to answer once the file is on the disk
+     * @return The upload that the content of the file is written to
+     */
+    Upload beginUpload(int requestId, String fileName, boolean durable) {
+        return beginUpload(requestId, fileName, -1, -1, durable);
+    }
+
+    /** Starts to upload a range of a file from the client to the server.
+     *
+     * @param position Where the range starts in the file, -1 to replace the whole file
+     * @param size The size of the whole file
+     * @param durable true to answer once the file is on the disk, a range is made durable by its COMMIT
+     * @return The upload that the content of the range is written to
+     */
+    Upload beginUpload(int requestId, String fileName, long position, long size, boolean durable) {
+        // Create the new file to be stored on the server.
+        try{
+            if (position >= 0 && size < position) {
+                throw new IOException("The range at " + position + " is outside of the file.");
+            }
+            if (position < 0) {
+                // Put into the store after END, from a partial file of its own.
+                Path part = store.newPart(fileName);
+                OverlappedFileWriter writer;
+                try {
+                    writer = new OverlappedFileWriter(part);
+                } catch (IOException x) {
+                    Files.deleteIfExists(part);
+                    throw x;
+                }
+                return new Upload(requestId, fileName, writer, part, store, durable || DURABLE);
+            }
+            // Stays in the partial file of the name until COMMIT.
+            Path part = store.partOf(fileName);
+            return new Upload(requestId, fileName, new OverlappedFileWriter(part, position, size), null, null, false);
+
+        }catch (IOException | InvalidPathException x) {
+            System.out.println("There was an error trying write the new file called " + fileName + " to the server.");
+            return new Upload(requestId, fileName,
+                    "There was an error trying upload the new file called " + fileName + " to the server.");
+        }
+    }
+
+    /** Completes an upload once the client has sent all of the file.
+     *
+     * @param answered Called once the upload has been answered, or could not be
+     */
+    void finishUpload(Upload upload, ResponseWriter out, Runnable answered) throws IOException {
+        complete(upload, error -> {
+            try {
+                if (error != null) {
+                    // Notify the client that an error occurred.
+                    out.send(Frame.ERROR, upload.requestId, error);
+                    return;
+                }
+
+                // Notify the client that the file was uploaded successfully.
+                if (upload.isRange()) {
+                    out.send(Frame.FINISHED, upload.requestId, "A range of the file " + upload.fileName + " was uploaded.");
+                }else{
+                    out.send(Frame.FINISHED, upload.requestId, "The file " + upload.fileName + " was uploaded successfully.");
+                }
+            } finally {
+                answered.run();
+            }
+        });
+    }
+
+    /** Completes one file of a bulk upload and answers it with an ENTRY.
+     *
+     * @param counted Called with true if the file was written, after its ENTRY
+     */
+    void finishEntry(Upload upload, ResponseWriter out, Consumer<Boolean> counted) throws IOException {
+        complete(upload, error -> {
+            counted.accept(error == null);
+            if (error != null) {
+                sendFailedEntry(upload.requestId, upload.fileName, error, out);
+                return;
+            }
+            out.send(Frame.ENTRY, upload.requestId, upload.fileName);
+        });
+    }
+
+    /** Ends a bulk upload once the client has sent all of its files.
+     *
+     * @param done The files that were written
+     * @param failed The files that were not
+     */
+    void finishBulkUpload(int requestId, int done, int failed, ResponseWriter out) throws IOException {
+        out.send(Frame.FINISHED, requestId, summary(done, failed, "uploaded"));
+    }
+
+    /** Sends an answer after the durable uploads that were finished
+     *  before it have been answered, like the FINISHED of a bulk upload.
+     *
+     * @param durable false if none of the uploads were durable, the answer is sent right away then
+     */
+    void afterUploads(boolean durable, Answer answer) throws IOException {
+        if (!durable && !DURABLE) {
+            answer.send(null);
+            return;
+        }
+        // The groups are answered in order, so an empty commit is answered after the ones before it.
+        commits.submit(directories -> { }, failure -> answerQuietly(answer, null));
+    }
+
+    /**
+     * Sends the answer of an upload.
+     */
+    interface Answer {
+        /** @param error null if the upload is in the store, otherwise the message for the client
+         */
+        void send(String error) throws IOException;
+    }
+
+    /** Writes the rest of an upload and moves it into place, on this
+     *  thread or with the next group of the GroupCommit if it is durable.
+     *
+     * @param answer Sends the answer once the upload is done
+     */
+    private void complete(Upload upload, Answer answer) throws IOException {
+        if (!upload.durable) {
+            String error = upload.finish();
+            if (!upload.isRange()) {
+                invalidate(upload.fileName);
+            }
+            answer.send(error);
+            return;
+        }
+        // One that could not be written is answered in its turn as well.
+        String error = upload.close();
+        commits.submit(directories -> {
+            if (error == null) {
+                String failed = upload.put(directories);
+                invalidate(upload.fileName);
+                if (failed != null) {
+                    throw new IOException(failed);
+                }
+            }
+        }, failure -> answerQuietly(answer, error != null ? error : failure == null ? null
+                : "There was an error trying upload the new file called " + upload.fileName + " to the server."));
+    }
+
+    /** Sends an answer from the commit thread, which has nobody to tell if the connection is gone.
+     */
+    private static void answerQuietly(Answer answer, String error) {
+        try {
+            answer.send(error);
+        } catch (IOException x) {
+            // The connection is gone, the thread that reads from it closes it.
+        }
+    }
+
+    /** Forgets what the cache and the index know about a file that was replaced or deleted.
+     */
+    private void invalidate(String fileName) {
+        cache.invalidate(fileName);
+        index.invalidate(fileName);
+    }
+
+    /** Delete a file from the server.
+     *  Called when the client requests to
+     *  delete a file from the server.
+     */
+    void deleteFileFromServer(int requestId, String fileName, ResponseWriter out) throws IOException {
+        String error = delete(fileName);
+        if (error != null) {
+            // Notify the client that the file was not deleted.
+            out.send(Frame.ERROR, requestId, error);
+            return;
+        }
+        // Notify the client that the file was deleted.
+        out.send(Frame.FINISHED, requestId, "The file " + fileName + " was deleted from the server.");
+    }
+
+    /** Deletes many files from the server, and answers every one of them
+     *  with an ENTRY. Called when the client deletes a list of files or
+     *  the files that match a glob.
+     *
+     * @param names The names and globs, one per line
+     */
+    void deleteFilesFromServer(int requestId, String names, ResponseWriter out) throws IOException {
+        List<String> fileNames;
+        try {
+            fileNames = resolve(names);
+        } catch (IOException | IllegalArgumentException x) {
+            out.send(Frame.ERROR, requestId, "The names of the files can not be read.");
+            return;
+        }
+
+        int failed = 0;
+        for (String fileName : fileNames) {
+            String error = delete(fileName);
+            if (error != null) {
+                failed++;
+                sendFailedEntry(requestId, fileName, error, out);
+            }else{
+                out.send(Frame.ENTRY, requestId, fileName);
+            }
+        }
+        out.send(Frame.FINISHED, requestId, summary(fileNames.size() - failed, failed, "deleted"));
+    }
+
+    /** Deletes one file.
+     *
+     * @return null if the file was deleted, otherwise the message for the client
+     */
+    private String delete(String fileName) {
+        // Check if the file name is empty.
+        // If not, then search for the file.
+        if(fileName.equals("")) {
+            return "No file name was given.";
+        }
+
+        // Find the file and delete it.
+        boolean deleted;
+        try {
+            deleted = store.delete(fileName);
+        } catch (IOException | InvalidPathException x) {
+            deleted = false;
+        }
+
+        // Check if the file was deleted.
+        if(deleted){
+            invalidate(fileName);
+            System.out.println("The file " + fileName + " was deleted from the server.");
+            return null;
+        }else{
+            System.out.println("An error occurred when trying to delete the file " + fileName + " from the server.");
+            return "An error occurred when trying to delete the file " + fileName + " from the server.";
+        }
+    }
+
+    /** Reads from a file until the buffer is full.
+     *
+     * @param file The file to read
+     * @param buffer The buffer to fill
+     * @param position Where to start reading in the file
+     * @throws EOFException If the file ends before the buffer is full
+     */
+    static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = file.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("The file ended before it was sent.");
+            }
+            position += count;
+        }
+    }
+}
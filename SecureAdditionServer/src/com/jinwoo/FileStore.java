@@ -0,0 +1,65 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where the FileRequestProcessor keeps the files of the server.
+ *
+ * An upload is written to a partial file, which only the transfers use,
+ * and is handed to the store with put() once it is complete. Everything
+ * else reads the stored files by their names.
+ *
+ * The DirectoryStore keeps every file under its name in the files
+ * directory, the ChunkStore keeps their content once per chunk.
+ */
+interface FileStore {
+
+    /** @return The partial file that the ranges of an upload of the name
+     *          are written to until its COMMIT, the same for every upload
+     * @throws java.nio.file.InvalidPathException If the name can not be stored
+     */
+    Path partOf(String name);
+
+    /** Creates the partial file of an upload of the whole file, a new
+     *  one for every upload, so uploads of the same name at the same
+     *  time do not write into each other.
+     *
+     * @return The new empty file
+     * @throws java.nio.file.InvalidPathException If the name can not be stored
+     */
+    Path newPart(String name) throws IOException;
+
+    /** Moves a complete partial file into the store in the place of the
+     *  file of the name. A reader sees the old file or the new one and
+     *  never a mix of both.
+     *
+     * @param name The name of the file
+     * @param part The partial file, it is gone afterwards
+     * @param directories null, or the put is durable: the content is
+     *        forced to the disk before it takes the place of the old file,
+     *        and the directories whose entries still have to be forced are
+     *        added, see GroupCommit
+     */
+    void put(String name, Path part, Set<Path> directories) throws IOException;
+
+    /** Opens a file for reading.
+     *
+     * @throws java.nio.file.NoSuchFileException If there is no file of the name
+     */
+    StoredFile open(String name) throws IOException;
+
+    /** Deletes a file.
+     *
+     * @return false if there was no file of the name
+     */
+    boolean delete(String name) throws IOException;
+
+    /** Finds the files whose names match a glob.
+     *
+     * @return The names, partial files are not among them
+     * @throws java.util.regex.PatternSyntaxException If the glob is not valid
+     */
+    List<String> list(String glob) throws IOException;
+}
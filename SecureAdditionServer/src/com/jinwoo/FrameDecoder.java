@@ -0,0 +1,69 @@
+package com.jinwoo;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames from the buffers of a non-blocking connection.
+ *
+ * A frame may arrive over several reads, the decoder keeps the
+ * part of the frame that it has seen until the rest arrives. Every
+ * frame gets its own payload array, so it can be handed to a worker
+ * thread while the next frame is decoded.
+ */
+class FrameDecoder {
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private int opcode;
+    private int flags;
+    private int requestId;
+    private byte[] payload;
+    private int received;
+
+    /** Decodes the next frame from the buffer.
+     *
+     * @param in A buffer in read mode, the decoded bytes are consumed
+     * @return The next frame, or null when the buffer has no complete frame left
+     */
+    Frame decode(ByteBuffer in) throws ProtocolException {
+        if (payload == null) {
+            while (header.hasRemaining() && in.hasRemaining()) {
+                header.put(in.get());
+            }
+            if (header.hasRemaining()) {
+                return null;
+            }
+
+            header.flip();
+            int version = header.get() & 0xff;
+            if (version != Frame.VERSION) {
+                throw new ProtocolException("Unsupported frame version " + version + ".");
+            }
+            opcode = header.get() & 0xff;
+            flags = header.getShort() & 0xffff;
+            requestId = header.getInt();
+            int length = header.getInt();
+            header.clear();
+            if (length < 0 || length > Frame.MAX_PAYLOAD) {
+                throw new ProtocolException("Invalid frame length " + length + ".");
+            }
+            payload = new byte[length];
+            received = 0;
+        }
+
+        int count = Math.min(in.remaining(), payload.length - received);
+        in.get(payload, received, count);
+        received += count;
+        if (received < payload.length) {
+            return null;
+        }
+
+        Frame frame = new Frame(opcode, flags, requestId, payload, payload.length);
+        payload = null;
+        return frame;
+    }
+
+    /** @return true if a part of a frame has been decoded and the rest is missing
+     */
+    boolean isInFrame() {
+        return payload != null || header.position() > 0;
+    }
+}
@@ -0,0 +1,140 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Puts durable uploads into the store on a thread of its own, and
+ * forces the directories once for all uploads that were waiting.
+ *
+ * A durable upload forces its content to the disk before it is moved
+ * into place, then the directory has to be forced, so that the new name
+ * survives a crash as well. The commits that arrive while one group is
+ * written wait together for the next one, and one force of a directory
+ * covers the renames of all of them. The more uploads finish at the
+ * same time, the fewer forces every one of them pays for.
+ *
+ * The threads of the connections only hand the uploads over, so they
+ * go on with the frames of their clients while the disk catches up, and
+ * every upload is answered once its group is on the disk.
+ */
+class GroupCommit {
+    // The commits that wait for the next group, guarded by this.
+    private List<Pending> waiting = new ArrayList<>();
+    private Thread thread;
+
+    /**
+     * Work that is carried out on the commit thread.
+     */
+    interface Commit {
+        /** Forces what has to be on the disk before the rename and moves the file into place.
+         *
+         * @param directories Where the directories whose entries have changed are added
+         */
+        void apply(Set<Path> directories) throws IOException;
+    }
+
+    /** Runs a commit with the next group.
+     *
+     * @param commit The commit
+     * @param done Called on the commit thread with null once the commit
+     *        and its directories are on the disk, or with what failed
+     */
+    synchronized void submit(Commit commit, Consumer<IOException> done) {
+        waiting.add(new Pending(commit, done));
+        if (thread == null) {
+            thread = new Thread(this::run, "SecureAdditionServer-commit");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            List<Pending> group;
+            synchronized (this) {
+                while (waiting.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException x) {
+                        // Only a daemon thread, it ends with the server.
+                    }
+                }
+                group = waiting;
+                waiting = new ArrayList<>();
+            }
+
+            Set<Path> directories = new LinkedHashSet<>();
+            IOException[] failures = new IOException[group.size()];
+            for (int i = 0; i < group.size(); i++) {
+                try {
+                    group.get(i).commit.apply(directories);
+                } catch (IOException | RuntimeException x) {
+                    failures[i] = x instanceof IOException ? (IOException) x : new IOException(x);
+                }
+            }
+            IOException failure = null;
+            for (Path directory : directories) {
+                try {
+                    forceDirectory(directory);
+                } catch (IOException x) {
+                    failure = x;
+                }
+            }
+            ServerMetrics.groupCommitted(group.size());
+            for (int i = 0; i < group.size(); i++) {
+                try {
+                    group.get(i).done.accept(failures[i] != null ? failures[i] : failure);
+                } catch (RuntimeException x) {
+                    ServerMetrics.serverError();
+                }
+            }
+        }
+    }
+
+    /** Forces the content of a file to the disk.
+     */
+    static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /** Forces the entries of a directory to the disk, so that the files
+     *  that were moved into it are found there after a crash.
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException x) {
+            // Windows can not open a directory, a rename there is on the disk with the file.
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * A commit that waits for its group.
+     */
+    private static final class Pending {
+        final Commit commit;
+        final Consumer<IOException> done;
+
+        Pending(Commit commit, Consumer<IOException> done) {
+            this.commit = commit;
+            this.done = done;
+        }
+    }
+}
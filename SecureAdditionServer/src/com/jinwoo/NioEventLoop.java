@@ -0,0 +1,133 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread that serves many non-blocking connections with one Selector.
+ *
+ * All reads, writes and SSLEngine calls of a connection happen on the
+ * event loop it was registered with. Other threads hand work to the
+ * loop with execute(). Once a second the loop has its connections check
+ * their timeouts.
+ */
+class NioEventLoop implements Runnable {
+    // How often the connections check their timeouts.
+    static final long TIMEOUT_CHECK_MILLIS = 1000;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param name The name of the event loop thread
+     */
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /** Starts the event loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /** Runs a task on the event loop thread.
+     *
+     * @param task The task, it must not block
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Registers a newly accepted client with the loop.
+     *
+     * @param channel The non-blocking channel of the client
+     * @param connection The connection that serves the client
+     */
+    void register(SocketChannel channel, SslEngineConnection connection) {
+        execute(() -> {
+            try {
+                connection.registered(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException x) {
+                connection.close();
+            }
+        });
+    }
+
+    /** Stops the loop and closes its connections.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /** Waits for the loop thread to end.
+     */
+    void join() throws InterruptedException {
+        thread.join();
+    }
+
+    public void run() {
+        try {
+            long nextCheck = System.nanoTime();
+            while (running) {
+                selector.select(TIMEOUT_CHECK_MILLIS);
+                runTasks();
+
+                long now = System.nanoTime();
+                if (now - nextCheck >= 0) {
+                    for (SelectionKey key : selector.keys()) {
+                        ((SslEngineConnection) key.attachment()).checkTimeouts(now);
+                    }
+                    nextCheck = now + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_CHECK_MILLIS);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SslEngineConnection connection = (SslEngineConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                }
+            }
+        } catch (IOException x) {
+            ServerMetrics.serverError();
+            System.out.println("Event loop error.");
+            System.out.println(x);
+        } finally {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                ((SslEngineConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException x) {
+                // The loop is gone either way.
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
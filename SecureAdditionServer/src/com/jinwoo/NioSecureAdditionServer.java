@@ -0,0 +1,261 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import static com.jinwoo.SecureAdditionServer.DEFAULT_SHUTDOWN_TIMEOUT_SECONDS;
+import static com.jinwoo.SecureAdditionServer.DRAIN_POLL_MILLIS;
+
+/**
+ * A server that speaks the same protocol as the SecureAdditionServer,
+ * but serves its clients with non-blocking channels and SSLEngines on
+ * a few event loop threads instead of a thread per client.
+ *
+ * A client only uses a worker thread while one of its requests is
+ * being carried out, so idle clients cost no threads at all.
+ */
+public class NioSecureAdditionServer {
+    // One event loop per core is enough to keep up with the network.
+    static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+    // The threads that read and write the files for the requests.
+    static final int DEFAULT_REQUEST_WORKERS = 32;
+    // The threads that run the slow steps of the handshakes. They are apart
+    // from the workers, which may all be waiting for the disk or for clients.
+    static final int DEFAULT_HANDSHAKE_WORKERS = Runtime.getRuntime().availableProcessors();
+    // How many free buffers of each kind are kept for reuse.
+    static final int POOLED_BUFFERS = 1024;
+
+    private final int port;
+    private final int maxConnections;
+    private final FileRequestProcessor processor = new FileRequestProcessor();
+    // A download holds a worker until it is sent, so some workers are always left for the other requests.
+    private final TrafficLimits limits = new TrafficLimits(DEFAULT_REQUEST_WORKERS * 3 / 4);
+    private final Set<SslEngineConnection> connections = ConcurrentHashMap.newKeySet();
+    private SslContextProvider sslContexts;
+    private NioEventLoop[] loops;
+    private ExecutorService workers;
+    private ExecutorService handshakes;
+    private BufferPool netBuffers;
+    private BufferPool appBuffers;
+    private BufferPool fileBuffers;
+    private volatile ServerSocketChannel acceptor;
+    private volatile boolean running;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Constructor
+     *
+     * @param port The port where the server
+     *             will listen for requests
+     * @param maxConnections The number of clients
+     *             that are connected at the same time
+     */
+    NioSecureAdditionServer(int port, int maxConnections) {
+        this.port = port;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * The method that does the work for the class
+     */
+    public void run() {
+        try {
+            sslContexts = SecureAdditionServer.createSslContextProvider();
+
+            // The buffers are sized after the records of a TLS session.
+            SSLSession session = sslContexts.get().createSSLEngine().getSession();
+            netBuffers = new BufferPool(session.getPacketBufferSize(), POOLED_BUFFERS);
+            appBuffers = new BufferPool(session.getApplicationBufferSize(), POOLED_BUFFERS);
+            // Downloads are read into these and encrypted from them without further copies.
+            fileBuffers = new BufferPool(Frame.CHUNK_SIZE, POOLED_BUFFERS);
+
+            workers = Executors.newFixedThreadPool(DEFAULT_REQUEST_WORKERS, new WorkerThreadFactory("worker"));
+            handshakes = Executors.newFixedThreadPool(DEFAULT_HANDSHAKE_WORKERS, new WorkerThreadFactory("handshake"));
+            loops = new NioEventLoop[DEFAULT_EVENT_LOOPS];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("NioSecureAdditionServer-loop-" + (i + 1));
+                loops[i].start();
+            }
+
+            acceptor = ServerSocketChannel.open();
+            acceptor.bind(new InetSocketAddress(port), maxConnections);
+            running = true;
+            ServerMetrics.start();
+            System.out.println("The server is online and waiting for incoming connections.");
+
+            int next = 0;
+            while (running) {
+                SocketChannel channel;
+                try {
+                    channel = acceptor.accept();
+                } catch (AsynchronousCloseException x) {
+                    // The channel was closed by shutdown().
+                    break;
+                }
+
+                if (connections.size() >= maxConnections) {
+                    System.out.println("Too many clients, a connection was refused.");
+                    channel.close();
+                    continue;
+                }
+
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                // Every client gets the keys that are valid when it connects.
+                SSLEngine engine = sslContexts.get().createSSLEngine();
+                engine.setUseClientMode(false);
+                TlsPolicy.apply(engine);
+                engine.setNeedClientAuth(true);
+
+                // The clients are spread over the event loops in turn.
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                SslEngineConnection connection = new SslEngineConnection(channel, engine, loop, this);
+                connections.add(connection);
+                ServerMetrics.connectionOpened();
+                loop.register(channel, connection);
+            }
+        }
+        catch(Exception x) {
+            ServerMetrics.serverError();
+            System.out.println("Server error.");
+            System.out.println(x);
+            x.printStackTrace();
+        }
+        finally {
+            running = false;
+            drain(DEFAULT_SHUTDOWN_TIMEOUT_SECONDS);
+            SecureAdditionServer.closeQuietly(sslContexts);
+            stopped.countDown();
+        }
+    }
+
+    /** Stops accepting new clients. The requests that are
+     *  already running are finished by run() before it returns.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            if (acceptor != null) {
+                acceptor.close();
+            }
+        } catch (IOException x) {
+            System.out.println("Could not close the server socket.");
+        }
+    }
+
+    /** Waits until run() has drained the connections and returned.
+     */
+    void awaitTermination() throws InterruptedException {
+        stopped.await();
+    }
+
+    /** Closes every connection once its requests are answered, and the
+     *  ones that are still busy when the time is up. Then waits for the
+     *  workers and stops the event loops.
+     *
+     * @param timeoutSeconds How long to wait for the requests
+     */
+    private void drain(long timeoutSeconds) {
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (!connections.isEmpty() && System.nanoTime() < deadline) {
+                for (SslEngineConnection connection : connections) {
+                    connection.closeIfIdle();
+                }
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            if (!connections.isEmpty()) {
+                int cutOff = 0;
+                for (SslEngineConnection connection : connections) {
+                    cutOff += connection.requestsInFlight();
+                }
+                System.out.println("Closing " + connections.size() + " connections that did not finish in time, "
+                        + cutOff + " requests were cut off.");
+                for (SslEngineConnection connection : connections) {
+                    connection.close();
+                }
+            }
+            if (handshakes != null) {
+                handshakes.shutdown();
+            }
+            if (workers != null) {
+                workers.shutdown();
+                workers.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+            }
+            if (loops != null) {
+                for (NioEventLoop loop : loops) {
+                    if (loop != null) {
+                        loop.shutdown();
+                        loop.join();
+                    }
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("The server has shut down.");
+    }
+
+    /** Called by a connection when it is closed.
+     *
+     * @param connection The closed connection
+     */
+    void connectionClosed(SslEngineConnection connection) {
+        if (connections.remove(connection)) {
+            ServerMetrics.connectionClosed();
+        }
+    }
+
+    BufferPool netBuffers() {
+        return netBuffers;
+    }
+
+    BufferPool appBuffers() {
+        return appBuffers;
+    }
+
+    BufferPool fileBuffers() {
+        return fileBuffers;
+    }
+
+    TrafficLimits limits() {
+        return limits;
+    }
+
+    ExecutorService workers() {
+        return workers;
+    }
+
+    ExecutorService handshakes() {
+        return handshakes;
+    }
+
+    FileRequestProcessor processor() {
+        return processor;
+    }
+
+    /** Names the worker threads after the server.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String kind;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String kind) {
+            this.kind = kind;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NioSecureAdditionServer-" + kind + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Handles the frames that one client sends.
+ *
+ * The frames are fed one at a time, so the same handler is used when
+ * the frames are read from a blocking stream and when they are decoded
+ * from the buffers of a non-blocking connection. An upload is written
+ * to its file frame by frame, so it is never held in memory as a whole.
+ *
+ * A client can have several requests in flight. Downloads and deletes
+ * are carried out on the request executor, so a large download does
+ * not hold up the requests behind it, and their responses are sent as
+ * soon as they are ready. Uploads are told apart by their request id
+ * and written in the order that their frames arrive. The ranges of
+ * a file are handled like whole files, the client decides how many
+ * of them it sends at the same time.
+ *
+ * Once the client has offered compression in its HELLO, the downloads
+ * are compressed chunk by chunk, and compressed upload chunks are
+ * inflated before they are written.
+ *
+ * A bulk upload takes one place for all of its files. The file that is
+ * being received is completed when the ENTRY of the next one or END
+ * arrives, and answered with an ENTRY of its own.
+ *
+ * The TrafficLimits of the client are kept by the connection: after
+ * every frame it asks delayAfter() how long to wait before the next one.
+ * Downloads wait for their turn in the limits, and the writer of the
+ * connection holds their bytes back to the rates of the client.
+ */
+class RequestHandler {
+    // More requests of one client are refused until some have been answered.
+    static final int MAX_REQUESTS_IN_FLIGHT = 16;
+
+    private final FileRequestProcessor processor;
+    private final ResponseWriter out;
+    private final Executor requests;
+    private final TrafficLimits.Client limits;
+    // The uploads whose DATA frames are being received, only used by the thread that handles the frames.
+    private final Map<Integer, Upload> uploads = new HashMap<>();
+    private final Map<Integer, BulkUpload> bulkUploads = new HashMap<>();
+    // true while an upload waits for more frames, read by the timeouts of the connection.
+    private volatile boolean receiving;
+    // The requests in flight, unfinished uploads included, guarded by this.
+    private int running;
+    private Runnable onIdle;
+    // Set when the server closes the idle connection, no request starts after that.
+    private boolean stopped;
+    // Set when the client has offered compression in its HELLO.
+    private volatile boolean compress;
+
+    /**
+     * Constructor
+     *
+     * @param processor Carries out the requests
+     * @param out Where the responses are sent, must be safe to use from
+     *        several threads and keep to the byte rates of the limits
+     * @param requests Runs the downloads and deletes
+     * @param limits The limits of the client
+     */
+    RequestHandler(FileRequestProcessor processor, ResponseWriter out, Executor requests, TrafficLimits.Client limits) {
+        this.processor = processor;
+        this.out = out;
+        this.requests = requests;
+        this.limits = limits;
+    }
+
+    /** Counts a frame that has been handled against the limits of the client.
+     *
+     * @param frame The frame, only its header is used
+     * @return How long the connection waits before it handles the next frame, in nanoseconds
+     */
+    long delayAfter(Frame frame) {
+        return limits.received(frame);
+    }
+
+    /** Handles the next frame from the client.
+     *
+     * @param frame The frame, its payload is not used after this call
+     * @return false if the client has exited
+     * @throws IOException If the response could not be sent
+     */
+    boolean handle(Frame frame) throws IOException {
+        try {
+            return handleFrame(frame);
+        } finally {
+            receiving = !uploads.isEmpty() || !bulkUploads.isEmpty();
+        }
+    }
+
+    private boolean handleFrame(Frame frame) throws IOException {
+        Upload upload;
+        BulkUpload bulk;
+        ServerMetrics.frameReceived(frame.length);
+        long arrived = ServerMetrics.now();
+        switch (frame.opcode) {
+            case Frame.DOWNLOAD:
+                if ((frame.flags & Frame.BULK) != 0) {
+                    String names = frame.text();
+                    execute(frame.opcode, frame.requestId, arrived, () -> processor.sendFilesToClient(frame.requestId, names, compress, out));
+                    return true;
+                }
+                if ((frame.flags & Frame.RANGE) != 0) {
+                    long start = frame.longAt(0);
+                    long length = frame.longAt(8);
+                    String range = frame.text(Frame.RANGE_SIZE);
+                    execute(frame.opcode, frame.requestId, arrived, () -> processor.sendFileToClient(frame.requestId, range, start, length, compress, out));
+                    return true;
+                }
+                String download = frame.text();
+                execute(frame.opcode, frame.requestId, arrived, () -> processor.sendFileToClient(frame.requestId, download, compress, out));
+                return true;
+            case Frame.HELLO:
+                // Answered at once, the requests that follow may already use what was accepted.
+                compress = Arrays.asList(frame.text().split(" ")).contains(ChunkCompressor.DEFLATE);
+                out.send(Frame.FINISHED, frame.requestId, compress ? ChunkCompressor.DEFLATE : "");
+                ServerMetrics.requestFinished(frame.opcode, arrived);
+                return true;
+            case Frame.STAT:
+                String stat = frame.text();
+                execute(frame.opcode, frame.requestId, arrived, () -> processor.statFile(frame.requestId, stat, out));
+                return true;
+            case Frame.SUMS:
+                String sums = frame.text();
+                boolean partial = (frame.flags & Frame.PARTIAL) != 0;
+                boolean digests = (frame.flags & Frame.DIGESTS) != 0;
+                execute(frame.opcode, frame.requestId, arrived, () -> processor.sendChecksums(frame.requestId, sums, partial, digests, out));
+                return true;
+            case Frame.LIST:
+                String list = frame.text();
+                execute(frame.opcode, frame.requestId, arrived, () -> processor.listFiles(frame.requestId, list, out));
+                return true;
+            case Frame.COMMIT:
+                // The payload is a range at position 0 with the size of the file, then the name.
+                if (frame.length <= Frame.RANGE_SIZE || frame.longAt(0) != 0 || frame.longAt(8) < 0) {
+                    out.send(Frame.ERROR, frame.requestId, "The COMMIT does not have the size and the name of a file.");
+                    return true;
+                }
+                long committed = frame.longAt(8);
+                String commit = frame.text(Frame.RANGE_SIZE);
+                boolean durableCommit = (frame.flags & Frame.DURABLE) != 0;
+                execute(frame.opcode, frame.requestId, arrived, () -> processor.commitUpload(frame.requestId, commit, committed, durableCommit, out));
+                return true;
+            case Frame.DELETE:
+                if ((frame.flags & Frame.BULK) != 0) {
+                    String names = frame.text();
+                    execute(frame.opcode, frame.requestId, arrived, () -> processor.deleteFilesFromServer(frame.requestId, names, out));
+                    return true;
+                }
+                String delete = frame.text();
+                execute(frame.opcode, frame.requestId, arrived, () -> processor.deleteFileFromServer(frame.requestId, delete, out));
+                return true;
+            case Frame.UPLOAD:
+                boolean ranged = (frame.flags & Frame.RANGE) != 0;
+                long position = ranged ? frame.longAt(0) : -1;
+                long size = ranged ? frame.longAt(8) : -1;
+                String fileName = ranged ? frame.text(Frame.RANGE_SIZE) : frame.text();
+                boolean durable = (frame.flags & Frame.DURABLE) != 0;
+                upload = uploads.remove(frame.requestId);
+                BulkUpload unfinished = bulkUploads.remove(frame.requestId);
+                if (upload != null || unfinished != null) {
+                    // The id was used again before the upload was finished.
+                    abort(upload, unfinished);
+                }
+                if (!begin()) {
+                    refuse(frame.requestId);
+                    return true;
+                }
+                if ((frame.flags & Frame.BULK) != 0) {
+                    // The files follow, every one after an ENTRY with its name.
+                    bulkUploads.put(frame.requestId, new BulkUpload(durable));
+                    return true;
+                }
+                uploads.put(frame.requestId, processor.beginUpload(frame.requestId, fileName, position, size, durable));
+                return true;
+            case Frame.ENTRY:
+                bulk = bulkUploads.get(frame.requestId);
+                if (bulk != null) {
+                    bulk.finishFile(processor, out);
+                    bulk.current = processor.beginUpload(frame.requestId, frame.text(), bulk.durable);
+                    return true;
+                }
+                break;
+            case Frame.DATA:
+                upload = uploads.get(frame.requestId);
+                if (upload == null && bulkUploads.containsKey(frame.requestId)) {
+                    upload = bulkUploads.get(frame.requestId).current;
+                }
+                if (upload != null) {
+                    Frame data = (frame.flags & Frame.COMPRESSED) != 0 ? ChunkCompressor.inflate(frame) : frame;
+                    upload.write(data.payload, 0, data.length);
+                    return true;
+                }
+                break;
+            case Frame.END:
+                // The content of an uploaded file ends with END.
+                // A durable upload is answered later, from the thread of the GroupCommit.
+                upload = uploads.remove(frame.requestId);
+                if (upload != null) {
+                    long started = upload.started;
+                    processor.finishUpload(upload, out, () -> {
+                        ServerMetrics.requestFinished(Frame.UPLOAD, started);
+                        end();
+                    });
+                    return true;
+                }
+                bulk = bulkUploads.remove(frame.requestId);
+                if (bulk != null) {
+                    BulkUpload finished = bulk;
+                    try {
+                        finished.finishFile(processor, out);
+                    } finally {
+                        processor.afterUploads(finished.durable, error -> {
+                            try {
+                                processor.finishBulkUpload(frame.requestId, finished.done, finished.failed, out);
+                                ServerMetrics.requestFinished(Frame.UPLOAD, finished.started);
+                            } finally {
+                                end();
+                            }
+                        });
+                    }
+                    return true;
+                }
+                break;
+            case Frame.ERROR:
+                // The client could not send the rest of an upload, what it has sent is not kept.
+                upload = uploads.remove(frame.requestId);
+                bulk = bulkUploads.remove(frame.requestId);
+                if (upload != null || bulk != null) {
+                    abort(upload, bulk);
+                    out.send(Frame.ERROR, frame.requestId, "The upload was stopped by the client.");
+                }
+                // Otherwise the request has been answered already.
+                return true;
+            case Frame.PING:
+                // Answered at once, a client keeps its idle connections alive with it.
+                out.send(Frame.FINISHED, frame.requestId, "");
+                ServerMetrics.requestFinished(frame.opcode, arrived);
+                return true;
+            case Frame.EXIT:
+                // An upload that was not finished is not wanted any more.
+                abort();
+                System.out.println("A client has exited.");
+                return false;
+            default:
+                System.out.println("Unexpected input.");
+                return true;
+        }
+        // The rest of an upload that was refused or stopped by the client
+        // is dropped without a word, it has been answered already.
+        return true;
+    }
+
+    /** A request that is carried out on the executor.
+     */
+    private interface Request {
+        void run() throws IOException;
+    }
+
+    /** Runs a request on the executor.
+     *
+     * @param arrived The time from ServerMetrics.now() when the request arrived
+     */
+    private void execute(int opcode, int requestId, long arrived, Request request) throws IOException {
+        if (!begin()) {
+            refuse(requestId);
+            return;
+        }
+        Runnable task = () -> {
+            try {
+                request.run();
+                ServerMetrics.requestFinished(opcode, arrived);
+            } catch (IOException x) {
+                failed(requestId, x);
+            } finally {
+                end();
+            }
+        };
+        try {
+            if (opcode == Frame.DOWNLOAD) {
+                limits.runTransfer(requests, task, () -> shuttingDown(requestId));
+            }else{
+                requests.execute(task);
+            }
+        } catch (RejectedExecutionException x) {
+            end();
+            out.send(Frame.ERROR, requestId, "The server is shutting down.");
+        }
+    }
+
+    /** Answers a request that has failed with an ERROR. If the connection
+     *  is gone, the thread that reads from it closes it and nothing is sent.
+     *  Otherwise a file of the store could not be read, and the client is
+     *  told so instead of waiting for the rest of the response.
+     */
+    private void failed(int requestId, IOException failure) {
+        try {
+            out.send(Frame.ERROR, requestId, "An error occurred on the server while the request was carried out.");
+        } catch (IOException x) {
+            return;
+        }
+        ServerMetrics.serverError();
+        System.out.println("A request failed on the server.");
+        System.out.println(failure);
+    }
+
+    /** Answers a download that waited for its turn until the server shut down.
+     */
+    private void shuttingDown(int requestId) {
+        end();
+        try {
+            out.send(Frame.ERROR, requestId, "The server is shutting down.");
+        } catch (IOException x) {
+            // The connection is gone as well.
+        }
+    }
+
+    private void refuse(int requestId) throws IOException {
+        boolean closing;
+        synchronized (this) {
+            closing = stopped;
+        }
+        if (closing) {
+            out.send(Frame.ERROR, requestId, "The server is shutting down.");
+        }else{
+            out.send(Frame.ERROR, requestId, "Too many requests at the same time, try again when the others are done.");
+        }
+    }
+
+    private synchronized boolean begin() {
+        if (running >= MAX_REQUESTS_IN_FLIGHT || stopped) {
+            return false;
+        }
+        running++;
+        return true;
+    }
+
+    private void end() {
+        Runnable idle;
+        synchronized (this) {
+            running--;
+            if (running > 0 || onIdle == null) {
+                return;
+            }
+            idle = onIdle;
+            onIdle = null;
+        }
+        idle.run();
+    }
+
+    /** @return true if every request of the client has been answered
+     */
+    synchronized boolean isIdle() {
+        return running == 0;
+    }
+
+    /** Refuses every request from now on if none is in flight, used when
+     *  the server shuts down. The check and the stop hold the lock that
+     *  starts the requests, so the connection can be closed afterwards
+     *  without cutting off a request that started in between.
+     *
+     * @return true if the handler has stopped
+     */
+    synchronized boolean stopIfIdle() {
+        if (running > 0) {
+            return false;
+        }
+        stopped = true;
+        return true;
+    }
+
+    /** @return The requests in flight, unfinished uploads included
+     */
+    synchronized int requestsInFlight() {
+        return running;
+    }
+
+    /** @return true if an upload waits for more of its frames from the client
+     */
+    boolean isReceiving() {
+        return receiving;
+    }
+
+    /** Runs an action once all requests of the client have been answered,
+     *  used to close the connection after EXIT without cutting off a download.
+     *
+     * @param action What to run, on this thread if nothing is in flight
+     */
+    void whenIdle(Runnable action) {
+        synchronized (this) {
+            if (running > 0) {
+                onIdle = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /** Stops the unfinished uploads, called when the connection is closed.
+     */
+    void abort() {
+        for (Upload upload : uploads.values()) {
+            abort(upload, null);
+        }
+        uploads.clear();
+        for (BulkUpload bulk : bulkUploads.values()) {
+            abort(null, bulk);
+        }
+        bulkUploads.clear();
+        receiving = false;
+    }
+
+    /** Stops an upload or a bulk upload and frees its place.
+     */
+    private void abort(Upload upload, BulkUpload bulk) {
+        if (upload != null) {
+            upload.abort();
+        }
+        if (bulk != null && bulk.current != null) {
+            bulk.current.abort();
+        }
+        end();
+    }
+
+    /**
+     * An UPLOAD with the BULK flag, which takes up one place
+     * of MAX_REQUESTS_IN_FLIGHT for all of its files.
+     */
+    private static final class BulkUpload {
+        // The file whose DATA frames are being received, null before the first ENTRY.
+        Upload current;
+        // Counted when the files are answered, by the thread of the GroupCommit if they are durable.
+        int done;
+        int failed;
+        final long started = ServerMetrics.now();
+        final boolean durable;
+
+        BulkUpload(boolean durable) {
+            this.durable = durable;
+        }
+
+        /** Completes the current file, if there is one.
+         */
+        void finishFile(FileRequestProcessor processor, ResponseWriter out) throws IOException {
+            if (current == null) {
+                return;
+            }
+            Upload finished = current;
+            current = null;
+            processor.finishEntry(finished, out, written -> {
+                if (written) {
+                    done++;
+                }else{
+                    failed++;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends the frames of a response back to a client.
+ */
+interface ResponseWriter {
+
+    /** Sends one frame to the client.
+     *
+     * @param opcode What the frame is
+     * @param flags Options of the opcode
+     * @param requestId The request that is answered
+     * @param payload The array that holds the payload
+     * @param offset Where the payload starts in the array
+     * @param length The number of payload bytes
+     */
+    void send(int opcode, int flags, int requestId, byte[] payload, int offset, int length) throws IOException;
+
+    /** Sends a frame with a message for the user.
+     *
+     * @param opcode Frame.FINISHED or Frame.ERROR
+     * @param requestId The request that is answered
+     * @param message The message
+     */
+    default void send(int opcode, int requestId, String message) throws IOException {
+        byte[] payload = Frame.utf8(message);
+        send(opcode, 0, requestId, payload, 0, payload.length);
+    }
+
+    /** Sends a part of a file as DATA frames.
+     *
+     * @param requestId The request that is answered
+     * @param file The open file
+     * @param position Where the part starts in the file
+     * @param length The number of bytes to send
+     */
+    void sendFile(int requestId, FileChannel file, long position, long length) throws IOException;
+
+    /** Sends bytes from memory as DATA frames.
+     *
+     * @param requestId The request that is answered
+     * @param content A read-only buffer of the file cache, from its position to its limit
+     */
+    void sendContent(int requestId, ByteBuffer content) throws IOException;
+}
@@ -1,7 +1,17 @@
 package com.jinwoo;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.*;
-import java.security.*;
 
 /**
  * Created by Jinwoo on 2016-12-20.
@@ -18,21 +28,61 @@ public class SecureAdditionServer {
 
     // These strings are the names of the keystore and truststore files, as weIl
     // as the password for accessing these two files (both files have the same password in this example)
-    static final String KEYSTORE = "certificates/LIUkeystore.ks";
-    static final String TRUSTSTORE = "certificates/LIUtruststore.ks";
+    // The directory is relative to the working directory, set with -Dsecureaddition.certificates.
+    static final String CERTIFICATES = System.getProperty("secureaddition.certificates", "certificates");
+    static final String KEYSTORE = CERTIFICATES + "/LIUkeystore.ks";
+    static final String TRUSTSTORE = CERTIFICATES + "/LIUtruststore.ks";
     static final String STOREPASSWD = "123456";
     static final String ALIASPASSWD = "123456";
-    static final String DOWNLOAD = "DOWNLOAD";
-    static final String UPLOAD = "UPLOAD";
-    static final String DELETE = "DELETE";
-    static final String EXIT = "EXIT";
-    static final String ERROR = "ERROR";
-    static final String DATA_TEXT_SENT = "DATA_TEXT_SENT";
-    static final String DATA_NAME_SENT = "DATA_NAME_SENT";
-    static final String FINISHED_REQUEST = "FINISHED_REQUEST";
-
-    BufferedReader socketInput;
-    PrintWriter socketOutput;
+
+    // The number of clients that are served at the same time. Further clients
+    // wait in the backlog of the server socket until a connection is closed.
+    static final int DEFAULT_MAX_CONNECTIONS = 512;
+    // How long the server waits for open connections to finish when shutting down,
+    // set with -Dsecureaddition.shutdownTimeout.
+    static final long DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = Long.getLong("secureaddition.shutdownTimeout", 30);
+    // How often a server that shuts down looks for connections that have become idle.
+    static final long DRAIN_POLL_MILLIS = 100;
+
+    // How long a client may take for its TLS handshake, how long a connection may be
+    // kept open without requests, and how long a client may stop in the middle of a
+    // frame or an upload or stop reading what it is sent, before it is disconnected.
+    // 0 turns a timeout off. Set with -Dsecureaddition.handshakeTimeout,
+    // -Dsecureaddition.idleTimeout and -Dsecureaddition.readTimeout.
+    static final int HANDSHAKE_TIMEOUT_SECONDS = Integer.getInteger("secureaddition.handshakeTimeout", 10);
+    static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("secureaddition.idleTimeout", 10 * 60);
+    static final int READ_TIMEOUT_SECONDS = Integer.getInteger("secureaddition.readTimeout", 30);
+    // How long an idle request thread is kept.
+    static final long REQUEST_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    // How many TLS sessions the server remembers and for how long, so that clients
+    // which reconnect can resume their session instead of doing a full handshake.
+    // Set with -Dsecureaddition.sessionCacheSize and -Dsecureaddition.sessionTimeout.
+    static final int SESSION_CACHE_SIZE = Integer.getInteger("secureaddition.sessionCacheSize", 20000);
+    static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("secureaddition.sessionTimeout", 24 * 60 * 60);
+
+    // Serves every client on a virtual thread of its own in place of the worker pool, on
+    // Java 21 and later. The connection permits are then the only limit, so the server
+    // can be started with tens of thousands of them. Set with -Dsecureaddition.virtualThreads.
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("secureaddition.virtualThreads");
+
+    private final int maxConnections;
+    private final Semaphore connectionPermits;
+    private final Set<ConnectionHandler> connections = ConcurrentHashMap.newKeySet();
+    private final FileRequestProcessor processor = new FileRequestProcessor();
+    // Every client has a thread of its own, so the transfers are only limited if that is set.
+    private final TrafficLimits limits = new TrafficLimits(0);
+    private ExecutorService workers;
+    private ExecutorService requests;
+    // Serves the protocol without TLS on the loopback interface, only for benchmarks.
+    private final boolean plaintext;
+    private final boolean virtualThreads;
+    // Builds the TLS layer of every connection, null in plaintext mode.
+    private SslContextProvider sslContexts;
+    private volatile ServerSocket sss;
+    private volatile boolean running;
+    // Opened when run() has drained the connections and returned.
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     /**
      * Constructor
@@ -41,7 +91,53 @@ public class SecureAdditionServer {
      *             will listen for requests
      */
     SecureAdditionServer(int port ) {
+        this(port, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param port The port where the server
+     *             will listen for requests
+     * @param maxConnections The number of clients
+     *             that are served concurrently
+     */
+    SecureAdditionServer(int port, int maxConnections) {
+        this(port, maxConnections, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param port The port where the server
+     *             will listen for requests
+     * @param maxConnections The number of clients
+     *             that are served concurrently
+     * @param plaintext true to serve unencrypted connections on the
+     *             loopback interface, for benchmarks on a trusted host
+     */
+    SecureAdditionServer(int port, int maxConnections, boolean plaintext) {
+        this(port, maxConnections, plaintext, VIRTUAL_THREADS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param port The port where the server
+     *             will listen for requests
+     * @param maxConnections The number of clients
+     *             that are served concurrently
+     * @param plaintext true to serve unencrypted connections on the
+     *             loopback interface, for benchmarks on a trusted host
+     * @param virtualThreads true to serve every client on a virtual
+     *             thread, the worker pool is used if the JVM has none
+     */
+    SecureAdditionServer(int port, int maxConnections, boolean plaintext, boolean virtualThreads) {
         this.port = port;
+        this.maxConnections = maxConnections;
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.plaintext = plaintext;
+        this.virtualThreads = virtualThreads;
     }
 
     /**
@@ -49,258 +145,326 @@ public class SecureAdditionServer {
      */
     public void run() {
         try {
-            // Set up security. The following statements create an empty keystore and an empty truststore
-            // objects and then load them with the contents of the program's keystore and truststore files.
-            KeyStore ks = KeyStore.getInstance("JCEKS");
-            ks.load(new FileInputStream(KEYSTORE), STOREPASSWD.toCharArray() );
-            KeyStore ts = KeyStore.getInstance("JCEKS");
-            ts.load(new FileInputStream(TRUSTSTORE), STOREPASSWD.toCharArray() );
-
-            // The SSL connection will require access to encryption keys and certificates. For that reason,
-            // factory objects to create both KeyManager and TrustManager objects are created and then
-            // initialized with the KeyStore and TrustStoreobjects:
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-            kmf.init(ks, ALIASPASSWD.toCharArray() );
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance( "SunX509" );
-            tmf.init(ts);
-
-            // Create an SSLContext object. The input parameter, TLS, indicates that we want to use the
-            // Transport Layer Security standard. Once the SSLContext object is created,
-            // it is initialized with all the KeyManager and TrustManager objects that the factory
-            // objects support. The initialization method will also accept a third parameter, a random
-            // number used in the process of generating the secret key that the SSL handshake will use.
-            // In this case the null reference is input, so the default random number seed will be used:
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null );
-
-            // Before creating an SSL server socket you must first use the SSLContext object to create
-            // the factory object that will create the SSL server socket, because there is no public
-            // constructor for the SSLServerSocket class that you can call:
-            SSLServerSocketFactory sslServerFactory = sslContext.getServerSocketFactory();
-
-            // Once a factory object is available,the SSLServerSocket object can be created to listen
-            // on the specified port. To provide for maximum flexibility when doing protocol
-            // negotiation with clients, all supported cipher suites are enabled and the accept method
-            // is invoked to begin listening for connections:
-            SSLServerSocket sss = (SSLServerSocket) sslServerFactory.createServerSocket(port);
-            sss.setEnabledCipherSuites(sss.getSupportedCipherSuites() );
-            sss.setNeedClientAuth(true);
-            System.out.println("The server is online and waiting for incoming connections.");
-            SSLSocket incoming = (SSLSocket) sss.accept();
-
+            if (plaintext) {
+                // The sockets of a ServerSocketChannel have channels, which lets the
+                // handlers send files with transferTo(). Only local clients can connect.
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                sss = channel.socket();
+                System.out.println("Warning: the connections of this server are not encrypted.");
+            }else{
+                sslContexts = createSslContextProvider();
+                sss = new ServerSocket(port);
+            }
 
-            // Reads the receiving stream from the SSLSocket above.
-            socketInput = new BufferedReader(new InputStreamReader(incoming.getInputStream() ) );
-            // Prints the output to the SSLSocket (the clients).
-            socketOutput = new PrintWriter(incoming.getOutputStream(), true );
+            if (virtualThreads) {
+                // A blocked virtual thread only keeps its stack, so every client and
+                // every request gets a thread of its own, however many there are.
+                workers = newVirtualThreadPerTaskExecutor("worker");
+                requests = newVirtualThreadPerTaskExecutor("request");
+                if (workers != null && requests != null) {
+                    System.out.println("The clients are served on virtual threads.");
+                }else{
+                    System.out.println("This JVM has no virtual threads, the clients are served by the worker pool.");
+                }
+            }
+            if (workers == null || requests == null) {
+                // Every client is served by its own handler on the worker pool, the handshake
+                // is done by the worker when it first reads from the socket so a slow client
+                // never stops the accept loop.
+                workers = Executors.newFixedThreadPool(maxConnections, new WorkerThreadFactory("worker"));
+                // The downloads and deletes run on their own threads, so a client can have several
+                // of them in flight. Idle threads end, so the pool only grows while clients need it.
+                ThreadPoolExecutor requestPool = new ThreadPoolExecutor(maxConnections, maxConnections,
+                        REQUEST_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("request"));
+                requestPool.allowCoreThreadTimeOut(true);
+                requests = requestPool;
+            }
+            running = true;
+            ServerMetrics.start();
+            System.out.println("The server is online and waiting for incoming connections.");
 
-            String temp;
-            boolean running = true;
-            // Handles all of the requests sent from the clients.
             while(running){
-                temp = socketInput.readLine();
-
-                if(temp.equals(DOWNLOAD)){
-                    sendFileToClient();
-                }
-                else if(temp.equals(UPLOAD)){
-                    uploadFileFromClient();
-                }
-                else if(temp.equals(DELETE)) {
-                    deleteFileFromServer();
+                // Wait for a free worker before accepting the next client.
+                connectionPermits.acquire();
+                Socket raw;
+                try {
+                    raw = sss.accept();
+                } catch (SocketException | AsynchronousCloseException x) {
+                    connectionPermits.release();
+                    // The server socket was closed by shutdown(), the socket of
+                    // a channel reports it with an AsynchronousCloseException.
+                    if (!running) {
+                        break;
+                    }
+                    throw x;
                 }
-                else if(temp.equals(EXIT)) {
-                    System.out.println("Exiting the program.");
-                    running = false;
-                }else{
-                    System.out.println("Unexpected input.");
+
+                // The frames are flushed whole, waiting for more bytes to
+                // fill a packet would only delay the small replies.
+                raw.setTcpNoDelay(true);
+                Socket incoming = raw;
+                if (sslContexts != null) {
+                    try {
+                        incoming = createSSLSocket(raw);
+                    } catch (IOException x) {
+                        connectionPermits.release();
+                        raw.close();
+                        ServerMetrics.serverError();
+                        System.out.println("Could not set up TLS for a client.");
+                        continue;
+                    }
                 }
+
+                ConnectionHandler handler = new ConnectionHandler(incoming, raw, this, processor, requests, limits);
+                connections.add(handler);
+                ServerMetrics.connectionOpened();
+                workers.execute(handler);
             }
-            // Close the socket.
-            incoming.close();
         }
         catch(Exception x) {
             // The catch block at the end of the run method has been altered to catch the more
             // generic Exception class instead of the IOException class. This was required because
             // the statements that work with keys and certificates and the statements to set up an SSL
             // connection have the potential to throw a wide range of exception classes.
+            ServerMetrics.serverError();
             System.out.println("Server error.");
             System.out.println(x);
             x.printStackTrace();
         }
+        finally {
+            running = false;
+            drain(DEFAULT_SHUTDOWN_TIMEOUT_SECONDS);
+            closeQuietly(sslContexts);
+            stopped.countDown();
+        }
     }
 
-    /** Sends a text file from the server to the client.
-     *  Called when the client requests to download from
-     *  the server.
+    /** Loads the keystore and truststore of the server once. The
+     *  provider is watched, so that renewed certificates are used by
+     *  the next clients without restarting the server.
+     *
+     * @return The provider of the server's SSLContext
      */
-    private void sendFileToClient() {
-
-        String temp;
-        String fileName = "";
-        try {
-            // Get the file name.
-            do {
-                temp = socketInput.readLine();
-                fileName = temp;
-            }while(!(temp = socketInput.readLine()).equals(DATA_NAME_SENT));
-
-            String fileText;
-
-            // Try to read the file.
-            try{
-                BufferedReader reader = new BufferedReader(new FileReader("files/" + fileName));
-
-                // Read through the file and send  the text to the client.
-                while ((fileText = reader.readLine()) != null) {
-                    socketOutput.println(fileText);
-                }
-
-                // Notify the client that the server has sent all of the text.
-                socketOutput.println(DATA_TEXT_SENT);
+    static SslContextProvider createSslContextProvider() throws Exception {
+        SslContextProvider provider = new SslContextProvider(KEYSTORE, TRUSTSTORE, STOREPASSWD, ALIASPASSWD,
+                SESSION_CACHE_SIZE, SESSION_TIMEOUT_SECONDS);
+        provider.watch();
+        // The cipher suites are ranked before the first client connects.
+        TlsPolicy.isAesPreferred();
+        return provider;
+    }
 
-            }catch (IOException x) {
-                System.out.println("The file " + fileName + " can not be found.");
+    /** Layers TLS over an accepted connection with the current SSLContext,
+     *  so that every client gets the keys that are valid when it connects.
+     *
+     * @param raw The accepted TCP connection
+     * @return The SSL socket of the server side
+     */
+    private SSLSocket createSSLSocket(Socket raw) throws IOException {
+        // The factory of the SSLContext creates server side sockets over connections that
+        // are already open. Only the protocols and cipher suites of the TlsPolicy are
+        // enabled, the fastest first. The handshake is done by the handler.
+        SSLSocketFactory factory = sslContexts.get().getSocketFactory();
+        SSLSocket socket = (SSLSocket) factory.createSocket(raw, null, true);
+        TlsPolicy.apply(socket);
+        socket.setNeedClientAuth(true);
+        return socket;
+    }
 
-                // Notify the client that the file could not be found.
-                socketOutput.println(ERROR);
-                socketOutput.println("The file " + fileName + " can not be found.");
-                //System.out.println(x);
-                //x.printStackTrace();
+    /** Closes the provider after the server has stopped.
+     *
+     * @param provider The provider, may be null
+     */
+    static void closeQuietly(SslContextProvider provider) {
+        try {
+            if (provider != null) {
+                provider.close();
             }
-
         } catch (IOException x) {
-            System.out.println("There was an error trying to send the file " + fileName + " to the client.");
-            socketOutput.println(ERROR);
-            socketOutput.println("There was an error trying to send the file " + fileName + " to the client.");
-            socketOutput.flush();
-            //x.printStackTrace();
+            System.out.println("Could not stop watching the keystore.");
         }
-        // Notify the client that the download request is over.
-        socketOutput.println(FINISHED_REQUEST);
     }
 
-    /** Upload a text file from the client to the server.
-     *  Called when the clients requests to upload a file
-     *  to the server.
+    /** Stops accepting new clients. The clients that are
+     *  already connected are drained by run() before it returns.
      */
-    private void uploadFileFromClient() {
+    public void shutdown() {
+        running = false;
         try {
-            socketOutput.flush();
-            String fileText;
-            String fileName = "";
-            String temp;
-
-            // Get the file name.
-            temp = socketInput.readLine();
-            while(!(temp.equals(DATA_NAME_SENT))){
-                fileName = temp;
-                temp = socketInput.readLine();
+            if (sss != null) {
+                sss.close();
             }
+        } catch (IOException x) {
+            System.out.println("Could not close the server socket.");
+        }
+    }
 
-            // Receiving the text from the text file from the client.
-            StringBuilder stringBuilder = new StringBuilder();
-            fileText = socketInput.readLine();
+    /** Waits until run() has drained the connections, used by the
+     *  shutdown hook so that the JVM does not end before that.
+     */
+    void awaitTermination() throws InterruptedException {
+        stopped.await();
+    }
 
-            while(!(fileText.equals(DATA_TEXT_SENT))){
-                stringBuilder.append(fileText);
-                fileText = socketInput.readLine();
+    /** Closes the connections that have nothing in flight, waits for the
+     *  others to finish their requests and closes the ones that are still
+     *  busy after the timeout, saying how many requests were cut off.
+     *
+     * @param timeoutSeconds How long to wait for the clients
+     */
+    private void drain(long timeoutSeconds) {
+        if (workers == null) {
+            return;
+        }
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (!connections.isEmpty() && System.nanoTime() < deadline) {
+                for (ConnectionHandler handler : connections) {
+                    handler.closeIfIdle();
+                }
+                Thread.sleep(DRAIN_POLL_MILLIS);
             }
-
-            // Create the new file to be stored on the server.
-            String textFromClientFile = stringBuilder.toString();
-
-            try{
-                BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter("files/" + fileName));
-                bufferedWriter.write(textFromClientFile, 0, textFromClientFile.length());
-                bufferedWriter.close();
-
-                // Notify the client that the file was uploaded successfully.
-                socketOutput.println(FINISHED_REQUEST);
-                socketOutput.println("The file " + fileName + " was uploaded successfully.");
-
-            }catch (IOException x) {
-                System.out.println("There was an error trying write the new file called " + fileName + " to the server.");
-
-                // Notify the client that an error occurred.
-                socketOutput.println(ERROR);
-                socketOutput.println("There was an error trying upload the new file called " + fileName + " to the server.");
-                //System.out.println(x);
-                //x.printStackTrace();
+            if (!connections.isEmpty()) {
+                int cutOff = 0;
+                for (ConnectionHandler handler : connections) {
+                    cutOff += handler.requestsInFlight();
+                }
+                System.out.println("Closing " + connections.size() + " connections that did not finish in time, "
+                        + cutOff + " requests were cut off.");
+                for (ConnectionHandler handler : connections) {
+                    handler.close();
+                }
             }
-        }catch (IOException x) {
-            System.out.println("There was an error trying to upload the file to the server.");
-
-            // Notify the client that an error occurred.
-            socketOutput.println(ERROR);
-            socketOutput.println("There was an error trying to upload the file to the server.");
-            //System.out.println(x);
-            //x.printStackTrace();
+            workers.shutdown();
+            workers.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+            // The handlers have waited for their requests, so only requests
+            // of connections that were closed can still be running.
+            requests.shutdown();
+            requests.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
         }
+        System.out.println("The server has shut down.");
     }
 
-    /** Delete a text file from the server.
-     *  Called when the client requests to
-     *  delete a file from the server.
+    /** Called by a handler when its client has disconnected.
+     *
+     * @param handler The handler of the closed connection
      */
-    private void deleteFileFromServer() {
-        try {
-            String temp;
-            String fileName = "";
+    void connectionClosed(ConnectionHandler handler) {
+        if (connections.remove(handler)) {
+            ServerMetrics.connectionClosed();
+            connectionPermits.release();
+        }
+    }
 
-            // Receive the file name to the file we want to delete.
-            while(!(temp = socketInput.readLine()).equals(DATA_NAME_SENT)) {
-                fileName = temp;
-            }
+    /** @return true while the server accepts new clients
+     */
+    boolean isRunning() {
+        return running;
+    }
 
-            // Check if the file name is empty.
-            // If not, then search for the file.
-            if(!fileName.equals("")) {
-                try {
-                    // Find the file and delete it.
-                    File file = new File("files/" + fileName);
-
-                    // Check if the file can be deleted.
-                    if(file.delete()){
-                        // Notify the client that the file was deleted.
-                        socketOutput.println(FINISHED_REQUEST);
-                        socketOutput.println("The file " + fileName + " was deleted from the server.");
-                        System.out.println("The file " + fileName + " was deleted from the server.");
-                    }else{
-                        // Notify the client that the file was not deleted.
-                        socketOutput.println(ERROR);
-                        socketOutput.println("An error occurred when trying to delete the file " + fileName + " from the server.");
-                        System.out.println("An error occurred when trying to delete the file " + fileName + " from the server.");
-                    }
+    /** Starts a virtual thread for every task, found by reflection
+     *  because the server is built for Java 8.
+     *
+     * @param kind What the threads do, part of their names
+     * @return The executor, or null if the JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor(String kind) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "SecureAdditionServer-" + kind + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException x) {
+            return null;
+        } catch (InvocationTargetException x) {
+            // Java 19 and 20 only have them as a preview feature.
+            return null;
+        }
+    }
 
-                }catch (Exception e) {
-                    // Notify the client that the file was not deleted.
-                    socketOutput.println(ERROR);
-                    socketOutput.println("An error occurred when trying to delete the file " + fileName + " from the server.");
+    /** Names the worker threads after the server.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String kind;
 
-                    //e.printStackTrace();
-                }
-            }
+        WorkerThreadFactory(String kind) {
+            this.kind = kind;
+        }
 
-        }catch (IOException e) {
-            socketOutput.println("An error occurred when trying to delete the file from the server.");
-            e.printStackTrace();
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SecureAdditionServer-" + kind + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
         }
     }
 
-
     /** The test method for the class
      * @param args[0] Optional port number in place of
      *        the default
+     * @param args[1] Optional number of clients that
+     *        are served concurrently
+     * @param args[2] Optional transport, "blocking" for a
+     *        thread per client, "nio" for SSLEngine
+     *        connections on a few event loop threads or
+     *        "plaintext" for unencrypted connections from
+     *        the same host, only meant for benchmarks
+     *
+     * -Dsecureaddition.virtualThreads=true serves the clients of the
+     * blocking and plaintext transports on virtual threads.
      */
     public static void main( String[] args ) {
         int port = DEFAULT_PORT;
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
         if (args.length > 0 ) {
             port = Integer.parseInt( args[0] );
         }
-        // Start the server.
-        SecureAdditionServer addServe = new SecureAdditionServer(port);
-        addServe.run();
+        if (args.length > 1 ) {
+            maxConnections = Integer.parseInt( args[1] );
+        }
+        // Start the server. When the JVM is asked to stop, the server stops accepting
+        // clients and the JVM waits until the connections have been drained.
+        if (args.length > 2 && args[2].equals("nio")) {
+            NioSecureAdditionServer nioServe = new NioSecureAdditionServer(port, maxConnections);
+            addShutdownHook(nioServe::shutdown, nioServe::awaitTermination);
+            nioServe.run();
+        }else{
+            boolean plaintext = args.length > 2 && args[2].equals("plaintext");
+            SecureAdditionServer addServe = new SecureAdditionServer(port, maxConnections, plaintext);
+            addShutdownHook(addServe::shutdown, addServe::awaitTermination);
+            addServe.run();
+        }
+    }
+
+    /** Waits for a server to be stopped.
+     */
+    interface Termination {
+        void await() throws InterruptedException;
+    }
+
+    /** Shuts a server down gracefully when the JVM is stopped, by a
+     *  signal or by System.exit().
+     *
+     * @param shutdown Stops the server from accepting clients
+     * @param termination Waits until the server has drained its connections
+     */
+    static void addShutdownHook(Runnable shutdown, Termination termination) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("The server is shutting down.");
+            shutdown.run();
+            try {
+                termination.await();
+            } catch (InterruptedException x) {
+                // The JVM ends without the rest of the drain.
+            }
+        }, "SecureAdditionServer-shutdown"));
     }
 }
 
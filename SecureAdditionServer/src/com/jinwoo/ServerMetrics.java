@@ -0,0 +1,349 @@
+package com.jinwoo;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what the servers of this process do: connections, handshakes
+ * and their times, bytes in and out, the time of every kind of request,
+ * the errors and how long clients were held back by the TrafficLimits.
+ *
+ * The metrics are only kept with -Dsecureaddition.metrics=true. They are
+ * then shown in JMX, and with -Dsecureaddition.metrics.port also as
+ * plain text on that port of the loopback interface, in the format that
+ * Prometheus scrapes. Every method checks the constant ENABLED first, so
+ * without the property the JIT removes the calls from the hot paths.
+ *
+ * Request times run from the arrival of the request to its last reply,
+ * an upload from UPLOAD to the reply to END.
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+    static final boolean ENABLED = Boolean.getBoolean("secureaddition.metrics");
+    static final int SCRAPE_PORT = Integer.getInteger("secureaddition.metrics.port", 0);
+    static final String OBJECT_NAME = "com.jinwoo:type=SecureAdditionServer,name=Metrics";
+
+    // The names of the opcodes of the requests, by opcode.
+    private static final String[] OPCODES = { null, "DOWNLOAD", "UPLOAD", "DELETE", "EXIT", "PING",
+            "STAT", "SUMS", "COMMIT", "HELLO", "LIST" };
+
+    private static final ServerMetrics INSTANCE = ENABLED ? new ServerMetrics() : null;
+    private static boolean started;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder handshakeFailures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder errorReplies = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder deduplicatedBytes = new LongAdder();
+    private final LongAdder groupCommits = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LatencyHistogram[] requests = new LatencyHistogram[OPCODES.length];
+
+    private ServerMetrics() {
+        for (int i = 1; i < requests.length; i++) {
+            requests[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Shows the metrics in JMX and starts the scrape endpoint,
+     *  once for all servers of the process.
+     */
+    static synchronized void start() {
+        if (!ENABLED || started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException x) {
+            System.out.println("The metrics could not be registered in JMX.");
+            System.out.println(x);
+        }
+        if (SCRAPE_PORT > 0) {
+            try {
+                ServerSocket endpoint = new ServerSocket(SCRAPE_PORT, 16, InetAddress.getLoopbackAddress());
+                Thread thread = new Thread(() -> INSTANCE.serveScrapes(endpoint), "SecureAdditionServer-metrics");
+                thread.setDaemon(true);
+                thread.start();
+                System.out.println("The metrics can be read at http://localhost:" + SCRAPE_PORT + "/metrics.");
+            } catch (IOException x) {
+                System.out.println("The metrics endpoint could not be opened on port " + SCRAPE_PORT + ".");
+            }
+        }
+    }
+
+    /** @return The time that a duration starts at, 0 when the metrics are off
+     */
+    static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void connectionOpened() {
+        if (ENABLED) {
+            INSTANCE.connections.increment();
+            INSTANCE.activeConnections.incrementAndGet();
+        }
+    }
+
+    static void connectionClosed() {
+        if (ENABLED) {
+            INSTANCE.activeConnections.decrementAndGet();
+        }
+    }
+
+    /** @param started The time from now() when the handshake started
+     */
+    static void handshakeFinished(long started) {
+        if (ENABLED) {
+            INSTANCE.handshakes.record(System.nanoTime() - started);
+        }
+    }
+
+    static void handshakeFailed() {
+        if (ENABLED) {
+            INSTANCE.handshakeFailures.increment();
+        }
+    }
+
+    /** Counts a client that was disconnected because it kept its connection waiting.
+     */
+    static void timedOut() {
+        if (ENABLED) {
+            INSTANCE.timeouts.increment();
+        }
+    }
+
+    /** @param length The payload length of a frame from a client
+     */
+    static void frameReceived(int length) {
+        if (ENABLED) {
+            INSTANCE.bytesReceived.add(Frame.HEADER_SIZE + length);
+        }
+    }
+
+    /** @param opcode What the frame is
+     *  @param length The payload length of a frame to a client
+     */
+    static void frameSent(int opcode, long length) {
+        if (ENABLED) {
+            INSTANCE.bytesSent.add(Frame.HEADER_SIZE + length);
+            if (opcode == Frame.ERROR) {
+                INSTANCE.errorReplies.increment();
+            }
+        }
+    }
+
+    /** @param opcode The opcode of the request
+     *  @param started The time from now() when the request arrived
+     */
+    static void requestFinished(int opcode, long started) {
+        if (ENABLED && opcode > 0 && opcode < OPCODES.length) {
+            INSTANCE.requests[opcode].record(System.nanoTime() - started);
+        }
+    }
+
+    /** Counts an error that the server has printed.
+     */
+    static void serverError() {
+        if (ENABLED) {
+            INSTANCE.serverErrors.increment();
+        }
+    }
+
+    /** @param nanos How long a client or a download is held back by the limits
+     */
+    static void throttled(long nanos) {
+        if (ENABLED) {
+            INSTANCE.throttledNanos.add(nanos);
+        }
+    }
+
+    /** @param bytes The length of an uploaded chunk that the ChunkStore had already
+     */
+    static void deduplicated(long bytes) {
+        if (ENABLED) {
+            INSTANCE.deduplicatedBytes.add(bytes);
+        }
+    }
+
+    /** @param size The durable commits that were forced to the disk together
+     */
+    static void groupCommitted(int size) {
+        if (ENABLED) {
+            INSTANCE.groupCommits.increment();
+            INSTANCE.commits.add(size);
+        }
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    public long getHandshakes() {
+        return handshakes.count();
+    }
+
+    public long getHandshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long[] getHandshakeMicros() {
+        return new long[] { handshakes.percentile(0.5) / 1000, handshakes.percentile(0.99) / 1000,
+                handshakes.percentile(0.999) / 1000 };
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getErrorReplies() {
+        return errorReplies.sum();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.sum();
+    }
+
+    public long getThrottledMillis() {
+        return throttledNanos.sum() / 1000000;
+    }
+
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.sum();
+    }
+
+    public long getGroupCommits() {
+        return groupCommits.sum();
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public RequestStats[] getRequests() {
+        List<RequestStats> stats = new ArrayList<>();
+        for (int i = 1; i < requests.length; i++) {
+            if (requests[i].count() > 0) {
+                stats.add(new RequestStats(OPCODES[i], requests[i]));
+            }
+        }
+        return stats.toArray(new RequestStats[stats.size()]);
+    }
+
+    /** @return The metrics in the text format of Prometheus
+     */
+    String scrape() {
+        StringBuilder text = new StringBuilder();
+        gauge(text, "secureaddition_connections_active", "Clients that are connected.", activeConnections.get());
+        counter(text, "secureaddition_connections_total", "Clients that have connected.", connections.sum());
+        counter(text, "secureaddition_handshake_failures_total", "TLS handshakes that failed.", handshakeFailures.sum());
+        counter(text, "secureaddition_timeouts_total", "Clients that were disconnected by a timeout.", timeouts.sum());
+        summary(text, "secureaddition_handshake_seconds", "Time of the TLS handshakes.", "", handshakes);
+        counter(text, "secureaddition_received_bytes_total", "Bytes of the frames from the clients.", bytesReceived.sum());
+        counter(text, "secureaddition_sent_bytes_total", "Bytes of the frames to the clients.", bytesSent.sum());
+        counter(text, "secureaddition_error_replies_total", "ERROR replies to the clients.", errorReplies.sum());
+        counter(text, "secureaddition_server_errors_total", "Errors of the server and its connections.", serverErrors.sum());
+        text.append("# HELP secureaddition_throttled_seconds_total Time that clients were held back by the limits.\n");
+        text.append("# TYPE secureaddition_throttled_seconds_total counter\n");
+        text.append("secureaddition_throttled_seconds_total ").append(seconds(throttledNanos.sum())).append('\n');
+        counter(text, "secureaddition_group_commits_total", "Groups of durable uploads that were forced to the disk.", groupCommits.sum());
+        counter(text, "secureaddition_commits_total", "Durable uploads that were forced to the disk.", commits.sum());
+        counter(text, "secureaddition_deduplicated_bytes_total", "Uploaded bytes that were stored already.", deduplicatedBytes.sum());
+        text.append("# HELP secureaddition_request_seconds Time from a request to its last reply.\n");
+        text.append("# TYPE secureaddition_request_seconds summary\n");
+        for (int i = 1; i < requests.length; i++) {
+            if (requests[i].count() > 0) {
+                summary(text, "secureaddition_request_seconds", null, "opcode=\"" + OPCODES[i] + "\",", requests[i]);
+            }
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** Writes a summary, with its HELP and TYPE lines unless help is null.
+     *
+     * @param labels The labels that come before the quantile, each followed by a comma
+     */
+    private static void summary(StringBuilder text, String name, String help, String labels, LatencyHistogram latency) {
+        if (help != null) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" summary\n");
+        }
+        for (String quantile : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+            text.append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(latency.percentile(Double.parseDouble(quantile)))).append('\n');
+        }
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        text.append(name).append("_sum").append(plain).append(' ').append(seconds(latency.sum())).append('\n');
+        text.append(name).append("_count").append(plain).append(' ').append(latency.count()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /** Answers every connection to the endpoint with the metrics,
+     *  whatever was asked for, until the process ends.
+     */
+    private void serveScrapes(ServerSocket endpoint) {
+        while (true) {
+            try (Socket socket = endpoint.accept()) {
+                socket.setSoTimeout(2000);
+                // The request is read up to its empty line, so the reply is not cut off by a reset.
+                BufferedReader request = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                String line;
+                while ((line = request.readLine()) != null && !line.isEmpty()) {
+                    // Only the metrics are served.
+                }
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                OutputStream response = socket.getOutputStream();
+                response.write(("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                response.write(body);
+                response.flush();
+            } catch (IOException x) {
+                // The scraper went away, the next one is served.
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.jinwoo;
+
+/**
+ * The metrics of the server as seen in JMX, under the name
+ * com.jinwoo:type=SecureAdditionServer,name=Metrics.
+ *
+ * JMX only reads MXBean interfaces that are public.
+ */
+public interface ServerMetricsMXBean {
+
+    /** @return The clients that are connected now
+     */
+    int getActiveConnections();
+
+    /** @return The clients that have connected since the start
+     */
+    long getConnections();
+
+    /** @return The TLS handshakes that were completed
+     */
+    long getHandshakes();
+
+    /** @return The TLS handshakes that failed or were cut off
+     */
+    long getHandshakeFailures();
+
+    /** @return The clients that were disconnected by the handshake, idle or read timeout
+     */
+    long getTimeouts();
+
+    /** @return The 50th, 99th and 99.9th percentile of the handshake time, in microseconds
+     */
+    long[] getHandshakeMicros();
+
+    /** @return The bytes of the frames that were received from the clients
+     */
+    long getBytesReceived();
+
+    /** @return The bytes of the frames that were sent to the clients
+     */
+    long getBytesSent();
+
+    /** @return The ERROR replies that were sent to the clients
+     */
+    long getErrorReplies();
+
+    /** @return The errors of the server, its connections and its event loops
+     */
+    long getServerErrors();
+
+    /** @return How long clients and downloads were held back by the limits, added up
+     */
+    long getThrottledMillis();
+
+    /** @return The uploaded bytes that the chunk store did not write, because it had them already
+     */
+    long getDeduplicatedBytes();
+
+    /** @return The groups of durable uploads that were forced to the disk
+     */
+    long getGroupCommits();
+
+    /** @return The durable uploads that were forced to the disk, getCommits() / getGroupCommits() are in one group on average
+     */
+    long getCommits();
+
+    /** @return The count and times of every kind of request that has been seen
+     */
+    RequestStats[] getRequests();
+
+    /**
+     * The count and times of one kind of request.
+     */
+    final class RequestStats {
+        private final String opcode;
+        private final long count;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long p999Micros;
+        private final long maxMicros;
+
+        RequestStats(String opcode, LatencyHistogram latency) {
+            this.opcode = opcode;
+            this.count = latency.count();
+            this.p50Micros = latency.percentile(0.5) / 1000;
+            this.p99Micros = latency.percentile(0.99) / 1000;
+            this.p999Micros = latency.percentile(0.999) / 1000;
+            this.maxMicros = latency.max() / 1000;
+        }
+
+        public String getOpcode() {
+            return opcode;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getP999Micros() {
+            return p999Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+    }
+}
@@ -0,0 +1,840 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import static com.jinwoo.SecureAdditionServer.HANDSHAKE_TIMEOUT_SECONDS;
+import static com.jinwoo.SecureAdditionServer.IDLE_TIMEOUT_SECONDS;
+import static com.jinwoo.SecureAdditionServer.READ_TIMEOUT_SECONDS;
+
+/**
+ * A client of the non-blocking server.
+ *
+ * The connection decrypts what the client sends with its SSLEngine and
+ * decodes it into frames. The frames are handed in order to a
+ * RequestHandler that runs on the worker pool of the server, and the
+ * requests write their response frames back through send(), several
+ * of them at the same time. Reading stops
+ * while too many frames are waiting for the handler, so a fast uploader
+ * is held back by TCP instead of filling the memory of the server.
+ * A client over its TrafficLimits is held back the same way, its frames
+ * wait without a worker until the timer of the limits lets them go on,
+ * and the event loop stops encrypting its responses until the timer
+ * lets them go on as well.
+ * The network and application buffers are only held while they
+ * contain data. The slow steps of the handshake run on a handshake
+ * thread of the server, not on a worker that a busy request may hold,
+ * and the connection waits for them without holding up the event loop.
+ *
+ * The event loop has the connection check its timeouts every second,
+ * with the same limits as the blocking server: the handshake, a client
+ * that stops in the middle of a frame or an upload or stops reading,
+ * and a client without requests.
+ */
+class SslEngineConnection implements ResponseWriter {
+    // A worker waits when this many response bytes have not been encrypted yet.
+    static final int MAX_PENDING_OUTPUT = 256 * 1024;
+    // Reading stops when this many received bytes are waiting for the handler.
+    static final int MAX_PENDING_INPUT = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final NioEventLoop loop;
+    private final NioSecureAdditionServer server;
+    private SelectionKey key;
+
+    // Only used by the event loop thread.
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private boolean closeAfterFlush;
+    // Set while the delegated tasks of the handshake run on a handshake thread, the engine is not used meanwhile.
+    private boolean tasksRunning;
+    // Read by close(), which may run on another thread.
+    private volatile boolean handshakeReported;
+    // When the connection was accepted, for the metrics.
+    private final long accepted = ServerMetrics.now();
+    private volatile boolean readingPaused;
+    // When the client last sent something and last took something, for the timeouts.
+    private final long opened = System.nanoTime();
+    private long lastRead = opened;
+    private long lastWrite = opened;
+    private long lastBusy = opened;
+    // Until when the byte limits of the client hold the response back, and whether the timer goes on with it then.
+    private long pausedUntil = opened;
+    private boolean resumeScheduled;
+
+    // The limits of the client, which the event loop keeps for the response.
+    private final TrafficLimits.Client limits;
+    // Frames waiting for the handler, guarded by the inbound queue itself.
+    private final RequestHandler handler;
+    private final ArrayDeque<Frame> inbound = new ArrayDeque<>();
+    private int inboundBytes;
+    private boolean handlerRunning;
+    // Set once the client has exited, what it sends after EXIT is dropped.
+    private boolean exiting;
+
+    // Response data written by a worker, guarded by the outbound queue itself.
+    // Headers and messages are writable heap buffers, the payloads of DATA
+    // frames are direct or read-only buffers and count against the limits.
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private int outboundBytes;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param channel The non-blocking channel of the client
+     * @param engine The server mode engine for the client
+     * @param loop The event loop that serves the channel
+     * @param server The server that accepted the client
+     */
+    SslEngineConnection(SocketChannel channel, SSLEngine engine, NioEventLoop loop, NioSecureAdditionServer server) {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.server = server;
+        this.limits = server.limits().newClient();
+        this.handler = new RequestHandler(server.processor(), this, server.workers(), limits);
+    }
+
+    /** Called by the event loop once the channel is registered.
+     *
+     * @param key The selection key of the channel
+     */
+    void registered(SelectionKey key) throws SSLException {
+        this.key = key;
+        engine.beginHandshake();
+    }
+
+    /** Reads and decrypts what the client has sent.
+     */
+    void onReadable() {
+        try {
+            if (netIn == null) {
+                netIn = server.netBuffers().acquire();
+            }
+            int count = channel.read(netIn);
+            if (count < 0) {
+                // The client has closed the connection.
+                close();
+                return;
+            }
+            if (count > 0) {
+                lastRead = System.nanoTime();
+            }
+            unwrap();
+        } catch (IOException x) {
+            close();
+        }
+    }
+
+    /** Writes the encrypted data that did not fit in the socket before.
+     */
+    void onWritable() {
+        try {
+            flush();
+            if (netIn != null && !closed) {
+                unwrap();
+            }
+        } catch (IOException x) {
+            close();
+        }
+    }
+
+    private void unwrap() throws IOException {
+        if (tasksRunning) {
+            // Goes on once the tasks are done, what was read waits in netIn.
+            return;
+        }
+        netIn.flip();
+        try {
+            while (!closed) {
+                SSLEngineResult.HandshakeStatus handshake = engine.getHandshakeStatus();
+                if (handshake == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    return;
+                }
+                if (handshake == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    flush();
+                    // The socket is full, onWritable() continues when it has room.
+                    if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        return;
+                    }
+                    continue;
+                }
+                if (!netIn.hasRemaining()) {
+                    return;
+                }
+
+                if (appIn == null) {
+                    appIn = server.appBuffers().acquire();
+                }
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                handshakeFinished(result);
+                if (appIn.position() > 0) {
+                    readApplicationData();
+                }
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // Wait for the rest of the TLS record.
+                        if (netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+                            netIn = enlarge(server.netBuffers(), netIn, engine.getSession().getPacketBufferSize());
+                        }
+                        return;
+                    case BUFFER_OVERFLOW:
+                        if (appIn != null && appIn.position() == 0) {
+                            appIn = resize(server.appBuffers(), appIn, engine.getSession().getApplicationBufferSize());
+                        }
+                        break;
+                    case CLOSED:
+                        close();
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            if (netIn != null) {
+                netIn.compact();
+                if (netIn.position() == 0) {
+                    server.netBuffers().release(netIn);
+                    netIn = null;
+                }
+            }
+        }
+    }
+
+    /** Moves the start of a TLS record that does not fit in its buffer
+     *  into a larger one of the pool, and gives the old one back.
+     *
+     * @param buffer A full buffer of the pool, ready to be read
+     * @param capacity The packet size of the session
+     * @return The larger buffer, ready to be read
+     */
+    private static ByteBuffer enlarge(BufferPool pool, ByteBuffer buffer, int capacity) {
+        pool.grow(capacity);
+        ByteBuffer larger = pool.acquire();
+        if (larger.capacity() <= buffer.capacity()) {
+            // The record is larger than the session said, such a buffer is not pooled.
+            pool.release(larger);
+            larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        }
+        larger.put(buffer);
+        larger.flip();
+        pool.release(buffer);
+        return larger;
+    }
+
+    /** Replaces an empty buffer of a pool that is too small for the
+     *  session, the pool hands out buffers of the new size from now on.
+     *
+     * @param empty The buffer, which goes back to the pool
+     * @param capacity The size that the session needs
+     * @return A cleared buffer of the size
+     */
+    private static ByteBuffer resize(BufferPool pool, ByteBuffer empty, int capacity) {
+        pool.grow(capacity);
+        pool.release(empty);
+        return pool.acquire();
+    }
+
+    /** Decodes the decrypted data into frames and queues them for the handler.
+     */
+    private void readApplicationData() throws IOException {
+        appIn.flip();
+        try {
+            Frame frame;
+            while ((frame = decoder.decode(appIn)) != null) {
+                enqueue(frame);
+            }
+        } finally {
+            server.appBuffers().release(appIn);
+            appIn = null;
+        }
+
+        boolean full;
+        synchronized (inbound) {
+            full = inboundBytes >= MAX_PENDING_INPUT;
+        }
+        if (full && !readingPaused) {
+            readingPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /** Queues a frame and starts the handler if it is not running,
+     *  so the frames of the client are handled one at a time and in order.
+     */
+    private void enqueue(Frame frame) {
+        boolean start = false;
+        synchronized (inbound) {
+            if (exiting) {
+                return;
+            }
+            inbound.add(frame);
+            inboundBytes += frame.length;
+            if (!handlerRunning) {
+                handlerRunning = true;
+                start = true;
+            }
+        }
+        if (start) {
+            startHandler();
+        }
+    }
+
+    private void startHandler() {
+        try {
+            server.workers().execute(this::handleFrames);
+        } catch (RejectedExecutionException x) {
+            // The server is shutting down.
+            handler.abort();
+        }
+    }
+
+    /** Runs on a worker until the queued frames have been handled.
+     */
+    private void handleFrames() {
+        while (true) {
+            Frame frame;
+            boolean resume;
+            synchronized (inbound) {
+                frame = closed ? null : inbound.poll();
+                if (frame == null) {
+                    handlerRunning = false;
+                    if (closed) {
+                        inbound.clear();
+                        handler.abort();
+                    }
+                    return;
+                }
+                inboundBytes -= frame.length;
+                resume = readingPaused && inboundBytes < MAX_PENDING_INPUT / 2;
+            }
+            if (resume) {
+                loop.execute(this::resumeReading);
+            }
+
+            try {
+                if (!handler.handle(frame)) {
+                    // The client has exited, the connection is closed once its
+                    // requests are done and the responses have been written.
+                    synchronized (inbound) {
+                        exiting = true;
+                        inbound.clear();
+                        inboundBytes = 0;
+                        handlerRunning = false;
+                    }
+                    handler.whenIdle(() -> loop.execute(this::exited));
+                    return;
+                }
+            } catch (IOException x) {
+                close();
+            }
+
+            long delay = handler.delayAfter(frame);
+            if (delay > 0) {
+                // Still counts as running, so no other worker takes the frames meanwhile.
+                server.limits().schedule(this::startHandler, delay);
+                return;
+            }
+        }
+    }
+
+    private void resumeReading() {
+        if (readingPaused && !closed) {
+            readingPaused = false;
+            if (!tasksRunning) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void exited() {
+        closeAfterFlush = true;
+        try {
+            flush();
+        } catch (IOException x) {
+            close();
+        }
+    }
+
+    /** Queues a response frame, called by the worker that carries out
+     *  the request. Waits while too much of the response is queued.
+     */
+    public void send(int opcode, int flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+        if (opcode == Frame.DATA) {
+            ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+            putHeader(header, opcode, flags, requestId, length);
+            header.flip();
+            queue(header, ByteBuffer.wrap(Arrays.copyOfRange(payload, offset, offset + length)).asReadOnlyBuffer());
+        }else{
+            ByteBuffer bytes = ByteBuffer.allocate(Frame.HEADER_SIZE + length);
+            putHeader(bytes, opcode, flags, requestId, length);
+            bytes.put(payload, offset, length).flip();
+            queue(bytes, null);
+        }
+        ServerMetrics.frameSent(opcode, length);
+    }
+
+    /** Queues a part of a file as DATA frames. Every frame is read into a
+     *  direct buffer of the file buffer pool and encrypted straight from
+     *  that buffer, which goes back to the pool once it has been wrapped.
+     */
+    public void sendFile(int requestId, FileChannel file, long position, long length) throws IOException {
+        while (length > 0) {
+            ByteBuffer data = server.fileBuffers().acquire();
+            int count = (int) Math.min(length, data.capacity());
+            data.limit(count);
+            try {
+                FileRequestProcessor.readFully(file, data, position);
+            } catch (IOException x) {
+                server.fileBuffers().release(data);
+                throw x;
+            }
+            data.flip();
+
+            ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+            putHeader(header, Frame.DATA, 0, requestId, count);
+            header.flip();
+            queue(header, data);
+            ServerMetrics.frameSent(Frame.DATA, count);
+            position += count;
+            length -= count;
+        }
+    }
+
+    /** Queues bytes of the file cache as DATA frames. The frames are
+     *  encrypted straight from slices of the cached buffer.
+     */
+    public void sendContent(int requestId, ByteBuffer content) throws IOException {
+        while (content.hasRemaining()) {
+            int count = Math.min(content.remaining(), Frame.CHUNK_SIZE);
+            ByteBuffer data = content.slice();
+            data.limit(count);
+            content.position(content.position() + count);
+
+            ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+            putHeader(header, Frame.DATA, 0, requestId, count);
+            header.flip();
+            queue(header, data);
+            ServerMetrics.frameSent(Frame.DATA, count);
+        }
+    }
+
+    private static void putHeader(ByteBuffer buffer, int opcode, int flags, int requestId, int length) {
+        buffer.put((byte) Frame.VERSION)
+                .put((byte) opcode)
+                .putShort((short) flags)
+                .putInt(requestId)
+                .putInt(length);
+    }
+
+    /** Adds a frame to the outbound queue and has the event loop write it.
+     *
+     * @param frame The frame, or the header of the frame if data is given
+     * @param data A pooled direct buffer or a read-only buffer with the payload of a DATA frame, or null
+     */
+    private void queue(ByteBuffer frame, ByteBuffer data) throws IOException {
+        synchronized (outbound) {
+            try {
+                while (outboundBytes >= MAX_PENDING_OUTPUT && !closed) {
+                    outbound.wait();
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (closed) {
+                if (data != null) {
+                    releaseFileBuffer(data);
+                }
+                throw new ClosedChannelException();
+            }
+            outbound.add(frame);
+            outboundBytes += frame.remaining();
+            if (data != null) {
+                outbound.add(data);
+                outboundBytes += data.remaining();
+            }
+        }
+        scheduleFlush();
+    }
+
+    /** Gives a written buffer back to the file buffer pool, if it came from there.
+     */
+    private void releaseFileBuffer(ByteBuffer written) {
+        // The only direct buffers in the queue are file buffers and the
+        // read-only slices of the file cache, which are not pooled.
+        if (written.isDirect() && !written.isReadOnly()) {
+            server.fileBuffers().release(written);
+        }
+    }
+
+    /** @return The bytes of the payloads of DATA frames that the buffers have left
+     */
+    private static long payloadBytes(ByteBuffer[] buffers) {
+        long bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.isDirect() || buffer.isReadOnly()) {
+                bytes += buffer.remaining();
+            }
+        }
+        return bytes;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException x) {
+                    close();
+                }
+            });
+        }
+    }
+
+    /** Encrypts the queued response and handshake data and writes it
+     *  until everything is written or the socket is full.
+     */
+    private void flush() throws IOException {
+        while (!closed) {
+            if (netOut != null && netOut.position() > 0) {
+                netOut.flip();
+                if (channel.write(netOut) > 0) {
+                    lastWrite = System.nanoTime();
+                }
+                netOut.compact();
+                if (netOut.position() > 0) {
+                    // Continue when the socket has room again.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (tasksRunning) {
+                // Continues once the tasks are done.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+
+            boolean handshakeWrap = engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+            boolean hasOutput;
+            synchronized (outbound) {
+                hasOutput = !outbound.isEmpty();
+            }
+            if (!handshakeWrap && !hasOutput) {
+                if (closeAfterFlush) {
+                    closeGracefully();
+                    return;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (netOut != null) {
+                    server.netBuffers().release(netOut);
+                    netOut = null;
+                }
+                return;
+            }
+            if (!handshakeWrap && paused()) {
+                return;
+            }
+
+            if (netOut == null) {
+                netOut = server.netBuffers().acquire();
+            }
+            SSLEngineResult result;
+            long payload = 0;
+            synchronized (outbound) {
+                ByteBuffer[] sources = outbound.toArray(new ByteBuffer[outbound.size()]);
+                if (limits.limitsBytes()) {
+                    payload = payloadBytes(sources);
+                }
+                result = engine.wrap(sources, netOut);
+                if (limits.limitsBytes()) {
+                    payload -= payloadBytes(sources);
+                }
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    releaseFileBuffer(outbound.poll());
+                }
+                outboundBytes -= result.bytesConsumed();
+                outbound.notifyAll();
+            }
+            if (payload > 0) {
+                long delay = limits.sent(payload);
+                if (delay > 0) {
+                    pausedUntil = System.nanoTime() + delay;
+                }
+            }
+
+            handshakeFinished(result);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                // The record does not fit in an empty buffer, the session needs larger ones.
+                netOut = resize(server.netBuffers(), netOut, engine.getSession().getPacketBufferSize());
+            }
+            else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                close();
+                return;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+        }
+    }
+
+    /** Stops writing the response while the byte limits of the client
+     *  hold it back. The worker that sends it does not wait for the limits,
+     *  only for the queue, and the timer has the event loop go on with the
+     *  response once the limits allow it.
+     *
+     * @return true if the response waits for the limits
+     */
+    private boolean paused() {
+        long wait = pausedUntil - System.nanoTime();
+        if (wait <= 0) {
+            return false;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (netOut != null) {
+            server.netBuffers().release(netOut);
+            netOut = null;
+        }
+        if (!resumeScheduled) {
+            resumeScheduled = true;
+            server.limits().schedule(() -> loop.execute(this::resumeWriting), wait);
+        }
+        return true;
+    }
+
+    private void resumeWriting() {
+        resumeScheduled = false;
+        try {
+            flush();
+        } catch (IOException x) {
+            close();
+        }
+    }
+
+    /** Closes the connection if the client has kept it waiting for too
+     *  long, called by the event loop.
+     *
+     * @param now The time from System.nanoTime()
+     */
+    void checkTimeouts(long now) {
+        if (closed) {
+            return;
+        }
+        boolean output = netOut != null && netOut.position() > 0;
+        synchronized (outbound) {
+            output |= !outbound.isEmpty();
+        }
+        if (!output || now - pausedUntil < 0) {
+            // Only the time that the client has had something to take counts,
+            // not the time that its limits hold the response back.
+            lastWrite = now;
+        }
+        boolean idle = !output && isIdle();
+        if (!idle) {
+            // A long download does not count as idle time.
+            lastBusy = now;
+        }
+
+        String reason = null;
+        if (!handshakeReported) {
+            if (HANDSHAKE_TIMEOUT_SECONDS > 0 && now - opened >= TimeUnit.SECONDS.toNanos(HANDSHAKE_TIMEOUT_SECONDS)) {
+                reason = "A client did not finish its handshake in time and was disconnected.";
+            }
+        }
+        else if (READ_TIMEOUT_SECONDS > 0 && now - lastRead >= TimeUnit.SECONDS.toNanos(READ_TIMEOUT_SECONDS)
+                && !readingPaused && (netIn != null || decoder.isInFrame() || handler.isReceiving())) {
+            // The server has not stopped reading, the client has stopped sending.
+            reason = "A client stopped in the middle of a frame or an upload and was disconnected.";
+        }
+        else if (READ_TIMEOUT_SECONDS > 0 && now - lastWrite >= TimeUnit.SECONDS.toNanos(READ_TIMEOUT_SECONDS)) {
+            reason = "A client stopped reading what it was sent and was disconnected.";
+        }
+        else if (IDLE_TIMEOUT_SECONDS > 0 && idle
+                && now - Math.max(lastRead, lastBusy) >= TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS)) {
+            reason = "A client was idle for too long and was disconnected.";
+        }
+        if (reason != null) {
+            // A handshake that timed out is counted as failed by close() as well.
+            ServerMetrics.timedOut();
+            System.out.println(reason);
+            close();
+        }
+    }
+
+    /** @return true if the client has finished its handshake and has no requests in flight
+     */
+    boolean isIdle() {
+        synchronized (inbound) {
+            if (!inbound.isEmpty() || handlerRunning) {
+                return false;
+            }
+        }
+        return handshakeReported && handler.isIdle();
+    }
+
+    /** @return The requests of the client that have not been answered
+     */
+    int requestsInFlight() {
+        return handler.requestsInFlight();
+    }
+
+    /** Closes the connection once the responses that are queued have been
+     *  written, if the client has no requests in flight, used when the server
+     *  shuts down. The check runs on the event loop, which is the only thread
+     *  that adds frames to the inbound queue, and a request that arrives
+     *  afterwards is refused, see RequestHandler.stopIfIdle().
+     */
+    void closeIfIdle() {
+        loop.execute(() -> {
+            if (!closed && !decoder.isInFrame() && isIdle() && handler.stopIfIdle()) {
+                exited();
+            }
+        });
+    }
+
+    /** Reports what was negotiated once the first handshake is done,
+     *  so it can be checked that the fast ciphers are used.
+     */
+    private void handshakeFinished(SSLEngineResult result) {
+        if (!handshakeReported && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeReported = true;
+            ServerMetrics.handshakeFinished(accepted);
+            System.out.println("A client has connected with " + TlsPolicy.describe(engine.getSession()) + ".");
+        }
+    }
+
+    /** Runs the delegated tasks of the handshake, such as the checks of
+     *  the certificates, on a handshake thread. The connection stops
+     *  reading and wrapping until they are done, the other connections
+     *  of the event loop go on meanwhile.
+     */
+    private void runDelegatedTasks() {
+        if (tasksRunning) {
+            return;
+        }
+        tasksRunning = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        try {
+            server.handshakes().execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                loop.execute(this::tasksDone);
+            });
+        } catch (RejectedExecutionException x) {
+            // The server is shutting down.
+            close();
+        }
+    }
+
+    /** Goes on with the handshake on the event loop once its tasks are done.
+     */
+    private void tasksDone() {
+        tasksRunning = false;
+        if (closed) {
+            return;
+        }
+        if (!readingPaused) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        onWritable();
+    }
+
+    /** Sends close_notify to the client and closes the connection.
+     */
+    private void closeGracefully() {
+        try {
+            engine.closeOutbound();
+            if (netOut == null) {
+                netOut = server.netBuffers().acquire();
+            }
+            netOut.clear();
+            engine.wrap(ByteBuffer.allocate(0), netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (IOException x) {
+            // The client is gone already.
+        }
+        close();
+    }
+
+    /** Closes the connection and gives its buffers back to the pools.
+     */
+    void close() {
+        if (!closing.compareAndSet(false, true)) {
+            return;
+        }
+        closed = true;
+        if (!handshakeReported) {
+            ServerMetrics.handshakeFailed();
+        }
+        // The handler aborts an unfinished upload on its own thread.
+        boolean start = false;
+        synchronized (inbound) {
+            if (!handlerRunning) {
+                handlerRunning = true;
+                start = true;
+            }
+        }
+        if (start) {
+            startHandler();
+        }
+        synchronized (outbound) {
+            // The file buffers that were not written go back to their pool.
+            for (ByteBuffer queued : outbound) {
+                releaseFileBuffer(queued);
+            }
+            outbound.clear();
+            outbound.notifyAll();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException x) {
+            // Nothing more can be done with this connection.
+        }
+        // The buffers are only touched by the event loop, so they are
+        // released there even when close() was called by another thread.
+        loop.execute(this::releaseBuffers);
+        server.connectionClosed(this);
+    }
+
+    private void releaseBuffers() {
+        if (netIn != null) {
+            server.netBuffers().release(netIn);
+            netIn = null;
+        }
+        if (appIn != null) {
+            server.appBuffers().release(appIn);
+            appIn = null;
+        }
+        if (netOut != null) {
+            server.netBuffers().release(netOut);
+            netOut = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.jinwoo;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * A file of a FileStore that is open for reading. It stays the same
+ * while it is open, a file that is replaced meanwhile is still read
+ * as it was when it was opened, or the read fails.
+ */
+interface StoredFile extends Closeable, ChunkChecksums.Source {
+
+    /** @return The size of the content
+     */
+    long size();
+
+    /** @return When the file was last written
+     */
+    FileTime lastModified();
+
+    /** @return The SHA-256 of the content in lower case hex, or null if the store does not keep it
+     */
+    String sha256();
+
+    /** @return false if the file has been replaced or changed since it was opened
+     */
+    boolean isCurrent() throws IOException;
+
+    /** Fills the buffer with the content from the position on.
+     *
+     * @throws java.io.EOFException If the file ends before the buffer is full
+     */
+    void read(ByteBuffer buffer, long position) throws IOException;
+
+    /** Sends a part of the content as DATA frames through the writer
+     *  of the connection, with transferTo() where it can.
+     *
+     * @param position Where the part starts
+     * @param length The number of bytes to send
+     */
+    void send(int requestId, long position, long length, ResponseWriter out) throws IOException;
+}
@@ -0,0 +1,162 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends the responses of a blocking connection as frames on
+ * the stream of its socket.
+ *
+ * On a plaintext connection the content of a file goes from the
+ * file to the socket with FileChannel.transferTo(), so it is never
+ * copied through the JVM. On a TLS connection it is read in chunks
+ * into an array that every thread reuses and encrypted from there.
+ * Files from the cache are written from their direct buffers in the
+ * same way.
+ *
+ * Several requests of the connection may send at the same time, every
+ * frame is written as a whole while holding the lock of the writer. It is
+ * a ReentrantLock and not the monitor of the stream, a virtual thread that
+ * blocks on the socket in a synchronized block would hold on to its
+ * carrier thread until the client reads.
+ */
+class StreamResponseWriter implements ResponseWriter {
+    private final FrameOutputStream out;
+    private final SocketChannel plaintextChannel;
+    private final ReentrantLock lock = new ReentrantLock();
+    // When the frame that is being written was started, 0 while none is written.
+    private volatile long writingSince;
+    // The threads of the request executor read the files into these.
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[Frame.CHUNK_SIZE]);
+
+    /**
+     * Constructor
+     *
+     * @param out The frame stream of the socket
+     * @param plaintextChannel The channel of a plaintext socket, or null for TLS
+     */
+    StreamResponseWriter(FrameOutputStream out, SocketChannel plaintextChannel) {
+        this.out = out;
+        this.plaintextChannel = plaintextChannel;
+    }
+
+    public void send(int opcode, int flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+        lock();
+        try {
+            out.writeFrame(opcode, flags, requestId, payload, offset, length);
+        } finally {
+            unlock();
+        }
+        ServerMetrics.frameSent(opcode, length);
+    }
+
+    public void sendFile(int requestId, FileChannel file, long position, long length) throws IOException {
+        byte[] chunk = CHUNKS.get();
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (length > 0) {
+            int count = (int) Math.min(length, Frame.CHUNK_SIZE);
+            if (plaintextChannel != null) {
+                lock();
+                try {
+                    out.writeHeader(Frame.DATA, 0, requestId, count);
+                    out.flush();
+                    try {
+                        transferFully(file, position, count, buffer);
+                    } catch (IOException x) {
+                        // The frame has been started, nothing can follow it on the stream.
+                        plaintextChannel.close();
+                        throw x;
+                    }
+                } finally {
+                    unlock();
+                }
+            }else{
+                // The file is read before taking the lock, so a slow disk
+                // does not hold up the frames of the other requests.
+                buffer.clear();
+                buffer.limit(count);
+                FileRequestProcessor.readFully(file, buffer, position);
+                lock();
+                try {
+                    out.writeFrame(Frame.DATA, 0, requestId, chunk, 0, count);
+                } finally {
+                    unlock();
+                }
+            }
+            ServerMetrics.frameSent(Frame.DATA, count);
+            position += count;
+            length -= count;
+        }
+    }
+
+    public void sendContent(int requestId, ByteBuffer content) throws IOException {
+        byte[] chunk = CHUNKS.get();
+        while (content.hasRemaining()) {
+            int count = Math.min(content.remaining(), Frame.CHUNK_SIZE);
+            if (plaintextChannel != null) {
+                ByteBuffer data = content.slice();
+                data.limit(count);
+                lock();
+                try {
+                    out.writeHeader(Frame.DATA, 0, requestId, count);
+                    out.flush();
+                    while (data.hasRemaining()) {
+                        plaintextChannel.write(data);
+                    }
+                } finally {
+                    unlock();
+                }
+                content.position(content.position() + count);
+            }else{
+                content.get(chunk, 0, count);
+                lock();
+                try {
+                    out.writeFrame(Frame.DATA, 0, requestId, chunk, 0, count);
+                } finally {
+                    unlock();
+                }
+            }
+            ServerMetrics.frameSent(Frame.DATA, count);
+        }
+    }
+
+    private void lock() {
+        lock.lock();
+        writingSince = System.nanoTime();
+    }
+
+    private void unlock() {
+        writingSince = 0;
+        lock.unlock();
+    }
+
+    /** @return How long the frame that is being written has waited for
+     *  the client to take it, in nanoseconds, 0 if none is written
+     */
+    long stalledNanos() {
+        long since = writingSince;
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    private void transferFully(FileChannel file, long position, int count, ByteBuffer buffer) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, plaintextChannel);
+            if (sent <= 0) {
+                // The socket of a virtual thread is non-blocking underneath, and transferTo()
+                // gives up when it is full. The rest is copied, write() waits for the client.
+                buffer.clear();
+                buffer.limit((int) (end - position));
+                FileRequestProcessor.readFully(file, buffer, position);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    plaintextChannel.write(buffer);
+                }
+                sent = buffer.limit();
+            }
+            position += sent;
+        }
+    }
+}
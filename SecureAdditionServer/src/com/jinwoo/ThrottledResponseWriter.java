@@ -0,0 +1,58 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends the responses of a client of the blocking server whose bytes
+ * are limited, and waits after every chunk of a file until the limits
+ * allow the next one. The non-blocking server holds the bytes back in
+ * its event loop instead, see SslEngineConnection.
+ *
+ * The chunks are handed to the writer of the connection one at a time,
+ * so a plaintext connection still sends them with transferTo(). The
+ * messages are sent without waiting, only the content of files counts.
+ */
+class ThrottledResponseWriter implements ResponseWriter {
+    private final ResponseWriter out;
+    private final TrafficLimits.Client limits;
+
+    /**
+     * Constructor
+     *
+     * @param out The writer of the connection
+     * @param limits The limits of the client
+     */
+    ThrottledResponseWriter(ResponseWriter out, TrafficLimits.Client limits) {
+        this.out = out;
+        this.limits = limits;
+    }
+
+    public void send(int opcode, int flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+        out.send(opcode, flags, requestId, payload, offset, length);
+        if (opcode == Frame.DATA) {
+            TrafficLimits.pause(limits.sent(length));
+        }
+    }
+
+    public void sendFile(int requestId, FileChannel file, long position, long length) throws IOException {
+        while (length > 0) {
+            int count = (int) Math.min(length, Frame.CHUNK_SIZE);
+            out.sendFile(requestId, file, position, count);
+            TrafficLimits.pause(limits.sent(count));
+            position += count;
+            length -= count;
+        }
+    }
+
+    public void sendContent(int requestId, ByteBuffer content) throws IOException {
+        while (content.hasRemaining()) {
+            int count = Math.min(content.remaining(), Frame.CHUNK_SIZE);
+            ByteBuffer chunk = content.duplicate();
+            chunk.limit(chunk.position() + count);
+            out.sendContent(requestId, chunk);
+            content.position(content.position() + count);
+            TrafficLimits.pause(limits.sent(count));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.jinwoo;
+
+/**
+ * A token bucket that hands out a rate of bytes or requests per second,
+ * with bursts of up to one second of the rate.
+ *
+ * Taking never fails, the bucket goes into debt instead and tells the
+ * caller how long to wait until the debt is paid back. The callers that
+ * take while the bucket is in debt wait in turn, so the rate is shared
+ * between them.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final long burst;
+    // Guarded by this.
+    private double tokens;
+    private long last = System.nanoTime();
+
+    /**
+     * Constructor
+     *
+     * @param perSecond The rate, more than 0
+     */
+    TokenBucket(long perSecond) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = perSecond;
+        this.tokens = perSecond;
+    }
+
+    /** Takes tokens from the bucket.
+     *
+     * @param amount The bytes or requests
+     * @return How long the caller should wait in nanoseconds, 0 if the tokens were there
+     */
+    synchronized long take(long amount) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+        last = now;
+        tokens -= amount;
+        return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,237 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one client from taking the server from the others: limits on
+ * the bytes and requests per second of every client and of all clients
+ * together, and on the number of downloads that are sent at the same time.
+ *
+ * A client that goes over a rate is not refused, it is slowed down. The
+ * connection waits before it handles the next frame of the client, so the
+ * frames that follow stay in the socket and TCP holds the client back,
+ * and a download waits between its chunks. The non-blocking server does
+ * not sleep on a worker for the bytes that it sends, its event loop stops
+ * writing the response and the timer goes on with it. Downloads over the
+ * limit wait in a queue without a thread until one of the others is done,
+ * uploads do not hold a thread between their frames and are held back by
+ * the rates alone.
+ *
+ * Every limit is off unless it is set:
+ *
+ *   -Dsecureaddition.limit.bytesPerSecond          all clients
+ *   -Dsecureaddition.limit.clientBytesPerSecond    every client
+ *   -Dsecureaddition.limit.requestsPerSecond       all clients
+ *   -Dsecureaddition.limit.clientRequestsPerSecond every client
+ *   -Dsecureaddition.limit.transfers               downloads at the same time
+ *
+ * The bytes are the content of uploads and downloads in both directions,
+ * the requests are every frame that starts a request or a file of a
+ * bulk upload. The non-blocking server limits the transfers by default,
+ * so that its workers are never all busy sending files.
+ */
+class TrafficLimits {
+    static final long BYTES_PER_SECOND = Long.getLong("secureaddition.limit.bytesPerSecond", 0);
+    static final long CLIENT_BYTES_PER_SECOND = Long.getLong("secureaddition.limit.clientBytesPerSecond", 0);
+    static final long REQUESTS_PER_SECOND = Long.getLong("secureaddition.limit.requestsPerSecond", 0);
+    static final long CLIENT_REQUESTS_PER_SECOND = Long.getLong("secureaddition.limit.clientRequestsPerSecond", 0);
+
+    // Null when the limit is off.
+    private final TokenBucket bytes = BYTES_PER_SECOND > 0 ? new TokenBucket(BYTES_PER_SECOND) : null;
+    private final TokenBucket requests = REQUESTS_PER_SECOND > 0 ? new TokenBucket(REQUESTS_PER_SECOND) : null;
+    private final int maxTransfers;
+    // The downloads that are being sent and the ones that wait, guarded by this.
+    private int transfers;
+    private final ArrayDeque<Transfer> waiting = new ArrayDeque<>();
+    // Lets throttled connections of the non-blocking server go on, created when it is first needed.
+    private ScheduledExecutorService timer;
+
+    /**
+     * Constructor
+     *
+     * @param defaultTransfers The downloads at the same time unless
+     *        -Dsecureaddition.limit.transfers is set, 0 for no limit
+     */
+    TrafficLimits(int defaultTransfers) {
+        this.maxTransfers = Integer.getInteger("secureaddition.limit.transfers", defaultTransfers);
+    }
+
+    /** @return The limits of a new connection
+     */
+    Client newClient() {
+        return new Client();
+    }
+
+    /** Runs a download on the executor once fewer than the most
+     *  transfers are being sent, without a thread while it waits.
+     *
+     * @param executor Where the download runs
+     * @param transfer The download
+     * @param rejected Called instead if the executor refuses the download after it has waited
+     * @throws RejectedExecutionException If the executor refuses the download right away
+     */
+    void runTransfer(Executor executor, Runnable transfer, Runnable rejected) {
+        synchronized (this) {
+            if (maxTransfers > 0 && transfers >= maxTransfers) {
+                waiting.add(new Transfer(executor, transfer, rejected));
+                return;
+            }
+            transfers++;
+        }
+        try {
+            submit(executor, transfer);
+        } catch (RejectedExecutionException x) {
+            next();
+            throw x;
+        }
+    }
+
+    private void submit(Executor executor, Runnable transfer) {
+        executor.execute(() -> {
+            try {
+                transfer.run();
+            } finally {
+                next();
+            }
+        });
+    }
+
+    /** Starts the next waiting download in the place of one that is done.
+     */
+    private void next() {
+        while (true) {
+            Transfer following;
+            synchronized (this) {
+                following = waiting.poll();
+                if (following == null) {
+                    transfers--;
+                    return;
+                }
+            }
+            try {
+                submit(following.executor, following.transfer);
+                return;
+            } catch (RejectedExecutionException x) {
+                following.rejected.run();
+            }
+        }
+    }
+
+    /** Runs a task on the timer thread after a delay.
+     *
+     * @param task What to run, it must not block
+     * @param nanos The delay
+     */
+    void schedule(Runnable task, long nanos) {
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "SecureAdditionServer-limits");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            scheduler = timer;
+        }
+        scheduler.schedule(task, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Waits for the time that a limit has asked for.
+     *
+     * @param nanos The delay, nothing is done if it is 0
+     * @throws InterruptedIOException If the thread is interrupted, when the server shuts down
+     */
+    static void pause(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The connection was stopped while it was held back.");
+        }
+    }
+
+    /**
+     * A download that waits for its turn.
+     */
+    private static final class Transfer {
+        final Executor executor;
+        final Runnable transfer;
+        final Runnable rejected;
+
+        Transfer(Executor executor, Runnable transfer, Runnable rejected) {
+            this.executor = executor;
+            this.transfer = transfer;
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * The limits of one connection, together with the ones of all clients.
+     */
+    final class Client {
+        private final TokenBucket clientBytes = CLIENT_BYTES_PER_SECOND > 0 ? new TokenBucket(CLIENT_BYTES_PER_SECOND) : null;
+        private final TokenBucket clientRequests = CLIENT_REQUESTS_PER_SECOND > 0 ? new TokenBucket(CLIENT_REQUESTS_PER_SECOND) : null;
+
+        /** @return true if the bytes that are sent to the client are limited
+         */
+        boolean limitsBytes() {
+            return bytes != null || clientBytes != null;
+        }
+
+        /** Counts a frame that the client has sent.
+         *
+         * @return How long the connection waits before it handles the next frame, in nanoseconds
+         */
+        long received(Frame frame) {
+            long delay;
+            switch (frame.opcode) {
+                case Frame.DATA:
+                    delay = Math.max(take(bytes, frame.length), take(clientBytes, frame.length));
+                    break;
+                case Frame.END:
+                case Frame.EXIT:
+                    delay = 0;
+                    break;
+                default:
+                    delay = Math.max(take(requests, 1), take(clientRequests, 1));
+                    break;
+            }
+            return throttled(delay);
+        }
+
+        /** Counts the content of a file that was sent to the client.
+         *
+         * @return How long the download waits before it sends more, in nanoseconds
+         */
+        long sent(long length) {
+            return throttled(Math.max(take(bytes, length), take(clientBytes, length)));
+        }
+
+        /** Runs a download once there is room for it, see TrafficLimits.runTransfer().
+         */
+        void runTransfer(Executor executor, Runnable transfer, Runnable rejected) {
+            TrafficLimits.this.runTransfer(executor, transfer, rejected);
+        }
+
+        private long take(TokenBucket bucket, long amount) {
+            return bucket == null ? 0 : bucket.take(amount);
+        }
+
+        private long throttled(long delay) {
+            if (delay > 0) {
+                ServerMetrics.throttled(delay);
+            }
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * A file that a client is uploading. The DATA frames of the upload
+ * are written to the partial file as they arrive.
+ */
+class Upload {
+    final int requestId;
+    final String fileName;
+    // When the UPLOAD arrived, for the metrics.
+    final long started = ServerMetrics.now();
+    private final OverlappedFileWriter writer;
+    // The partial file is put into the store when the upload is finished, both are null for a range.
+    private final Path part;
+    private final FileStore store;
+    // Answered once the file is on the disk, see GroupCommit.
+    final boolean durable;
+    // Set when the upload has failed, the rest of its data is ignored.
+    private String error;
+
+    /**
+     * Constructor
+     *
+     * @param requestId The request that started the upload
+     * @param fileName The name of the uploaded file
+     * @param writer Writes the partial file
+     * @param part The partial file, or null for a range
+     * @param store Where the partial file is put, or null for a range
+     * @param durable true if the file is answered once it is on the disk
+     */
+    Upload(int requestId, String fileName, OverlappedFileWriter writer, Path part, FileStore store, boolean durable) {
+        this.requestId = requestId;
+        this.fileName = fileName;
+        this.writer = writer;
+        this.part = part;
+        this.store = store;
+        this.durable = durable && store != null;
+    }
+
+    /**
+     * Constructor for an upload whose file could not be created.
+     *
+     * @param requestId The request that started the upload
+     * @param fileName The name of the uploaded file
+     * @param error The message for the client
+     */
+    Upload(int requestId, String fileName, String error) {
+        this(requestId, fileName, null, null, null, false);
+        this.error = error;
+    }
+
+    /** @return true if only a range of the file is uploaded
+     */
+    boolean isRange() {
+        return store == null;
+    }
+
+    /** Writes the next part of the file.
+     */
+    void write(byte[] bytes, int offset, int length) {
+        if (error != null) {
+            return;
+        }
+        try {
+            writer.write(bytes, offset, length);
+        } catch (IOException x) {
+            fail();
+        }
+    }
+
+    /** Writes the rest of the file and closes it.
+     *
+     * @return null if the file was written, otherwise the message for the client
+     */
+    String finish() {
+        close();
+        return put(null);
+    }
+
+    /** Writes the rest of the file and closes it, without putting it into the store.
+     *
+     * @return null if the file was written, otherwise the message for the client
+     */
+    String close() {
+        if (error == null) {
+            try {
+                writer.close();
+            } catch (IOException x) {
+                fail();
+            }
+        }
+        return error;
+    }
+
+    /** Puts the partial file of a whole upload into the store, once it is closed.
+     *
+     * @param directories null, or the put is durable, see FileStore.put()
+     * @return null if the file was put, otherwise the message for the client
+     */
+    String put(Set<Path> directories) {
+        if (error == null && store != null) {
+            try {
+                store.put(fileName, part, directories);
+            } catch (IOException x) {
+                fail();
+            }
+        }
+        return error;
+    }
+
+    /** Stops the upload. The partial file of a whole upload is deleted,
+     *  a range keeps what has arrived so that the client can resume it.
+     */
+    void abort() {
+        if (writer != null) {
+            writer.abort();
+        }
+    }
+
+    private void fail() {
+        System.out.println("There was an error trying write the new file called " + fileName + " to the server.");
+        error = "There was an error trying upload the new file called " + fileName + " to the server.";
+        writer.abort();
+    }
+}
@@ -0,0 +1,55 @@
+package com.jinwoo;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Takes buffers from a pool, gives them back and grows the pool.
+ */
+class BufferPoolTest {
+
+    @Test
+    void handsOutTheBuffersThatCameBack() {
+        BufferPool pool = new BufferPool(100, 2);
+        ByteBuffer buffer = pool.acquire();
+        assertEquals(100, buffer.capacity());
+        assertTrue(buffer.isDirect());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire();
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(100, again.limit());
+    }
+
+    @Test
+    void keepsNoMoreThanItsMostBuffers() {
+        BufferPool pool = new BufferPool(100, 1);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        assertSame(first, pool.acquire());
+        assertNotSame(second, pool.acquire());
+    }
+
+    @Test
+    void dropsTheSmallerBuffersOnceItHasGrown() {
+        BufferPool pool = new BufferPool(100, 4);
+        ByteBuffer small = pool.acquire();
+        ByteBuffer other = pool.acquire();
+        pool.release(small);
+        pool.grow(200);
+        pool.grow(150);
+        assertEquals(200, pool.bufferSize());
+
+        ByteBuffer large = pool.acquire();
+        assertEquals(200, large.capacity());
+        // A buffer from before the pool has grown is not pooled when it comes back.
+        pool.release(other);
+        pool.release(large);
+        assertSame(large, pool.acquire());
+        assertEquals(200, pool.acquire().capacity());
+    }
+}
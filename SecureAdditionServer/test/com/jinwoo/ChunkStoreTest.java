@@ -0,0 +1,166 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Puts files into a store, reads them back and counts the chunks that are left on the disk.
+ */
+class ChunkStoreTest {
+    @TempDir
+    Path directory;
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void put(ChunkStore store, String name, byte[] content) throws IOException {
+        Path part = store.newPart(name);
+        Files.write(part, content);
+        store.put(name, part, null);
+        assertFalse(Files.exists(part));
+    }
+
+    private static byte[] read(ChunkStore store, String name) throws IOException {
+        try (StoredFile file = store.open(name)) {
+            return read(file);
+        }
+    }
+
+    private static byte[] read(StoredFile file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) file.size());
+        file.read(buffer, 0);
+        return buffer.array();
+    }
+
+    private long chunksOnDisk() throws IOException {
+        try (Stream<Path> files = Files.walk(directory.resolve("chunks"))) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    void readsBackWhatWasPut() throws IOException {
+        ChunkStore store = new ChunkStore(directory);
+        byte[] content = random(1_000_000, 1);
+        put(store, "file", content);
+        assertArrayEquals(content, read(store, "file"));
+        try (StoredFile file = store.open("file")) {
+            assertEquals(content.length, file.size());
+            assertEquals(String.format("%064x", new BigInteger(1, ChunkChecksums.sha256().digest(content))), file.sha256());
+            // A read in the middle of a chunk.
+            ByteBuffer buffer = ByteBuffer.allocate(1000);
+            file.read(buffer, 500_000);
+            assertArrayEquals(Arrays.copyOfRange(content, 500_000, 501_000), buffer.array());
+        }
+        assertTrue(chunksOnDisk() >= 1_000_000 / ChunkStore.MAX_CHUNK);
+    }
+
+    @Test
+    void storesTheSameContentOnce() throws IOException {
+        ChunkStore store = new ChunkStore(directory);
+        byte[] content = random(1_000_000, 2);
+        put(store, "a", content);
+        long chunks = chunksOnDisk();
+        put(store, "b", content);
+        assertEquals(chunks, chunksOnDisk());
+
+        // The chunks after a few changed bytes are found again.
+        byte[] changed = content.clone();
+        changed[10] ^= 1;
+        put(store, "c", changed);
+        assertTrue(chunksOnDisk() - chunks <= 2, (chunksOnDisk() - chunks) + " new chunks");
+
+        assertTrue(store.delete("a"));
+        assertTrue(store.delete("c"));
+        assertEquals(chunks, chunksOnDisk());
+        assertArrayEquals(content, read(store, "b"));
+        assertTrue(store.delete("b"));
+        assertEquals(0, chunksOnDisk());
+        assertFalse(store.delete("b"));
+    }
+
+    @Test
+    void keepsTheChunksOfAReplacedFileUntilItIsClosed() throws IOException {
+        ChunkStore store = new ChunkStore(directory);
+        byte[] old = random(300_000, 3);
+        byte[] content = random(300_000, 4);
+        put(store, "file", old);
+        long chunks = chunksOnDisk();
+        long both;
+        try (StoredFile reader = store.open("file")) {
+            put(store, "file", content);
+            both = chunksOnDisk();
+            assertTrue(both > chunks);
+            assertFalse(reader.isCurrent());
+            assertArrayEquals(old, read(reader));
+        }
+        // The two contents have no chunk in common.
+        assertEquals(both - chunks, chunksOnDisk());
+        assertArrayEquals(content, read(store, "file"));
+    }
+
+    @Test
+    void readsItsManifestsWhenItStartsAgain() throws IOException {
+        ChunkStore store = new ChunkStore(directory);
+        byte[] content = random(700_000, 5);
+        put(store, "a file/with ..odd name", content);
+        put(store, "empty", new byte[0]);
+        StoredFile before = store.open("a file/with ..odd name");
+        before.close();
+        long chunks = chunksOnDisk();
+        // A chunk that no manifest refers to, left behind by a server that stopped.
+        Path orphan = directory.resolve("chunks").resolve("00").resolve(String.format("%064x", 0));
+        Files.createDirectories(orphan.getParent());
+        Files.write(orphan, new byte[10]);
+
+        ChunkStore restarted = new ChunkStore(directory);
+        assertEquals(Arrays.asList("a file/with ..odd name", "empty"), sorted(restarted));
+        try (StoredFile after = restarted.open("a file/with ..odd name")) {
+            assertEquals(before.size(), after.size());
+            assertEquals(before.lastModified(), after.lastModified());
+            assertEquals(before.sha256(), after.sha256());
+            assertArrayEquals(content, read(after));
+        }
+        try (StoredFile empty = restarted.open("empty")) {
+            assertEquals(0, empty.size());
+        }
+        assertFalse(Files.exists(orphan));
+        assertEquals(chunks, chunksOnDisk());
+    }
+
+    @Test
+    void givesEveryWholeUploadAPartialFileOfItsOwn() throws IOException {
+        ChunkStore store = new ChunkStore(directory);
+        Path first = store.newPart("file");
+        Path second = store.newPart("file");
+        assertNotEquals(first, second);
+        assertNotEquals(store.partOf("file"), first);
+        Files.write(first, random(100_000, 6));
+        Files.write(second, random(100_000, 7));
+        store.put("file", second, null);
+        store.put("file", first, null);
+        assertArrayEquals(random(100_000, 6), read(store, "file"));
+        // The partial files are not listed with the stored files.
+        assertEquals(Collections.singletonList("file"), store.list("*"));
+    }
+
+    private static List<String> sorted(ChunkStore store) throws IOException {
+        List<String> names = store.list("**");
+        Collections.sort(names);
+        return names;
+    }
+}
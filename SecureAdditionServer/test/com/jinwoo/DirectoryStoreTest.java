@@ -0,0 +1,81 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Keeps files in a directory and refuses the names that lead out of it
+ * or to the partial files of uploads.
+ */
+class DirectoryStoreTest {
+    @TempDir
+    Path root;
+    private Path directory;
+    private DirectoryStore store;
+
+    @BeforeEach
+    void createStore() throws IOException {
+        directory = Files.createDirectory(root.resolve("files"));
+        store = new DirectoryStore(directory);
+    }
+
+    private void put(String name, byte[] content) throws IOException {
+        Path part = store.newPart(name);
+        Files.write(part, content);
+        store.put(name, part, null);
+    }
+
+    @Test
+    void keepsFilesUnderTheirNames() throws IOException {
+        put("a", new byte[] { 1, 2, 3 });
+        put("b", new byte[0]);
+        Files.write(store.partOf("c"), new byte[] { 4 });
+        try (StoredFile file = store.open("a")) {
+            assertEquals(3, file.size());
+        }
+        // The part of "c" is not a file of the store.
+        String[] names = store.list("*").toArray(new String[0]);
+        Arrays.sort(names);
+        assertArrayEquals(new String[] { "a", "b" }, names);
+        assertTrue(store.delete("b"));
+        assertFalse(store.delete("b"));
+        assertEquals(Collections.singletonList("a"), store.list("*"));
+    }
+
+    @Test
+    void refusesNamesOutsideOfTheDirectory() throws IOException {
+        Path secret = Files.write(root.resolve("secret"), new byte[] { 7 });
+        for (String name : new String[] { "../secret", "x/../../secret", "..", ".", "" }) {
+            assertThrows(InvalidPathException.class, () -> store.open(name), name);
+            assertThrows(InvalidPathException.class, () -> store.delete(name), name);
+            assertThrows(InvalidPathException.class, () -> store.partOf(name), name);
+            assertThrows(InvalidPathException.class, () -> store.newPart(name), name);
+        }
+        assertTrue(Files.exists(secret));
+        assertFalse(Files.exists(root.resolve("secret.part")));
+
+        // A name that only passes through the directory stays in it.
+        put("a", new byte[] { 1 });
+        try (StoredFile file = store.open("x/../a")) {
+            assertEquals(1, file.size());
+        }
+    }
+
+    @Test
+    void refusesTheNamesOfPartialFiles() throws IOException {
+        Path part = Files.write(store.partOf("a"), new byte[] { 1 });
+        String name = part.getFileName().toString();
+        assertThrows(InvalidPathException.class, () -> store.open(name));
+        assertThrows(InvalidPathException.class, () -> store.delete(name));
+        assertThrows(InvalidPathException.class, () -> store.partOf(name));
+        assertTrue(Files.exists(part));
+    }
+}
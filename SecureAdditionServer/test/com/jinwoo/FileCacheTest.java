@@ -0,0 +1,135 @@
+package com.jinwoo;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Gets files through the cache and counts the ones that had to be read.
+ */
+class FileCacheTest {
+
+    @Test
+    void readsAFileOnlyOnce() throws IOException {
+        FileCache cache = new FileCache(1000, 100);
+        MemoryFile file = new MemoryFile(100, 1);
+        assertEquals(ByteBuffer.wrap(file.content), cache.get("a", file));
+        assertEquals(ByteBuffer.wrap(file.content), cache.get("a", file));
+        assertEquals(1, file.reads);
+    }
+
+    @Test
+    void dropsTheLeastRecentlyUsedFilesOverTheBudget() throws IOException {
+        FileCache cache = new FileCache(300, 100);
+        MemoryFile a = new MemoryFile(100, 1);
+        MemoryFile b = new MemoryFile(100, 1);
+        MemoryFile c = new MemoryFile(100, 1);
+        MemoryFile d = new MemoryFile(100, 1);
+        cache.get("a", a);
+        cache.get("b", b);
+        cache.get("c", c);
+        // a is used again, so b is the least recently used when d comes in.
+        cache.get("a", a);
+        cache.get("d", d);
+
+        cache.get("a", a);
+        cache.get("c", c);
+        cache.get("d", d);
+        assertEquals(1, a.reads);
+        assertEquals(1, c.reads);
+        assertEquals(1, d.reads);
+        cache.get("b", b);
+        assertEquals(2, b.reads);
+    }
+
+    @Test
+    void neverKeepsALargeFile() throws IOException {
+        FileCache cache = new FileCache(1000, 100);
+        MemoryFile large = new MemoryFile(101, 1);
+        assertNull(cache.get("large", large));
+        assertEquals(0, large.reads);
+        assertNull(new FileCache(0, 100).get("a", new MemoryFile(10, 1)));
+    }
+
+    @Test
+    void readsAChangedFileAgain() throws IOException {
+        FileCache cache = new FileCache(1000, 100);
+        cache.get("a", new MemoryFile(50, 1));
+        MemoryFile changed = new MemoryFile(50, 2);
+        assertEquals(ByteBuffer.wrap(changed.content), cache.get("a", changed));
+        assertEquals(1, changed.reads);
+    }
+
+    @Test
+    void forgetsAFileThatIsInvalidated() throws IOException {
+        FileCache cache = new FileCache(1000, 100);
+        MemoryFile file = new MemoryFile(50, 1);
+        cache.get("a", file);
+        cache.invalidate("a");
+        cache.get("a", file);
+        assertEquals(2, file.reads);
+    }
+
+    @Test
+    void doesNotKeepAFileThatChangesWhileItIsRead() throws IOException {
+        FileCache cache = new FileCache(1000, 100);
+        MemoryFile file = new MemoryFile(50, 1);
+        file.current = false;
+        assertNull(cache.get("a", file));
+        file.current = true;
+        cache.get("a", file);
+        assertEquals(2, file.reads);
+    }
+
+    /**
+     * A stored file in memory that counts how often it is read.
+     */
+    private static final class MemoryFile implements StoredFile {
+        final byte[] content;
+        private final FileTime modified;
+        int reads;
+        boolean current = true;
+
+        MemoryFile(int size, long modified) {
+            this.content = new byte[size];
+            for (int i = 0; i < size; i++) {
+                content[i] = (byte) (i + modified);
+            }
+            this.modified = FileTime.fromMillis(modified);
+        }
+
+        public long size() {
+            return content.length;
+        }
+
+        public FileTime lastModified() {
+            return modified;
+        }
+
+        public String sha256() {
+            return null;
+        }
+
+        public boolean isCurrent() {
+            return current;
+        }
+
+        public void read(ByteBuffer buffer, long position) throws IOException {
+            if (position + buffer.remaining() > content.length) {
+                throw new EOFException();
+            }
+            reads++;
+            buffer.put(content, (int) position, buffer.remaining());
+        }
+
+        public void send(int requestId, long position, long length, ResponseWriter out) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Commits the partial files of ranged uploads into a DirectoryStore and
+ * checks the answers and the files that are left.
+ */
+class FileRequestProcessorTest {
+    @TempDir
+    Path directory;
+
+    /**
+     * Keeps the opcodes and messages of the frames that were sent.
+     */
+    private static final class Answers implements ResponseWriter {
+        final List<Integer> opcodes = new ArrayList<>();
+        final List<String> messages = new ArrayList<>();
+
+        public void send(int opcode, int flags, int requestId, byte[] payload, int offset, int length) {
+            opcodes.add(opcode);
+            messages.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+        }
+
+        public void sendFile(int requestId, FileChannel file, long position, long length) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void sendContent(int requestId, ByteBuffer content) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private Answers commit(String name, long size, boolean durable) throws IOException {
+        Answers answers = new Answers();
+        new FileRequestProcessor(new DirectoryStore(directory)).commitUpload(1, name, size, durable, answers);
+        assertEquals(1, answers.opcodes.size());
+        return answers;
+    }
+
+    @Test
+    void keepsTheFileWhenNothingWasUploaded() throws IOException {
+        Path file = Files.write(directory.resolve("a"), new byte[] { 1, 2, 3 });
+        Answers answers = commit("a", 0, false);
+        assertEquals(Frame.ERROR, (int) answers.opcodes.get(0));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(file));
+        assertFalse(Files.exists(OverlappedFileWriter.partOf(file)));
+    }
+
+    @Test
+    void refusesAPartialFileThatIsShort() throws IOException {
+        Path part = Files.write(OverlappedFileWriter.partOf(directory.resolve("a")), new byte[5]);
+        Answers answers = commit("a", 10, false);
+        assertEquals(Frame.ERROR, (int) answers.opcodes.get(0));
+        assertTrue(answers.messages.get(0).startsWith("Only 5 of the 10 bytes"));
+        assertTrue(Files.exists(part));
+        assertFalse(Files.exists(directory.resolve("a")));
+    }
+
+    @Test
+    void movesTheWholePartialFileIntoPlace() throws IOException {
+        for (boolean durable : new boolean[] { false, true }) {
+            String name = durable ? "durable" : "a";
+            Path part = Files.write(OverlappedFileWriter.partOf(directory.resolve(name)), new byte[] { 1, 2, 3, 4 });
+            Answers answers = commit(name, 3, durable);
+            assertEquals(Frame.FINISHED, (int) answers.opcodes.get(0));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(directory.resolve(name)));
+            assertFalse(Files.exists(part));
+        }
+    }
+}
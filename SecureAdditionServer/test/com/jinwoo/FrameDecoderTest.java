@@ -0,0 +1,88 @@
+package com.jinwoo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decodes frames that arrive in pieces of any size, like the reads of a non-blocking connection.
+ */
+class FrameDecoderTest {
+
+    private static byte[] frames(int... payloadSizes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameOutputStream out = new FrameOutputStream(bytes);
+        for (int i = 0; i < payloadSizes.length; i++) {
+            byte[] payload = new byte[payloadSizes[i]];
+            for (int k = 0; k < payload.length; k++) {
+                payload[k] = (byte) (k + i);
+            }
+            out.writeFrame(Frame.UPLOAD, 0, i + 1, payload, 0, payload.length);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void assertFrame(Frame frame, int requestId, int size) {
+        assertNotNull(frame);
+        assertEquals(Frame.UPLOAD, frame.opcode);
+        assertEquals(requestId, frame.requestId);
+        assertEquals(size, frame.length);
+        for (int k = 0; k < size; k++) {
+            assertEquals((byte) (k + requestId - 1), frame.payload[k]);
+        }
+    }
+
+    @Test
+    void decodesAFrameThatArrivesOneByteAtATime() throws IOException {
+        byte[] bytes = frames(20);
+        FrameDecoder decoder = new FrameDecoder();
+        for (int i = 0; i < bytes.length - 1; i++) {
+            assertNull(decoder.decode(ByteBuffer.wrap(bytes, i, 1)));
+            assertTrue(decoder.isInFrame());
+        }
+        assertFrame(decoder.decode(ByteBuffer.wrap(bytes, bytes.length - 1, 1)), 1, 20);
+        assertFalse(decoder.isInFrame());
+    }
+
+    @Test
+    void decodesSeveralFramesFromOneBuffer() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(frames(0, 3, Frame.CHUNK_SIZE));
+        FrameDecoder decoder = new FrameDecoder();
+        assertFrame(decoder.decode(in), 1, 0);
+        assertFrame(decoder.decode(in), 2, 3);
+        assertFrame(decoder.decode(in), 3, Frame.CHUNK_SIZE);
+        assertNull(decoder.decode(in));
+        assertFalse(decoder.isInFrame());
+    }
+
+    @Test
+    void keepsTheRestOfABufferForTheNextFrame() throws IOException {
+        byte[] bytes = frames(100, 100);
+        FrameDecoder decoder = new FrameDecoder();
+        // The first frame and a part of the header of the second.
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, Frame.HEADER_SIZE + 105);
+        Frame first = decoder.decode(in);
+        assertFrame(first, 1, 100);
+        assertNull(decoder.decode(in));
+        assertTrue(decoder.isInFrame());
+        assertFrame(decoder.decode(ByteBuffer.wrap(bytes, in.position(), bytes.length - in.position())), 2, 100);
+        // Every frame has its own payload, the first one is still whole.
+        assertFrame(first, 1, 100);
+    }
+
+    @Test
+    void rejectsAnUnknownVersionAndATooLongPayload() throws IOException {
+        byte[] bytes = frames(1);
+        bytes[0] = Frame.VERSION + 1;
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().decode(ByteBuffer.wrap(bytes)));
+
+        byte[] tooLong = frames(1);
+        // The length is the last int of the header.
+        tooLong[Frame.HEADER_SIZE - 4] = 0x7f;
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().decode(ByteBuffer.wrap(tooLong)));
+    }
+}
@@ -0,0 +1,46 @@
+package com.jinwoo;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Takes tokens from buckets and checks how long the callers are told to wait.
+ */
+class TokenBucketTest {
+
+    @Test
+    void givesOneSecondOfTheRateRightAway() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertEquals(0, bucket.take(400));
+        assertEquals(0, bucket.take(600));
+    }
+
+    @Test
+    void tellsTheCallerToWaitUntilTheDebtIsPaid() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.take(1000);
+        long wait = bucket.take(500);
+        // Half a second, less what was added since the first take.
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400) && wait <= TimeUnit.MILLISECONDS.toNanos(500),
+                "waits " + wait + " ns");
+    }
+
+    @Test
+    void letsTheCallersInDebtWaitInTurn() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.take(1000);
+        long first = bucket.take(1000);
+        long second = bucket.take(1000);
+        assertTrue(second - first > TimeUnit.MILLISECONDS.toNanos(900), first + " ns, then " + second + " ns");
+    }
+
+    @Test
+    void neverHoldsMoreThanTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000);
+        Thread.sleep(50);
+        assertEquals(0, bucket.take(1000));
+        // What was added while it slept went over the burst and is gone.
+        assertTrue(bucket.take(100) > TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
@@ -0,0 +1,209 @@
+package com.jinwoo;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Random;
+
+/**
+ * Runs a server in the benchmark process on the loopback interface.
+ *
+ * The keystores of the server and the client are copied from the jar to
+ * a work directory, which is also the files directory of both sides. The
+ * directories are set with system properties before the server and the
+ * client classes are loaded, so a benchmark calls workDirectory() from
+ * its static initializer.
+ */
+final class BenchmarkEnvironment {
+    static final String[] KEYSTORES = {
+            "LIUkeystore.ks", "LIUtruststore.ks", "PIERkeystore.ks", "PIERtruststore.ks" };
+    // How long a server may take to start listening.
+    static final long START_TIMEOUT_MILLIS = 30 * 1000;
+
+    private BenchmarkEnvironment() {
+    }
+
+    /** Created on first use, once per benchmark process.
+     */
+    private static class Holder {
+        static final Path WORK_DIRECTORY = prepare();
+    }
+
+    /** @return The work directory, with the keystores in certificates/ and the files in files/
+     */
+    static Path workDirectory() {
+        return Holder.WORK_DIRECTORY;
+    }
+
+    /** @return The directory that the server serves and the client downloads to
+     */
+    static Path filesDirectory() {
+        return workDirectory().resolve("files");
+    }
+
+    private static Path prepare() {
+        try {
+            Path work = Files.createTempDirectory("secureaddition-bench");
+            Path certificates = Files.createDirectories(work.resolve("certificates"));
+            Files.createDirectories(work.resolve("files"));
+            for (String name : KEYSTORES) {
+                try (InputStream in = BenchmarkEnvironment.class.getResourceAsStream("/certificates/" + name)) {
+                    if (in == null) {
+                        throw new FileNotFoundException("The keystore " + name + " is not in the benchmark jar.");
+                    }
+                    Files.copy(in, certificates.resolve(name));
+                }
+            }
+            System.setProperty("secureaddition.certificates", certificates.toString());
+            System.setProperty("secureaddition.files", work.resolve("files").toString());
+            return work;
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    /** Writes a file of random bytes to the files directory, random so
+     *  that nothing on the way can make the transfer cheaper.
+     *
+     * @param name The name of the file
+     * @param size The number of bytes
+     * @return The path of the file
+     */
+    static Path createFile(String name, long size) throws IOException {
+        Path file = filesDirectory().resolve(name);
+        Random random = new Random(size);
+        byte[] chunk = new byte[Frame.CHUNK_SIZE];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    /** Drops the messages that the server prints for every connection
+     *  and request, so that they do not end up in the results.
+     *
+     * @return The original System.out, to be given to restoreOutput()
+     */
+    static PrintStream silenceOutput() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return original;
+    }
+
+    static void restoreOutput(PrintStream original) {
+        System.setOut(original);
+    }
+
+    /** @return A port on the loopback interface that nothing listens on
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /** Starts a server in this process and waits until it accepts connections.
+     *
+     * @param transport "blocking", "nio" or "plaintext", as given to SecureAdditionServer.main()
+     * @return The running server
+     */
+    static RunningServer startServer(String transport) throws Exception {
+        return startServer(transport, SecureAdditionServer.DEFAULT_MAX_CONNECTIONS, SecureAdditionServer.VIRTUAL_THREADS);
+    }
+
+    /** Starts a server in this process and waits until it accepts connections.
+     *
+     * @param transport "blocking", "nio" or "plaintext", as given to SecureAdditionServer.main()
+     * @param maxConnections The number of clients that are served concurrently
+     * @param virtualThreads true to serve the clients of the blocking transports on virtual threads
+     * @return The running server
+     */
+    static RunningServer startServer(String transport, int maxConnections, boolean virtualThreads) throws Exception {
+        workDirectory();
+        int port = freePort();
+        RunningServer server;
+        if (transport.equals("nio")) {
+            NioSecureAdditionServer nio = new NioSecureAdditionServer(port, maxConnections);
+            server = new RunningServer(port, false, nio::run, nio::shutdown);
+        }
+        else if (transport.equals("blocking") || transport.equals("plaintext")) {
+            boolean plaintext = transport.equals("plaintext");
+            SecureAdditionServer blocking = new SecureAdditionServer(port, maxConnections, plaintext, virtualThreads);
+            server = new RunningServer(port, plaintext, blocking::run, blocking::shutdown);
+        }else{
+            throw new IllegalArgumentException("Unknown transport " + transport + ".");
+        }
+        server.start();
+        return server;
+    }
+
+    /**
+     * A server that runs on its own thread.
+     */
+    static final class RunningServer {
+        final int port;
+        final boolean plaintext;
+        private final Thread thread;
+        private final Runnable shutdown;
+
+        RunningServer(int port, boolean plaintext, Runnable server, Runnable shutdown) {
+            this.port = port;
+            this.plaintext = plaintext;
+            this.thread = new Thread(server, "BenchmarkServer");
+            this.shutdown = shutdown;
+        }
+
+        private void start() throws IOException, InterruptedException {
+            thread.start();
+            // The server is ready once a plain TCP connection is accepted.
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+            while (true) {
+                try {
+                    new Socket(InetAddress.getLoopbackAddress(), port).close();
+                    return;
+                } catch (IOException x) {
+                    if (System.currentTimeMillis() > deadline || !thread.isAlive()) {
+                        throw new IOException("The server did not start on port " + port + ".", x);
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+        /** @return A new client of the server, not connected yet
+         */
+        SecureAdditionClient newClient() {
+            return new SecureAdditionClient(InetAddress.getLoopbackAddress(), port, plaintext);
+        }
+
+        /** @return A pool of clients of the server that keeps them all connected
+         */
+        ClientPool newPool(int connections) throws Exception {
+            return new ClientPool(InetAddress.getLoopbackAddress(), port, plaintext, connections, connections,
+                    ClientPool.DEFAULT_MAX_IDLE_MILLIS, ClientPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+        }
+
+        /** Stops the server and waits for it to drain.
+         */
+        void stop() throws InterruptedException {
+            shutdown.run();
+            thread.join();
+        }
+    }
+}
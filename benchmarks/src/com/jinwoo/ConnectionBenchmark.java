@@ -0,0 +1,92 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the worker pool of the blocking server with virtual threads,
+ * for many clients that are connected at the same time.
+ *
+ * The clients connect without TLS, so that only the threads of the server
+ * are measured. Every operation sends a PING on every connection and then
+ * waits for all of the answers, so every handler blocks in readFrame(),
+ * wakes up, writes its answer and blocks again. With the worker pool that
+ * is a platform thread for every client, with virtual threads a few
+ * carrier threads take turns. Virtual threads need Java 21, on older JVMs
+ * both variants use the worker pool.
+ *
+ * Both sides of every connection are in this process, so it needs two
+ * file descriptors and about 400 KB of frame buffers for each of them.
+ * More clients can be selected with -p connections=20000 after raising
+ * ulimit -n and the heap with -jvmArgsAppend -Xmx10g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ConnectionBenchmark {
+    static {
+        BenchmarkEnvironment.workDirectory();
+    }
+
+    @Param({ "platform", "virtual" })
+    public String threads;
+
+    @Param({ "100", "1000", "4000" })
+    public int connections;
+
+    private BenchmarkEnvironment.RunningServer server;
+    private Socket[] sockets;
+    private FrameOutputStream[] outputs;
+    private FrameInputStream[] inputs;
+    private PrintStream output;
+    private int requestId;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        output = BenchmarkEnvironment.silenceOutput();
+        server = BenchmarkEnvironment.startServer("plaintext", connections, threads.equals("virtual"));
+        sockets = new Socket[connections];
+        outputs = new FrameOutputStream[connections];
+        inputs = new FrameInputStream[connections];
+        for (int i = 0; i < connections; i++) {
+            sockets[i] = new Socket(InetAddress.getLoopbackAddress(), server.port);
+            sockets[i].setTcpNoDelay(true);
+            outputs[i] = new FrameOutputStream(sockets[i].getOutputStream());
+            inputs[i] = new FrameInputStream(sockets[i].getInputStream());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws Exception {
+        for (int i = 0; i < connections; i++) {
+            if (sockets[i] != null) {
+                outputs[i].writeFrame(Frame.EXIT, ++requestId, "");
+                sockets[i].close();
+            }
+        }
+        server.stop();
+        BenchmarkEnvironment.restoreOutput(output);
+    }
+
+    @Benchmark
+    public int pingAll() throws IOException {
+        int id = ++requestId;
+        for (FrameOutputStream out : outputs) {
+            out.writeFrame(Frame.PING, id, "");
+        }
+        for (FrameInputStream in : inputs) {
+            Frame answer = in.readFrame();
+            if (answer == null || answer.opcode != Frame.FINISHED || answer.requestId != id) {
+                throw new ProtocolException("The server did not answer the PING.");
+            }
+        }
+        return id;
+    }
+}
@@ -0,0 +1,99 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocket;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how long a client takes to connect to the server over the
+ * loopback interface, with the LIU and PIER keystores.
+ *
+ * Every operation opens a connection, does the handshake, sends a PING
+ * and waits for its answer, then exits. The answer makes sure that the
+ * server has finished its side of the handshake, and with TLS 1.3 that
+ * the client has received the session ticket that the next connection
+ * resumes with. fullHandshake() throws the session away after every
+ * connection, resumedHandshake() keeps it like a client that reconnects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    static {
+        BenchmarkEnvironment.workDirectory();
+    }
+
+    @Param({ "blocking", "nio" })
+    public String transport;
+
+    @Param({ "TLSv1.3", "TLSv1.2" })
+    public String protocol;
+
+    private BenchmarkEnvironment.RunningServer server;
+    private SslContextProvider sslContexts;
+    private PrintStream output;
+    private int requestId;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        output = BenchmarkEnvironment.silenceOutput();
+        server = BenchmarkEnvironment.startServer(transport);
+        sslContexts = SecureAdditionClient.createSslContextProvider();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        SecureAdditionServer.closeQuietly(sslContexts);
+        server.stop();
+        BenchmarkEnvironment.restoreOutput(output);
+    }
+
+    @Benchmark
+    public String fullHandshake() throws IOException {
+        return connect(false);
+    }
+
+    @Benchmark
+    public String resumedHandshake() throws IOException {
+        return connect(true);
+    }
+
+    /** Connects to the server and does one PING.
+     *
+     * @param resume false to do a full handshake on the next connection as well
+     * @return The cipher suite, so that the connection is not optimized away
+     */
+    private String connect(boolean resume) throws IOException {
+        SSLSocket socket = (SSLSocket) sslContexts.get().getSocketFactory()
+                .createSocket(InetAddress.getLoopbackAddress(), server.port);
+        try {
+            TlsPolicy.apply(socket);
+            socket.setEnabledProtocols(new String[] { protocol });
+            socket.startHandshake();
+
+            FrameOutputStream out = new FrameOutputStream(socket.getOutputStream());
+            FrameInputStream in = new FrameInputStream(socket.getInputStream());
+            int id = ++requestId;
+            out.writeFrame(Frame.PING, id, "");
+            Frame answer = in.readFrame();
+            if (answer == null || answer.opcode != Frame.FINISHED || answer.requestId != id) {
+                throw new ProtocolException("The server did not answer the PING.");
+            }
+            out.writeFrame(Frame.EXIT, ++requestId, "");
+
+            if (!resume) {
+                // An invalid session is not offered to the server again.
+                socket.getSession().invalidate();
+            }
+            return socket.getSession().getCipherSuite();
+        } finally {
+            socket.close();
+        }
+    }
+}
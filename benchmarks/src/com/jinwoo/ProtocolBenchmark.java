@@ -0,0 +1,105 @@
+package com.jinwoo;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the line based protocol of the first versions with the frames,
+ * for the content of one text file that is sent and received in memory.
+ *
+ * lineProtocol() does what the old server and client did: the file is read
+ * with readLine(), every line is sent with println() on an autoflush
+ * PrintWriter followed by the DATA_TEXT_SENT marker, and the receiver reads
+ * lines until the marker and joins them in a StringBuilder. frames() sends
+ * the same bytes as DATA frames of a chunk and an END frame, and the
+ * receiver copies the payloads out. Over a socket every flush of the old
+ * protocol is also a TLS record of its own, so the difference here is the
+ * smallest that it can be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    static final String DATA_TEXT_SENT = "DATA_TEXT_SENT";
+    // The length of the lines of the text, without the line break.
+    static final int LINE_LENGTH = 79;
+
+    @Param({ "1024", "1048576", "16777216" })
+    public int size;
+
+    private byte[] text;
+    private byte[] received;
+    private Wire wire;
+
+    @Setup(Level.Trial)
+    public void createText() {
+        text = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            text[i] = (i + 1) % (LINE_LENGTH + 1) == 0 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        received = new byte[size];
+        // Room for the frame headers and the line breaks of println().
+        wire = new Wire(2 * size + 1024);
+    }
+
+    @Benchmark
+    public int lineProtocol() throws IOException {
+        wire.reset();
+        BufferedReader file = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text), StandardCharsets.UTF_8));
+        PrintWriter socketOutput = new PrintWriter(new OutputStreamWriter(wire, StandardCharsets.UTF_8), true);
+        String line;
+        while ((line = file.readLine()) != null) {
+            socketOutput.println(line);
+        }
+        socketOutput.println(DATA_TEXT_SENT);
+
+        BufferedReader socketInput = new BufferedReader(new InputStreamReader(wire.input(), StandardCharsets.UTF_8));
+        StringBuilder content = new StringBuilder();
+        while (!(line = socketInput.readLine()).equals(DATA_TEXT_SENT)) {
+            content.append(line);
+        }
+        return content.length();
+    }
+
+    @Benchmark
+    public int frames() throws IOException {
+        wire.reset();
+        InputStream file = new ByteArrayInputStream(text);
+        FrameOutputStream out = new FrameOutputStream(wire);
+        byte[] chunk = new byte[Frame.CHUNK_SIZE];
+        int count;
+        while ((count = file.read(chunk)) > 0) {
+            out.writeFrame(Frame.DATA, 0, 1, chunk, 0, count);
+        }
+        out.writeFrame(Frame.END, 1, "");
+
+        FrameInputStream in = new FrameInputStream(wire.input());
+        int length = 0;
+        Frame frame;
+        while ((frame = in.readFrame()).opcode == Frame.DATA) {
+            System.arraycopy(frame.payload, 0, received, length, frame.length);
+            length += frame.length;
+        }
+        return length;
+    }
+
+    /**
+     * The bytes between the sender and the receiver, kept
+     * from one operation to the next so it does not grow.
+     */
+    private static final class Wire extends ByteArrayOutputStream {
+        Wire(int size) {
+            super(size);
+        }
+
+        InputStream input() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
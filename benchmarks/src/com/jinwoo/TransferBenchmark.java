@@ -0,0 +1,90 @@
+package com.jinwoo;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures DOWNLOAD and UPLOAD of one file over the loopback interface,
+ * from 1 KB to 1 GB, on every transport of the server.
+ *
+ * The client stays connected for the whole run, so only the transfer is
+ * measured and not the handshake. The parallel variants split the file
+ * into ranges over the connections of a pool, one for every core. The
+ * throughput is the size divided by the time of an operation. The largest
+ * size needs about three times its size of free space in the temporary
+ * directory, smaller runs can be selected with -p size=1024,1048576.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class TransferBenchmark {
+    static {
+        BenchmarkEnvironment.workDirectory();
+    }
+
+    @Param({ "blocking", "nio", "plaintext" })
+    public String transport;
+
+    @Param({ "1024", "1048576", "67108864", "1073741824" })
+    public long size;
+
+    private BenchmarkEnvironment.RunningServer server;
+    private SecureAdditionClient client;
+    private ClientPool pool;
+    private PrintStream output;
+    private String downloadName;
+    private String uploadName;
+    private Path source;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        output = BenchmarkEnvironment.silenceOutput();
+        server = BenchmarkEnvironment.startServer(transport);
+        client = server.newClient();
+        client.connect();
+        pool = server.newPool(ParallelTransfer.DEFAULT_STREAMS);
+
+        downloadName = "download-" + size;
+        uploadName = "upload-" + size;
+        source = BenchmarkEnvironment.createFile(downloadName, size);
+        // Downloaded outside of the files directory, so the file that is served is not replaced.
+        target = BenchmarkEnvironment.workDirectory().resolve(downloadName);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        client.close();
+        pool.close();
+        server.stop();
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(BenchmarkEnvironment.filesDirectory().resolve(uploadName));
+        BenchmarkEnvironment.restoreOutput(output);
+    }
+
+    @Benchmark
+    public Path download() throws Exception {
+        return client.download(downloadName, target).get();
+    }
+
+    @Benchmark
+    public String upload() throws Exception {
+        return client.upload(source, uploadName).get();
+    }
+
+    @Benchmark
+    public Path downloadParallel() throws Exception {
+        return pool.downloadParallel(downloadName, target).get();
+    }
+
+    @Benchmark
+    public String uploadParallel() throws Exception {
+        return pool.uploadParallel(source, uploadName).get();
+    }
+}
@@ -0,0 +1,278 @@
+package com.jinwoo;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The CRC32 of every chunk of a file, used to find the chunks that
+ * a resumed transfer still has to send.
+ *
+ * The chunks have the size of the DATA frames, the last one may be
+ * shorter. CRC32C would be faster, but it is not in Java 8, which
+ * both sides still run on.
+ *
+ * The checksums can also carry a digest of every chunk, the first
+ * DIGEST_SIZE bytes of its SHA-256. A CRC32 that matches by chance is
+ * likely when a client looks for the chunks at every position of a large
+ * file, the digest tells it whether the chunk is really the same.
+ *
+ * The client and the server share this class through the common module.
+ */
+final class ChunkChecksums {
+    // The bytes of the SHA-256 of a chunk that are kept.
+    static final int DIGEST_SIZE = 8;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    final long size;
+    private final int[] sums;
+    // DIGEST_SIZE bytes for every chunk, or null.
+    private final byte[] digests;
+
+    /**
+     * Constructor
+     *
+     * @param size The size of the file
+     * @param sums The checksum of every chunk
+     */
+    ChunkChecksums(long size, int[] sums) {
+        this(size, sums, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param size The size of the file
+     * @param sums The checksum of every chunk
+     * @param digests The digest of every chunk one after the other, or null
+     */
+    ChunkChecksums(long size, int[] sums, byte[] digests) {
+        this.size = size;
+        this.sums = sums;
+        this.digests = digests;
+    }
+
+    /** Reads a file and computes the checksums of its chunks.
+     *
+     * @param file The file
+     * @return The checksums
+     */
+    static ChunkChecksums of(Path file) throws IOException {
+        return of(file, false);
+    }
+
+    /** Reads a file and computes the checksums of its chunks.
+     *
+     * @param file The file
+     * @param withDigests true to compute the digests as well
+     * @return The checksums
+     */
+    static ChunkChecksums of(Path file, boolean withDigests) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return of(channel.size(), (buffer, position) -> {
+                while (buffer.hasRemaining()) {
+                    int count = channel.read(buffer, position);
+                    if (count < 0) {
+                        throw new EOFException("The file became shorter while it was read.");
+                    }
+                    position += count;
+                }
+            }, withDigests);
+        }
+    }
+
+    /** Computes the checksums of content that is not kept in one file.
+     *
+     * @param size The size of the content
+     * @param source Reads the chunks
+     * @param withDigests true to compute the digests as well
+     * @return The checksums
+     */
+    static ChunkChecksums of(long size, Source source, boolean withDigests) throws IOException {
+        int[] sums = new int[chunks(size)];
+        byte[] digests = withDigests ? new byte[sums.length * DIGEST_SIZE] : null;
+        MessageDigest sha = withDigests ? sha256() : null;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Frame.CHUNK_SIZE);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < sums.length; i++) {
+            buffer.clear();
+            buffer.limit(chunkLength(size, i));
+            source.read(buffer, (long) i * Frame.CHUNK_SIZE);
+            buffer.flip();
+            crc.reset();
+            crc.update(buffer);
+            sums[i] = (int) crc.getValue();
+            if (digests != null) {
+                buffer.rewind();
+                sha.update(buffer);
+                System.arraycopy(sha.digest(), 0, digests, i * DIGEST_SIZE, DIGEST_SIZE);
+            }
+        }
+        return new ChunkChecksums(size, sums, digests);
+    }
+
+    /** Reads the checksums from the DATA frames of a SUMS reply.
+     *
+     * @param size The size of the file, from the FINISHED of the reply
+     * @param records The payloads of the DATA frames one after the other
+     * @param length The number of bytes of the records
+     * @param withDigests true if the DIGESTS flag was set
+     * @return The checksums, or null if the records do not fit the size
+     */
+    static ChunkChecksums decode(long size, byte[] records, int length, boolean withDigests) {
+        int recordSize = withDigests ? 4 + DIGEST_SIZE : 4;
+        int count = chunks(size);
+        if ((long) count * recordSize != length) {
+            return null;
+        }
+        int[] sums = new int[count];
+        byte[] digests = withDigests ? new byte[count * DIGEST_SIZE] : null;
+        ByteBuffer buffer = ByteBuffer.wrap(records, 0, length);
+        for (int i = 0; i < count; i++) {
+            sums[i] = buffer.getInt();
+            if (digests != null) {
+                buffer.get(digests, i * DIGEST_SIZE, DIGEST_SIZE);
+            }
+        }
+        return new ChunkChecksums(size, sums, digests);
+    }
+
+    /** @return A new SHA-256, which every Java platform has
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** @return The bytes, a digest, in lower case hex
+     */
+    static String hex(byte[] bytes) {
+        char[] text = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            text[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            text[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(text);
+    }
+
+    /** @return The number of chunks of a file of the size
+     */
+    static int chunks(long size) {
+        return (int) ((size + Frame.CHUNK_SIZE - 1) / Frame.CHUNK_SIZE);
+    }
+
+    /** @return The length of a chunk of a file of the size, the last one may be shorter
+     */
+    static int chunkLength(long size, int chunk) {
+        return (int) Math.min(Frame.CHUNK_SIZE, size - (long) chunk * Frame.CHUNK_SIZE);
+    }
+
+    /** @return The number of chunks
+     */
+    int chunks() {
+        return sums.length;
+    }
+
+    /** @return The checksum of a chunk
+     */
+    int get(int chunk) {
+        return sums[chunk];
+    }
+
+    /** @return The length of the chunk
+     */
+    int chunkLength(int chunk) {
+        return chunkLength(size, chunk);
+    }
+
+    /** @return true if the digest of the chunk is the same as the first
+     *          DIGEST_SIZE bytes of the SHA-256, false if there are no digests
+     */
+    boolean sameDigest(int chunk, byte[] sha256) {
+        if (digests == null) {
+            return false;
+        }
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            if (digests[chunk * DIGEST_SIZE + i] != sha256[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Puts the checksums from a chunk on into the payload of a DATA frame,
+     *  each followed by its digest if there are digests.
+     *
+     * @param first The first chunk
+     * @param payload Where the big-endian ints are put
+     * @return The number of checksums that were put
+     */
+    int encode(int first, byte[] payload) {
+        int count = Math.min(sums.length - first, payload.length / recordSize());
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        for (int i = first; i < first + count; i++) {
+            buffer.putInt(sums[i]);
+            if (digests != null) {
+                buffer.put(digests, i * DIGEST_SIZE, DIGEST_SIZE);
+            }
+        }
+        return count;
+    }
+
+    /** @return The bytes that encode() puts for every chunk
+     */
+    int recordSize() {
+        return digests != null ? 4 + DIGEST_SIZE : 4;
+    }
+
+    /** @return true if both files have the chunk with the same length and checksum
+     */
+    boolean sameChunk(ChunkChecksums other, int chunk) {
+        return chunk < sums.length && chunk < other.sums.length && sums[chunk] == other.sums[chunk]
+                && chunkLength(size, chunk) == chunkLength(other.size, chunk);
+    }
+
+    /** @return true if the file is at least as long as the other one and
+     *          has the same chunks where the other one has chunks
+     */
+    boolean startsWith(ChunkChecksums other) {
+        if (size < other.size) {
+            return false;
+        }
+        for (int chunk = 0; chunk < other.sums.length; chunk++) {
+            if (!sameChunk(other, chunk)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean equals(Object other) {
+        return other instanceof ChunkChecksums && size == ((ChunkChecksums) other).size
+                && Arrays.equals(sums, ((ChunkChecksums) other).sums);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(sums);
+    }
+
+    /**
+     * Reads the content that the checksums are computed of.
+     */
+    interface Source {
+        /** Fills the buffer with the content from the position on.
+         *
+         * @throws EOFException If the content ends before the buffer is full
+         */
+        void read(ByteBuffer buffer, long position) throws IOException;
+    }
+}
@@ -0,0 +1,135 @@
+package com.jinwoo;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the DATA frames of one file on a connection where
+ * both sides have agreed on it with HELLO.
+ *
+ * Every chunk is compressed on its own with a fresh zlib stream, so
+ * the chunks of a range or of interleaved requests can be inflated in
+ * any order, and nothing but the content of the one file is ever in
+ * the same stream. The TLS layer itself never compresses. Deflate at
+ * its fastest level is used, as it is the only codec in Java 8.
+ *
+ * Files whose names say that they are compressed already are sent as
+ * they are. A chunk that does not shrink by at least an eighth is sent
+ * as it is, and after a few of those in a row the next chunks are not
+ * tried at all, so a file that does not compress costs little.
+ *
+ * The client and the server share this class through the common module.
+ */
+final class ChunkCompressor {
+    // The name of the compression in HELLO.
+    static final String DEFLATE = "deflate";
+    // After this many chunks in a row that did not shrink, SKIPPED_CHUNKS are sent as they are.
+    static final int MISSES_BEFORE_SKIPPING = 4;
+    static final int SKIPPED_CHUNKS = 64;
+
+    // The extensions of files that are compressed already.
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "zip", "jar", "7z", "xz", "bz2", "zst", "lz4", "br", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "mov", "ogg", "flac",
+            "pdf", "docx", "xlsx", "pptx"));
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    // One byte more than a chunk, so that the end of the stream is seen when a chunk is full.
+    private static final ThreadLocal<byte[]> INFLATED = ThreadLocal.withInitial(() -> new byte[Frame.CHUNK_SIZE + 1]);
+
+    private final boolean enabled;
+    private int misses;
+    private int skipped;
+
+    /**
+     * Constructor
+     *
+     * @param fileName The name of the file that is sent
+     * @param negotiated true if the connection has agreed on compression
+     */
+    ChunkCompressor(String fileName, boolean negotiated) {
+        int dot = fileName.lastIndexOf('.');
+        this.enabled = negotiated
+                && (dot < 0 || !COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT)));
+    }
+
+    /** @return true if the chunks of the file are compressed
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Compresses the next chunk of the file.
+     *
+     * @param chunk The content of the chunk
+     * @param length The length of the chunk
+     * @param packed Where the compressed chunk is put, at least as long as the chunk
+     * @return The length of the compressed chunk, or -1 to send the chunk as it is
+     */
+    int compress(byte[] chunk, int length, byte[] packed) {
+        if (!enabled || length == 0) {
+            return -1;
+        }
+        if (skipped > 0) {
+            skipped--;
+            return -1;
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+        int limit = length - length / 8;
+        int packedLength = 0;
+        while (!deflater.finished() && packedLength < limit) {
+            int count = deflater.deflate(packed, packedLength, limit - packedLength);
+            if (count == 0) {
+                break;
+            }
+            packedLength += count;
+        }
+        if (!deflater.finished()) {
+            if (++misses >= MISSES_BEFORE_SKIPPING) {
+                misses = 0;
+                skipped = SKIPPED_CHUNKS;
+            }
+            return -1;
+        }
+        misses = 0;
+        return packedLength;
+    }
+
+    /** Inflates a DATA frame with the COMPRESSED flag.
+     *
+     * @param frame The compressed frame
+     * @return The frame as it was before it was compressed, its payload is
+     *         reused for the next frame that is inflated on the thread
+     * @throws ProtocolException If the payload is not a compressed chunk
+     */
+    static Frame inflate(Frame frame) throws ProtocolException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(frame.payload, 0, frame.length);
+        byte[] chunk = INFLATED.get();
+        int length = 0;
+        try {
+            while (!inflater.finished() && length < chunk.length) {
+                int count = inflater.inflate(chunk, length, chunk.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+        } catch (DataFormatException x) {
+            throw new ProtocolException("A compressed chunk of request " + frame.requestId + " is broken.");
+        }
+        if (!inflater.finished() || length > Frame.CHUNK_SIZE) {
+            throw new ProtocolException("A compressed chunk of request " + frame.requestId + " is broken or too large.");
+        }
+        return new Frame(frame.opcode, frame.flags & ~Frame.COMPRESSED, frame.requestId, chunk, length);
+    }
+}
@@ -0,0 +1,202 @@
+package com.jinwoo;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A frame of the protocol between the SecureAdditionClient
+ * and the SecureAdditionServer.
+ *
+ * Every frame starts with a header of HEADER_SIZE bytes:
+ *
+ *   byte  version    The version of the frame format
+ *   byte  opcode     What the frame is, see the constants below
+ *   short flags      Options of the opcode, 0 when unused
+ *   int   requestId  The request that the frame belongs to
+ *   int   length     The number of payload bytes that follow
+ *
+ * File names and messages are sent as UTF-8 payloads. The content
+ * of a file is sent as raw bytes in DATA frames of at most
+ * CHUNK_SIZE bytes, so any file survives the transfer unchanged.
+ *
+ * A client may send new requests before the earlier ones are answered,
+ * every request needs an id that is not in use. The server answers
+ * them in any order and the DATA frames of different requests may be
+ * interleaved, the requestId tells which request a frame belongs to.
+ * Requests that depend on each other, such as a DELETE after an UPLOAD
+ * of the same file, must wait for the reply of the first one.
+ *
+ * A large file can be sent as ranges in parallel, over one connection or
+ * several. A DOWNLOAD or UPLOAD with the RANGE flag has a payload that
+ * starts with two longs before the file name. For a DOWNLOAD they are the
+ * position and the length of the range, the server sends the range as
+ * DATA frames and a length that reaches past the end is cut short. For an
+ * UPLOAD they are the position of the range and the size of the whole
+ * file, the DATA frames are written at the position into the partial
+ * file and it is cut to the size, so the ranges can arrive in any order.
+ *
+ * An upload is written to a partial file next to the file, which is
+ * moved into place once it is complete. A whole UPLOAD moves it after
+ * END, the ranges of an upload stay in the partial file until COMMIT,
+ * so a transfer that was cut off can be resumed. SUMS answers with the
+ * CRC32 of every chunk of a file, or of its partial file with the
+ * PARTIAL flag, as DATA frames of big-endian ints and a FINISHED with
+ * the size as text. The side that resumes compares the checksums with
+ * its own copy and only sends or fetches the chunks that differ.
+ *
+ * A client may send HELLO with the features that it supports, separated
+ * by spaces, and the server answers with FINISHED and the ones that it
+ * accepts. Once "deflate" has been accepted, either side may send a DATA
+ * frame of a file with the COMPRESSED flag, its payload is then the
+ * chunk as a zlib stream of its own, see ChunkCompressor.
+ *
+ * Many files are handled in one request with the BULK flag. The payload
+ * of a bulk DOWNLOAD or DELETE lists the names, one per line, and a line
+ * with *, ? or [ is a glob that is matched against the files of the
+ * server. Every file of the reply starts with an ENTRY frame with its
+ * name, for a DOWNLOAD followed by its DATA frames. An ENTRY with the
+ * FAILED flag has the name and the message for that file on two lines.
+ * A bulk UPLOAD has no names in its payload, the client sends an ENTRY
+ * with the name before the DATA frames of every file and END after the
+ * last one. The server answers every file with an ENTRY, and the request
+ * with a FINISHED that counts the files.
+ *
+ * LIST answers with the name, size, modification time and SHA-256 of
+ * files of the server, all of them or the ones that its payload names
+ * like a bulk request. Every file is one line of text "size mtime sha256
+ * name" in DATA frames, the time in milliseconds and the hash in hex, a
+ * frame only holds whole lines. SUMS with the DIGESTS flag adds the first
+ * bytes of the SHA-256 of every chunk to its checksum, so a client can
+ * find the chunks of a file anywhere in its old copy, see ChunkChecksums.
+ *
+ * A client that can not send the rest of an upload, because its file
+ * can not be read, sends ERROR with the id of the upload. The server
+ * drops what it has received of the file and answers with ERROR, or
+ * ignores it if it has answered the request already.
+ *
+ * The client and the server share this class through the common module.
+ */
+final class Frame {
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    // Larger frames are refused, so a broken peer can not make us allocate without bound.
+    static final int MAX_PAYLOAD = 1024 * 1024;
+    // The size of the DATA frames that a file is split into.
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // Requests sent by the client, the payload is the file name.
+    static final int DOWNLOAD = 1;
+    static final int UPLOAD = 2;
+    static final int DELETE = 3;
+    static final int EXIT = 4;
+    // Checks that the connection is alive, answered with an empty FINISHED.
+    static final int PING = 5;
+    // Asks for the size of a file, answered with FINISHED and the size as text.
+    static final int STAT = 6;
+    // Asks for the checksums of the chunks of a file.
+    static final int SUMS = 7;
+    // Moves an uploaded partial file into place, the payload is a range
+    // at position 0 with the size of the file.
+    static final int COMMIT = 8;
+    // Offers features to the server, answered with FINISHED and the ones that it accepts.
+    static final int HELLO = 9;
+    // Asks for the size, time and hash of files, answered with DATA frames of lines and FINISHED.
+    static final int LIST = 10;
+
+    // Flag of DOWNLOAD and UPLOAD, the payload starts with the two longs of a range.
+    static final int RANGE = 1;
+    static final int RANGE_SIZE = 16;
+    // Flag of SUMS, the checksums of the partial file of an upload are wanted.
+    static final int PARTIAL = 2;
+    // Flag of DATA, the payload is the chunk compressed with zlib.
+    static final int COMPRESSED = 4;
+    // Flag of DOWNLOAD, UPLOAD and DELETE, the request is for many files.
+    static final int BULK = 8;
+    // Flag of ENTRY, the file could not be handled.
+    static final int FAILED = 16;
+    // Flag of SUMS, every checksum is followed by the digest of the chunk.
+    static final int DIGESTS = 32;
+    // Flag of UPLOAD and COMMIT, the file is answered once it is on the disk.
+    static final int DURABLE = 64;
+
+    // The content of a file, sent by the server for a DOWNLOAD and by
+    // the client for an UPLOAD. END marks the end of an uploaded file.
+    static final int DATA = 16;
+    static final int END = 17;
+    // Starts the next file of a bulk request, the payload is the file name.
+    static final int ENTRY = 20;
+
+    // The replies of the server, the payload is a message for the user.
+    // The client sends ERROR to stop one of its uploads.
+    static final int FINISHED = 18;
+    static final int ERROR = 19;
+
+    final int opcode;
+    final int flags;
+    final int requestId;
+    // The payload is the first length bytes of the array, which may be
+    // a buffer that is reused for the next frame.
+    final byte[] payload;
+    final int length;
+
+    /**
+     * Constructor
+     *
+     * @param opcode What the frame is
+     * @param flags Options of the opcode
+     * @param requestId The request that the frame belongs to
+     * @param payload The array that holds the bytes after the header
+     * @param length The number of payload bytes
+     */
+    Frame(int opcode, int flags, int requestId, byte[] payload, int length) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.payload = payload;
+        this.length = length;
+    }
+
+    /** @return The payload decoded as UTF-8 text
+     */
+    String text() {
+        return text(0);
+    }
+
+    /** @return The payload from the offset on, decoded as UTF-8 text
+     */
+    String text(int offset) {
+        return new String(payload, offset, length - offset, StandardCharsets.UTF_8);
+    }
+
+    /** @return The long at the index of the payload, big-endian like the header
+     * @throws ProtocolException If the payload is too short
+     */
+    long longAt(int index) throws ProtocolException {
+        if (index + 8 > length) {
+            throw new ProtocolException("The payload of frame " + opcode + " is too short.");
+        }
+        long value = 0;
+        for (int i = index; i < index + 8; i++) {
+            value = (value << 8) | (payload[i] & 0xff);
+        }
+        return value;
+    }
+
+    /** @return The payload of a request with the RANGE flag
+     */
+    static byte[] range(long first, long second, String fileName) {
+        byte[] name = utf8(fileName);
+        byte[] payload = new byte[RANGE_SIZE + name.length];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (first >>> (56 - 8 * i));
+            payload[8 + i] = (byte) (second >>> (56 - 8 * i));
+        }
+        System.arraycopy(name, 0, payload, RANGE_SIZE, name.length);
+        return payload;
+    }
+
+    /** @return The text encoded as a UTF-8 payload
+     */
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
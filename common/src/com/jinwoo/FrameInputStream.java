@@ -0,0 +1,70 @@
+package com.jinwoo;
+import java.io.*;
+import java.net.ProtocolException;
+
+/**
+ * Reads frames from the stream of a socket.
+ *
+ * The payloads of the frames are read into one buffer that is reused
+ * for every frame, so a frame is only valid until the next frame is
+ * read. A file of any size is received with the same buffer.
+ *
+ * The client and the server share this class through the common module.
+ */
+class FrameInputStream implements Closeable {
+    private final DataInputStream in;
+    private final byte[] buffer = new byte[Frame.CHUNK_SIZE];
+    // Set while a frame has been started but not read to its end.
+    private boolean inFrame;
+
+    /**
+     * Constructor
+     *
+     * @param in The stream that the frames are read from
+     */
+    FrameInputStream(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in, Frame.CHUNK_SIZE + Frame.HEADER_SIZE));
+    }
+
+    /** Reads the next frame.
+     *
+     * @return The frame, or null if the peer has closed the stream.
+     *         Its payload is overwritten by the next call.
+     */
+    Frame readFrame() throws IOException {
+        int version = in.read();
+        if (version < 0) {
+            return null;
+        }
+        if (version != Frame.VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version + ".");
+        }
+        inFrame = true;
+
+        int opcode = in.readUnsignedByte();
+        int flags = in.readUnsignedShort();
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > Frame.MAX_PAYLOAD) {
+            throw new ProtocolException("Invalid frame length " + length + ".");
+        }
+
+        // Only payloads that are larger than a chunk get their own array.
+        byte[] payload = length <= buffer.length ? buffer : new byte[length];
+        in.readFully(payload, 0, length);
+        inFrame = false;
+        return new Frame(opcode, flags, requestId, payload, length);
+    }
+
+    /** @return true if the last readFrame() failed in the middle of a frame, for
+     *  example with a SocketTimeoutException. The stream can not be read any
+     *  further then, after a timeout between two frames it can.
+     */
+    boolean isInFrame() {
+        return inFrame;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.jinwoo;
+import java.io.*;
+
+/**
+ * Writes frames to the stream of a socket.
+ *
+ * DATA frames are buffered, every other frame completes a
+ * message and flushes the buffered frames to the peer.
+ *
+ * The client and the server share this class through the common module.
+ */
+class FrameOutputStream implements Closeable {
+    private final DataOutputStream out;
+
+    /**
+     * Constructor
+     *
+     * @param out The stream that the frames are written to
+     */
+    FrameOutputStream(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, Frame.CHUNK_SIZE + Frame.HEADER_SIZE));
+    }
+
+    /** Writes a frame.
+     *
+     * @param opcode What the frame is
+     * @param flags Options of the opcode
+     * @param requestId The request that the frame belongs to
+     * @param payload The array that holds the payload
+     * @param offset Where the payload starts in the array
+     * @param length The number of payload bytes
+     */
+    void writeFrame(int opcode, int flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+        writeHeader(opcode, flags, requestId, length);
+        out.write(payload, offset, length);
+        if (opcode != Frame.DATA) {
+            out.flush();
+        }
+    }
+
+    /** Writes a frame with a text payload.
+     *
+     * @param opcode What the frame is
+     * @param requestId The request that the frame belongs to
+     * @param text The text of the payload
+     */
+    void writeFrame(int opcode, int requestId, String text) throws IOException {
+        byte[] payload = Frame.utf8(text);
+        writeFrame(opcode, 0, requestId, payload, 0, payload.length);
+    }
+
+    /** Writes the header of a frame, the caller writes
+     *  the payload to the socket after flush().
+     *
+     * @param opcode What the frame is
+     * @param flags Options of the opcode
+     * @param requestId The request that the frame belongs to
+     * @param length The number of payload bytes that follow
+     */
+    void writeHeader(int opcode, int flags, int requestId, int length) throws IOException {
+        out.writeByte(Frame.VERSION);
+        out.writeByte(opcode);
+        out.writeShort(flags);
+        out.writeInt(requestId);
+        out.writeInt(length);
+    }
+
+    /** Sends the buffered frames to the peer.
+     */
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
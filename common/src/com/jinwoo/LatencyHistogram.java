@@ -0,0 +1,102 @@
+package com.jinwoo;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets whose width grows with the duration,
+ * like an HdrHistogram with one significant digit.
+ *
+ * Every power of two is split into SUB_BUCKETS buckets, so the
+ * percentiles are off by at most a sixteenth of their value, and the
+ * memory is fixed no matter how many durations are recorded. Recording
+ * is one increment of an array element, threads do not block each other.
+ *
+ * The client and the server share this class through the common module.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Durations above 2^45 ns, about ten hours, are counted as that.
+    private static final int MAX_BITS = 45;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Counts one duration.
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return The middle of the durations that fall into the bucket
+     */
+    private static long middle(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return low + (1L << shift) / 2;
+    }
+
+    /** @return The number of durations
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /** @return The sum of all durations in nanoseconds
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /** @return The longest duration in nanoseconds
+     */
+    long max() {
+        return max.get();
+    }
+
+    /** @param quantile Between 0 and 1, 0.99 for the 99th percentile
+     *  @return The duration that the part of the durations is not longer than, in nanoseconds
+     */
+    long percentile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(middle(i), max());
+            }
+        }
+        return max();
+    }
+}
@@ -0,0 +1,192 @@
+package com.jinwoo;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a file that is received from the network in chunks.
+ *
+ * Two buffers take turns: while one is written to the file in the
+ * background, the other one is filled with the next chunks from the
+ * network. The memory of a transfer is the same for a file of any size.
+ * A range of a file is written from its position on, while other writers
+ * may write the other ranges of the same file. Transfers write to the
+ * partial file of their target and move it into place when it is done,
+ * so a file that is cut off never takes the place of a complete one.
+ *
+ * The client and the server share this class through the common module.
+ */
+class OverlappedFileWriter implements Closeable {
+    static final int BUFFER_SIZE = 256 * 1024;
+    // Ends the name of a partial file.
+    static final String PART_SUFFIX = ".part";
+
+    private final Path path;
+    private final AsynchronousFileChannel channel;
+    // The size that the file is cut to when it is closed, -1 when the writer replaces the file.
+    private final long size;
+    private final ByteBuffer[] buffers = {
+            ByteBuffer.allocateDirect(BUFFER_SIZE), ByteBuffer.allocateDirect(BUFFER_SIZE) };
+    private final Future<?>[] pending = new Future<?>[2];
+    private final long[] starts = new long[2];
+    private int current;
+    private long position;
+
+    /**
+     * Constructor
+     *
+     * @param path The file to write, an existing file is replaced
+     */
+    OverlappedFileWriter(Path path) throws IOException {
+        this.path = path;
+        this.channel = AsynchronousFileChannel.open(path,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.size = -1;
+    }
+
+    /**
+     * Constructor for a range of a file.
+     *
+     * @param path The file to write, it is created if it is not there
+     * @param position Where the range starts in the file
+     * @param size The size of the whole file, a longer file is cut to it
+     */
+    OverlappedFileWriter(Path path, long position, long size) throws IOException {
+        this.path = path;
+        this.channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        this.position = position;
+        this.size = size;
+    }
+
+    /** Adds bytes to the end of the file.
+     *
+     * @param bytes The array that holds the bytes
+     * @param offset Where the bytes start in the array
+     * @param length The number of bytes
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer buffer = buffers[current];
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            if (!buffer.hasRemaining()) {
+                submit();
+            }
+        }
+    }
+
+    /** Starts writing the current buffer and switches to the other
+     *  one, once the other one has been written.
+     */
+    private void submit() throws IOException {
+        ByteBuffer buffer = buffers[current];
+        buffer.flip();
+        starts[current] = position;
+        position += buffer.remaining();
+        pending[current] = channel.write(buffer, starts[current]);
+
+        current ^= 1;
+        await(current);
+        buffers[current].clear();
+    }
+
+    /** Waits until a buffer has been written completely.
+     */
+    private void await(int index) throws IOException {
+        Future<?> write = pending[index];
+        if (write == null) {
+            return;
+        }
+        pending[index] = null;
+        ByteBuffer buffer = buffers[index];
+        try {
+            write.get();
+            // A write may stop early, the rest of the buffer is written in place.
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, starts[index] + buffer.position()).get();
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException x) {
+            throw new IOException(x.getCause());
+        }
+    }
+
+    /** Writes what is left in the buffers and closes the file.
+     */
+    public void close() throws IOException {
+        try {
+            if (buffers[current].position() > 0) {
+                submit();
+            }
+            await(0);
+            await(1);
+            if (size >= 0 && channel.size() > size) {
+                channel.truncate(size);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** @return The partial file that the ranges of a transfer to the file
+     *          are written to, the same every time so the transfer can be resumed
+     */
+    static Path partOf(Path file) {
+        return file.resolveSibling(file.getFileName() + PART_SUFFIX);
+    }
+
+    /** Creates a partial file of its own for a transfer of the whole file,
+     *  so two transfers to the same file never write into each other.
+     *
+     * @return The new empty file, next to the file
+     */
+    static Path newPartOf(Path file) throws IOException {
+        return Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", PART_SUFFIX);
+    }
+
+    /** Moves a complete partial file into place. The move is atomic
+     *  where the file system allows it, so a reader sees the old file or
+     *  the new one and never a mix of both.
+     *
+     * @param part The partial file
+     * @param file The file that is replaced
+     */
+    static void replace(Path part, Path file) throws IOException {
+        try {
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException x) {
+            Files.move(part, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Closes the file and deletes what has been written of it. A range
+     *  writes out what it has received and is left in place, the other
+     *  ranges of the file may still be written and a resumed transfer
+     *  only needs to send the rest.
+     */
+    void abort() {
+        try {
+            if (size < 0) {
+                channel.close();
+                Files.deleteIfExists(path);
+            }else{
+                close();
+            }
+        } catch (IOException x) {
+            // The partial file is left behind, a resumed transfer finds the chunks that are wrong.
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.jinwoo;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Loads the keystore and truststore once and hands out the same
+ * SSLContext to every connection.
+ *
+ * When watch() has been called the two files are watched, and a change
+ * to either of them loads a new SSLContext that replaces the old one.
+ * Connections that are already open keep the context they were created
+ * with, new connections get the new keys. If the new files can not be
+ * loaded the old context stays in use.
+ *
+ * The client and the server share this class through the common module.
+ */
+class SslContextProvider implements Closeable {
+    // Waits for the writes of a replaced keystore to finish before reading it.
+    static final long RELOAD_DELAY_MILLIS = 500;
+
+    private final Path keystore;
+    private final Path truststore;
+    private final String storePassword;
+    private final String aliasPassword;
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSeconds;
+    private final AtomicReference<SSLContext> current = new AtomicReference<>();
+    private WatchService watcher;
+
+    /**
+     * Constructor, loads the stores right away.
+     *
+     * @param keystore The file with the key and certificate
+     * @param truststore The file with the trusted certificates
+     * @param storePassword The password of both stores
+     * @param aliasPassword The password of the key
+     * @param sessionCacheSize How many TLS sessions are remembered
+     * @param sessionTimeoutSeconds For how long TLS sessions can be resumed
+     */
+    SslContextProvider(String keystore, String truststore, String storePassword, String aliasPassword,
+                       int sessionCacheSize, int sessionTimeoutSeconds) throws Exception {
+        this.keystore = Paths.get(keystore).toAbsolutePath();
+        this.truststore = Paths.get(truststore).toAbsolutePath();
+        this.storePassword = storePassword;
+        this.aliasPassword = aliasPassword;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        current.set(load());
+    }
+
+    /** @return The SSLContext for a new connection
+     */
+    SSLContext get() {
+        return current.get();
+    }
+
+    /** Loads the stores again and replaces the SSLContext.
+     */
+    void reload() throws Exception {
+        current.set(load());
+    }
+
+    private SSLContext load() throws Exception {
+        // Set up security. The following statements create an empty keystore and an empty truststore
+        // objects and then load them with the contents of the program's keystore and truststore files.
+        KeyStore ks = KeyStore.getInstance("JCEKS");
+        try (InputStream in = new FileInputStream(keystore.toFile())) {
+            ks.load(in, storePassword.toCharArray());
+        }
+        KeyStore ts = KeyStore.getInstance("JCEKS");
+        try (InputStream in = new FileInputStream(truststore.toFile())) {
+            ts.load(in, storePassword.toCharArray());
+        }
+
+        // The SSL connection will require access to encryption keys and certificates. For that reason,
+        // factory objects to create both KeyManager and TrustManager objects are created and then
+        // initialized with the KeyStore and TrustStore objects:
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(ks, aliasPassword.toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ts);
+
+        // Create an SSLContext object. The input parameter, TLS, indicates that we want to use the
+        // Transport Layer Security standard. Once the SSLContext object is created,
+        // it is initialized with all the KeyManager and TrustManager objects that the factory
+        // objects support. The initialization method will also accept a third parameter, a random
+        // number used in the process of generating the secret key that the SSL handshake will use.
+        // In this case the null reference is input, so the default random number seed will be used:
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+        // The session caches let TLS 1.2 peers resume by session id. TLS 1.3 peers resume
+        // with the session tickets (PSK) that the server sends after the handshake, the
+        // tickets are accepted for as long as the session timeout.
+        configureSessions(sslContext.getServerSessionContext());
+        configureSessions(sslContext.getClientSessionContext());
+        return sslContext;
+    }
+
+    private void configureSessions(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+    }
+
+    /** Starts a daemon thread that reloads the SSLContext
+     *  when the keystore or the truststore changes.
+     */
+    void watch() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        directories.add(keystore.getParent());
+        directories.add(truststore.getParent());
+        for (Path directory : directories) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+
+        Thread thread = new Thread(this::watchStores, "SslContextProvider-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchStores() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Path file = ((Path) key.watchable()).resolve((Path) event.context());
+                    if (file.equals(keystore) || file.equals(truststore)) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+
+                // A store is often written in several steps, wait until it is complete
+                // and ignore the events of the remaining steps.
+                Thread.sleep(RELOAD_DELAY_MILLIS);
+                WatchKey more;
+                while ((more = watcher.poll()) != null) {
+                    more.pollEvents();
+                    more.reset();
+                }
+
+                try {
+                    reload();
+                    System.out.println("The keystore has changed, new connections use the new keys.");
+                } catch (Exception x) {
+                    System.out.println("The changed keystore could not be loaded, the old keys are still used.");
+                    System.out.println(x);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException x) {
+            // The provider was closed.
+        }
+    }
+
+    /** Stops watching the stores.
+     */
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.jinwoo;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * The protocols and cipher suites that the connections may use.
+ *
+ * Only TLS 1.3 and TLS 1.2 are enabled, and only the AEAD suites
+ * (AES-GCM and ChaCha20-Poly1305). The TLS 1.3 suites come first,
+ * then the TLS 1.2 suites with ECDHE key exchange and last the ones
+ * with DHE. Within each group the cipher that is fastest on this CPU
+ * comes first: AES-GCM where the CPU has AES instructions,
+ * ChaCha20-Poly1305 where it has not.
+ *
+ * The policy can be changed with system properties:
+ * -Dsecureaddition.protocols=TLSv1.3,TLSv1.2
+ * -Dsecureaddition.cipherSuites=TLS_AES_128_GCM_SHA256,... uses exactly these suites
+ * -Dsecureaddition.preferredCipher=auto, aes or chacha20
+ *
+ * The client and the server share this class through the common module.
+ */
+class TlsPolicy {
+    static final String PROTOCOLS = System.getProperty("secureaddition.protocols", "TLSv1.3,TLSv1.2");
+    static final String CIPHER_SUITES = System.getProperty("secureaddition.cipherSuites", "");
+    static final String PREFERRED_CIPHER = System.getProperty("secureaddition.preferredCipher", "auto");
+
+    // The size of a full TLS record, what the ciphers are timed with.
+    private static final int RECORD_SIZE = 16 * 1024;
+    private static final int BENCHMARK_ROUNDS = 64;
+
+    private static volatile Boolean aesPreferred;
+    // Ranked once, every connection gets the same list.
+    private static volatile String[] rankedSuites;
+
+    private TlsPolicy() {
+    }
+
+    /** Restricts a socket to the policy.
+     *
+     * @param socket A client or server socket before its handshake
+     */
+    static void apply(SSLSocket socket) {
+        SSLParameters parameters = socket.getSSLParameters();
+        configure(parameters, socket.getSupportedProtocols(), socket.getSupportedCipherSuites());
+        socket.setSSLParameters(parameters);
+    }
+
+    /** Restricts an engine to the policy.
+     *
+     * @param engine A client or server engine before its handshake
+     */
+    static void apply(SSLEngine engine) {
+        SSLParameters parameters = engine.getSSLParameters();
+        configure(parameters, engine.getSupportedProtocols(), engine.getSupportedCipherSuites());
+        engine.setSSLParameters(parameters);
+    }
+
+    private static void configure(SSLParameters parameters, String[] supportedProtocols, String[] supportedSuites) {
+        List<String> supported = Arrays.asList(supportedProtocols);
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : split(PROTOCOLS)) {
+            if (supported.contains(protocol)) {
+                protocols.add(protocol);
+            }
+        }
+        if (protocols.isEmpty()) {
+            throw new IllegalArgumentException("None of the protocols " + PROTOCOLS + " is supported.");
+        }
+
+        String[] suites = rankedSuites;
+        if (suites == null) {
+            suites = cipherSuites(supportedSuites);
+            rankedSuites = suites;
+        }
+        if (suites.length == 0) {
+            throw new IllegalArgumentException("None of the allowed cipher suites is supported.");
+        }
+
+        parameters.setProtocols(protocols.toArray(new String[protocols.size()]));
+        parameters.setCipherSuites(suites);
+        // The server picks the first suite of its own list that the client
+        // also has, instead of the first one of the client's list.
+        parameters.setUseCipherSuitesOrder(true);
+    }
+
+    /** Ranks the allowed cipher suites.
+     *
+     * @param supportedSuites The suites that the JDK supports
+     * @return The allowed suites, the preferred one first
+     */
+    static String[] cipherSuites(String[] supportedSuites) {
+        List<String> supported = Arrays.asList(supportedSuites);
+        List<String> suites = new ArrayList<>();
+        if (!CIPHER_SUITES.isEmpty()) {
+            // Exactly the configured suites, in the configured order.
+            for (String suite : split(CIPHER_SUITES)) {
+                if (supported.contains(suite)) {
+                    suites.add(suite);
+                }
+            }
+            return suites.toArray(new String[suites.size()]);
+        }
+
+        for (String suite : supported) {
+            if (keyExchangeRank(suite) >= 0 && cipherRank(suite) >= 0) {
+                suites.add(suite);
+            }
+        }
+        Collections.sort(suites, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int order = Integer.compare(keyExchangeRank(a), keyExchangeRank(b));
+                if (order == 0) {
+                    order = Integer.compare(cipherRank(a), cipherRank(b));
+                }
+                if (order == 0) {
+                    // The ECDSA certificates are cheaper to verify than RSA ones.
+                    order = Boolean.compare(!a.contains("_ECDSA_"), !b.contains("_ECDSA_"));
+                }
+                return order;
+            }
+        });
+        return suites.toArray(new String[suites.size()]);
+    }
+
+    /** @return 0 for TLS 1.3, 1 for ECDHE, 2 for DHE
+     *          and -1 for the key exchanges that are not allowed
+     */
+    private static int keyExchangeRank(String suite) {
+        if (suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_")) {
+            return 0;
+        }
+        if (suite.startsWith("TLS_ECDHE_")) {
+            return 1;
+        }
+        if (suite.startsWith("TLS_DHE_")) {
+            return 2;
+        }
+        return -1;
+    }
+
+    /** @return The rank of the cipher of the suite, lower is faster,
+     *          -1 if it is not an AEAD cipher
+     */
+    private static int cipherRank(String suite) {
+        boolean aes = isAesPreferred();
+        if (suite.contains("_AES_128_GCM_")) {
+            return aes ? 0 : 1;
+        }
+        if (suite.contains("_AES_256_GCM_")) {
+            return aes ? 1 : 2;
+        }
+        if (suite.contains("_CHACHA20_POLY1305_")) {
+            return aes ? 2 : 0;
+        }
+        return -1;
+    }
+
+    /** Decides once whether AES-GCM or ChaCha20-Poly1305 comes first.
+     *
+     * @return true if AES-GCM is preferred
+     */
+    static boolean isAesPreferred() {
+        Boolean preferred = aesPreferred;
+        if (preferred == null) {
+            if (PREFERRED_CIPHER.equals("aes")) {
+                preferred = true;
+            }
+            else if (PREFERRED_CIPHER.equals("chacha20")) {
+                preferred = false;
+            }else{
+                preferred = aesIsFaster();
+                System.out.println((preferred ? "AES-GCM" : "ChaCha20-Poly1305") + " is the faster cipher on this CPU.");
+            }
+            aesPreferred = preferred;
+        }
+        return preferred;
+    }
+
+    /** Times both ciphers with full TLS records. There is no way to ask the JVM
+     *  whether it uses the AES instructions of the CPU, but without them
+     *  AES-GCM is several times slower than ChaCha20-Poly1305.
+     *
+     * @return true if AES-GCM encrypts faster
+     */
+    private static boolean aesIsFaster() {
+        try {
+            byte[] record = new byte[RECORD_SIZE];
+            Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+            SecretKeySpec aesKey = new SecretKeySpec(new byte[16], "AES");
+            Cipher chacha = Cipher.getInstance("ChaCha20-Poly1305");
+            SecretKeySpec chachaKey = new SecretKeySpec(new byte[32], "ChaCha20");
+
+            // The first rounds let the JIT compile both ciphers.
+            long aesTime = Long.MAX_VALUE;
+            long chachaTime = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                    aes.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(128, nonce(run, i)));
+                    aes.doFinal(record);
+                }
+                aesTime = Math.min(aesTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                    chacha.init(Cipher.ENCRYPT_MODE, chachaKey, new IvParameterSpec(nonce(run, i)));
+                    chacha.doFinal(record);
+                }
+                chachaTime = Math.min(chachaTime, System.nanoTime() - start);
+            }
+            return aesTime <= chachaTime;
+        } catch (GeneralSecurityException x) {
+            // Java 8 has no ChaCha20-Poly1305, so AES-GCM is the only choice.
+            return true;
+        }
+    }
+
+    /** A key and nonce pair may only encrypt once.
+     */
+    private static byte[] nonce(int run, int round) {
+        byte[] nonce = new byte[12];
+        nonce[0] = (byte) run;
+        nonce[1] = (byte) (round >> 8);
+        nonce[2] = (byte) round;
+        return nonce;
+    }
+
+    /** @return The protocol and cipher suite of the session, for the log
+     */
+    static String describe(SSLSession session) {
+        return session.getProtocol() + " " + session.getCipherSuite();
+    }
+
+    private static String[] split(String list) {
+        return list.trim().split("\\s*,\\s*");
+    }
+}
@@ -0,0 +1,108 @@
+package com.jinwoo;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Computes, encodes and compares the checksums of the chunks of files.
+ */
+class ChunkChecksumsTest {
+    @TempDir
+    Path directory;
+
+    private Path write(String name, byte[] content) throws IOException {
+        return Files.write(directory.resolve(name), content);
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void hasTheCrc32OfEveryChunk() throws IOException {
+        byte[] content = random(2 * Frame.CHUNK_SIZE + 100, 1);
+        ChunkChecksums sums = ChunkChecksums.of(write("file", content));
+        assertEquals(content.length, sums.size);
+        assertEquals(3, sums.chunks());
+        assertEquals(100, sums.chunkLength(2));
+        for (int i = 0; i < sums.chunks(); i++) {
+            CRC32 crc = new CRC32();
+            crc.update(content, i * Frame.CHUNK_SIZE, sums.chunkLength(i));
+            assertEquals((int) crc.getValue(), sums.get(i));
+        }
+        assertEquals(0, ChunkChecksums.of(write("empty", new byte[0])).chunks());
+    }
+
+    @Test
+    void decodesWhatItEncodes() throws IOException {
+        byte[] content = random(3 * Frame.CHUNK_SIZE - 1, 2);
+        ChunkChecksums sums = ChunkChecksums.of(write("file", content), true);
+        // Two DATA frames, the second one with the last chunk.
+        byte[] first = new byte[2 * sums.recordSize() + 1];
+        byte[] second = new byte[sums.recordSize()];
+        assertEquals(2, sums.encode(0, first));
+        assertEquals(1, sums.encode(2, second));
+        byte[] records = new byte[3 * sums.recordSize()];
+        System.arraycopy(first, 0, records, 0, 2 * sums.recordSize());
+        System.arraycopy(second, 0, records, 2 * sums.recordSize(), second.length);
+
+        ChunkChecksums decoded = ChunkChecksums.decode(sums.size, records, records.length, true);
+        assertEquals(sums, decoded);
+        byte[] sha = ChunkChecksums.sha256().digest(Arrays.copyOfRange(content, Frame.CHUNK_SIZE, 2 * Frame.CHUNK_SIZE));
+        assertTrue(decoded.sameDigest(1, sha));
+        assertFalse(decoded.sameDigest(0, sha));
+
+        assertNull(ChunkChecksums.decode(sums.size, records, records.length - 1, true));
+        assertNull(ChunkChecksums.decode(sums.size + Frame.CHUNK_SIZE, records, records.length, true));
+    }
+
+    @Test
+    void encodesTheChunksFromAPosition() {
+        ChunkChecksums sums = new ChunkChecksums(3L * Frame.CHUNK_SIZE, new int[] { 7, 8, 9 });
+        byte[] payload = new byte[8];
+        assertEquals(2, sums.encode(1, payload));
+        assertEquals(new ChunkChecksums(2L * Frame.CHUNK_SIZE, new int[] { 8, 9 }),
+                ChunkChecksums.decode(2L * Frame.CHUNK_SIZE, payload, payload.length, false));
+        assertFalse(sums.sameDigest(0, new byte[32]));
+    }
+
+    @Test
+    void comparesTheChunksOfTwoFiles() throws IOException {
+        byte[] content = random(4 * Frame.CHUNK_SIZE + 10, 3);
+        ChunkChecksums whole = ChunkChecksums.of(write("whole", content));
+        ChunkChecksums part = ChunkChecksums.of(write("part", Arrays.copyOf(content, 2 * Frame.CHUNK_SIZE + 5)));
+        byte[] changed = content.clone();
+        changed[3 * Frame.CHUNK_SIZE] ^= 1;
+        ChunkChecksums other = ChunkChecksums.of(write("changed", changed));
+
+        assertTrue(whole.sameChunk(part, 1));
+        // The same bytes, but the last chunk of the partial file is shorter.
+        assertFalse(whole.sameChunk(part, 2));
+        assertFalse(whole.sameChunk(part, 3));
+        assertTrue(whole.sameChunk(other, 2));
+        assertFalse(whole.sameChunk(other, 3));
+
+        assertTrue(whole.startsWith(whole));
+        assertFalse(whole.startsWith(part));
+        assertFalse(part.startsWith(whole));
+        assertFalse(whole.startsWith(other));
+        assertNotEquals(whole, other);
+    }
+
+    @Test
+    void writesDigestsAsLowerCaseHex() {
+        assertEquals("00ff10a5", ChunkChecksums.hex(new byte[] { 0, -1, 0x10, (byte) 0xa5 }));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                ChunkChecksums.hex(ChunkChecksums.sha256().digest("abc".getBytes(StandardCharsets.US_ASCII))));
+    }
+}
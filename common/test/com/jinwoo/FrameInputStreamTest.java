@@ -0,0 +1,132 @@
+package com.jinwoo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads frames that FrameOutputStream wrote, whole and cut off.
+ */
+class FrameInputStreamTest {
+
+    static byte[] frames(int... payloadSizes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameOutputStream out = new FrameOutputStream(bytes);
+        for (int i = 0; i < payloadSizes.length; i++) {
+            out.writeFrame(Frame.DATA, i, i + 1, payload(payloadSizes[i]), 0, payloadSizes[i]);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (i * 31 + size);
+        }
+        return payload;
+    }
+
+    @Test
+    void readsTheFramesThatWereWritten() throws IOException {
+        FrameInputStream in = new FrameInputStream(new ByteArrayInputStream(frames(0, 5, Frame.CHUNK_SIZE)));
+        for (int i = 0; i < 3; i++) {
+            Frame frame = in.readFrame();
+            assertEquals(Frame.DATA, frame.opcode);
+            assertEquals(i, frame.flags);
+            assertEquals(i + 1, frame.requestId);
+            int size = i == 0 ? 0 : i == 1 ? 5 : Frame.CHUNK_SIZE;
+            assertEquals(size, frame.length);
+            assertArrayEquals(payload(size), Arrays.copyOf(frame.payload, frame.length));
+        }
+        assertNull(in.readFrame());
+        assertFalse(in.isInFrame());
+    }
+
+    @Test
+    void givesPayloadsLargerThanAChunkTheirOwnArray() throws IOException {
+        FrameInputStream in = new FrameInputStream(new ByteArrayInputStream(frames(10, Frame.CHUNK_SIZE + 1, 10)));
+        byte[] buffer = in.readFrame().payload;
+        Frame large = in.readFrame();
+        assertNotSame(buffer, large.payload);
+        assertArrayEquals(payload(Frame.CHUNK_SIZE + 1), large.payload);
+        assertSame(buffer, in.readFrame().payload);
+    }
+
+    @Test
+    void failsOnAStreamThatEndsInAFrame() throws IOException {
+        byte[] bytes = frames(100);
+        FrameInputStream in = new FrameInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+        assertThrows(EOFException.class, in::readFrame);
+        assertTrue(in.isInFrame());
+    }
+
+    @Test
+    void tellsATimeoutInAFrameFromOneBetweenFrames() throws IOException {
+        byte[] bytes = frames(100, 100);
+        int first = Frame.HEADER_SIZE + 100;
+
+        FrameInputStream between = new FrameInputStream(new TimingOut(bytes, first));
+        assertNotNull(between.readFrame());
+        assertThrows(SocketTimeoutException.class, between::readFrame);
+        assertFalse(between.isInFrame());
+
+        FrameInputStream inHeader = new FrameInputStream(new TimingOut(bytes, first + 3));
+        assertNotNull(inHeader.readFrame());
+        assertThrows(SocketTimeoutException.class, inHeader::readFrame);
+        assertTrue(inHeader.isInFrame());
+    }
+
+    @Test
+    void rejectsAnUnknownVersionAndATooLongPayload() throws IOException {
+        byte[] bytes = frames(1);
+        bytes[0] = Frame.VERSION + 1;
+        assertThrows(ProtocolException.class, new FrameInputStream(new ByteArrayInputStream(bytes))::readFrame);
+
+        bytes = frames(1);
+        // The length is the last int of the header.
+        bytes[Frame.HEADER_SIZE - 4] = 0x7f;
+        assertThrows(ProtocolException.class, new FrameInputStream(new ByteArrayInputStream(bytes))::readFrame);
+    }
+
+    /**
+     * Gives the bytes up to a point and then times out, like a socket with a read timeout.
+     */
+    private static final class TimingOut extends InputStream {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        TimingOut(byte[] bytes, int end) {
+            this.bytes = bytes;
+            this.end = end;
+        }
+
+        public int read() throws IOException {
+            if (position == end) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == end) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            int count = Math.min(length, end - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
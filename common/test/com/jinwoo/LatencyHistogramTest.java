@@ -0,0 +1,76 @@
+package com.jinwoo;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the percentiles of the histogram against the exact ones.
+ */
+class LatencyHistogramTest {
+
+    /** Asserts that a percentile is off by at most a sixteenth of the exact value.
+     */
+    private static void assertClose(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected / 16, "expected about " + expected + " but was " + actual);
+    }
+
+    @Test
+    void isEmptyAtFirst() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals(0, histogram.max());
+    }
+
+    @Test
+    void findsThePercentilesOfAUniformRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long sum = 0;
+        for (long nanos = 1; nanos <= 1_000_000; nanos++) {
+            histogram.record(nanos);
+            sum += nanos;
+        }
+        assertEquals(1_000_000, histogram.count());
+        assertEquals(sum, histogram.sum());
+        assertEquals(1_000_000, histogram.max());
+        assertClose(500_000, histogram.percentile(0.5));
+        assertClose(900_000, histogram.percentile(0.9));
+        assertClose(990_000, histogram.percentile(0.99));
+        assertClose(999_000, histogram.percentile(0.999));
+        assertEquals(1, histogram.percentile(0));
+        assertClose(1_000_000, histogram.percentile(1));
+        assertTrue(histogram.percentile(1) <= histogram.max());
+    }
+
+    @Test
+    void keepsSmallDurationsExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int nanos = 0; nanos < 16; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(0, histogram.percentile(1 / 16.0));
+        assertEquals(7, histogram.percentile(0.5));
+        assertEquals(15, histogram.percentile(1));
+    }
+
+    @Test
+    void findsARareSlowDuration() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 999; i++) {
+            histogram.record(1_000);
+        }
+        histogram.record(5_000_000_000L);
+        assertClose(1_000, histogram.percentile(0.99));
+        assertClose(1_000, histogram.percentile(0.999));
+        assertClose(5_000_000_000L, histogram.percentile(0.9999));
+        assertTrue(histogram.percentile(0.9999) <= histogram.max());
+    }
+
+    @Test
+    void clampsNegativeDurations() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(0, histogram.sum());
+    }
+}